@@ -6,9 +6,16 @@ import android.util.Log;
 
 import com.appunite.intenthelperlibrary.IntentHelperComponent;
 import com.appunite.intenthelperlibrary.IntentHelperProvider;
+import com.appunite.intenthelperlibrary.dao.ManagedFileDao;
+
+import java.util.concurrent.TimeUnit;
+
+import rx.functions.Action1;
 
 public class MainApplication extends Application {
 
+    private static final String TAG = "MainApplication";
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -18,5 +25,18 @@ public class MainApplication extends Application {
                 .setFileProvider("file provider registered in manifest")
                 .setSubdirectoryName("example")
                 .build());
+        component.managedFileDao().startRemovingOldFiles(15, TimeUnit.MINUTES, 200, 50);
+        component.filesManager().reconcileOrphanedFiles(ManagedFileDao.OrphanPolicy.ADOPT)
+                .subscribe(new Action1<Integer>() {
+                    @Override
+                    public void call(Integer adopted) {
+                        Log.i(TAG, "Adopted not managed files: " + adopted);
+                    }
+                }, new Action1<Throwable>() {
+                    @Override
+                    public void call(Throwable throwable) {
+                        Log.e(TAG, "Could not reconcile not managed files", throwable);
+                    }
+                });
     }
 }
@@ -0,0 +1,82 @@
+package com.appunite.intenthelperlibrary.benchmark;
+
+
+import com.google.protobuf.ByteString;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+
+/**
+ * On-disk backend for benchmarks.
+ * <p>
+ * LevelDB driver of key-value-db works only on Android, so this backend keeps data in memory
+ * like {@link SynchronizedKeyValueMemory} and appends every mutation to a log file, the way LevelDB
+ * writes its log before updating memtable. Reads are served from memory like from LevelDB memtable.
+ */
+class AppendLogKeyValue extends SynchronizedKeyValueMemory {
+
+    private static final int PUT = 1;
+    private static final int DEL = 2;
+
+    @Nonnull
+    private final FileOutputStream fileOutputStream;
+    @Nonnull
+    private final DataOutputStream log;
+    private final boolean sync;
+
+    /**
+     * @param logFile file for log, overwritten
+     * @param sync    fsync log after every mutation
+     */
+    AppendLogKeyValue(@Nonnull File logFile, boolean sync) throws IOException {
+        this.fileOutputStream = new FileOutputStream(logFile);
+        this.log = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+        this.sync = sync;
+    }
+
+    @Override
+    public synchronized void put(@Nonnull ByteString key, @Nonnull ByteString value) {
+        try {
+            log.writeByte(PUT);
+            writeBytes(key);
+            writeBytes(value);
+            flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        super.put(key, value);
+    }
+
+    @Override
+    public synchronized void del(@Nonnull ByteString key) {
+        try {
+            log.writeByte(DEL);
+            writeBytes(key);
+            flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        super.del(key);
+    }
+
+    private void writeBytes(@Nonnull ByteString bytes) throws IOException {
+        log.writeInt(bytes.size());
+        bytes.writeTo(log);
+    }
+
+    private void flush() throws IOException {
+        log.flush();
+        if (sync) {
+            fileOutputStream.getFD().sync();
+        }
+    }
+
+    synchronized void close() throws IOException {
+        log.close();
+    }
+}
@@ -0,0 +1,56 @@
+package com.appunite.intenthelperlibrary.benchmark;
+
+
+import com.appunite.keyvalue.KeyValue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+
+enum Backend {
+    MEMORY {
+        @Nonnull
+        @Override
+        Opened open() {
+            return new Opened(new SynchronizedKeyValueMemory(), null, null);
+        }
+    },
+    DISK {
+        @Nonnull
+        @Override
+        Opened open() throws IOException {
+            final File logFile = File.createTempFile("managed-files-benchmark", ".log");
+            final AppendLogKeyValue keyValue = new AppendLogKeyValue(logFile, false);
+            return new Opened(keyValue, keyValue, logFile);
+        }
+    };
+
+    @Nonnull
+    abstract Opened open() throws IOException;
+
+    static class Opened implements Closeable {
+        @Nonnull
+        final KeyValue keyValue;
+        private final AppendLogKeyValue appendLog;
+        private final File logFile;
+
+        Opened(@Nonnull KeyValue keyValue, AppendLogKeyValue appendLog, File logFile) {
+            this.keyValue = keyValue;
+            this.appendLog = appendLog;
+            this.logFile = logFile;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (appendLog != null) {
+                appendLog.close();
+            }
+            if (logFile != null) {
+                //noinspection ResultOfMethodCallIgnored
+                logFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.appunite.intenthelperlibrary.benchmark;
+
+
+import com.appunite.intenthelperlibrary.dao.ManagedFileDao;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.schedulers.Schedulers;
+
+/**
+ * Acquire and release under contention, run with 1, 2, 4 and 8 threads.
+ * <p>
+ * With per-file locking throughput of {@link #acquireReleaseOwnFile(DaoState, ThreadState)}
+ * should grow with number of threads, {@link #acquireReleaseSharedFile(DaoState, ThreadState)}
+ * shows cost of threads that hit the same few files.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public abstract class ContentionBenchmark {
+
+    private static final int SHARED_FILES = 4;
+    private static final int OWN_FILES = 64;
+
+    @State(Scope.Benchmark)
+    public static class DaoState {
+
+        ManagedFileDao dao;
+        ManagedFileDao.ManagedFile[] sharedFiles;
+        ManagedFileDao.ManagedFile[] ownFiles;
+        final AtomicInteger nextThread = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            dao = new ManagedFileDao(Schedulers.test(), new SynchronizedKeyValueMemory(), new NoFileOperations());
+            sharedFiles = new ManagedFileDao.ManagedFile[SHARED_FILES];
+            for (int i = 0; i < sharedFiles.length; i++) {
+                sharedFiles[i] = dao.manageFile(new File("/benchmark/shared" + i), "held");
+            }
+            ownFiles = new ManagedFileDao.ManagedFile[OWN_FILES];
+            for (int i = 0; i < ownFiles.length; i++) {
+                ownFiles[i] = dao.manageFile(new File("/benchmark/own" + i), "held");
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            for (ManagedFileDao.ManagedFile sharedFile : sharedFiles) {
+                sharedFile.release();
+            }
+            for (ManagedFileDao.ManagedFile ownFile : ownFiles) {
+                ownFile.release();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        int thread;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(DaoState state) {
+            thread = state.nextThread.getAndIncrement();
+        }
+    }
+
+    @Benchmark
+    public void acquireReleaseSharedFile(DaoState state, ThreadState threadState) {
+        state.sharedFiles[threadState.next++ % SHARED_FILES]
+                .newManagedFile("benchmark")
+                .release();
+    }
+
+    @Benchmark
+    public void acquireReleaseOwnFile(DaoState state, ThreadState threadState) {
+        state.ownFiles[threadState.thread % OWN_FILES]
+                .newManagedFile("benchmark")
+                .release();
+    }
+
+    @Threads(1)
+    public static class OneThread extends ContentionBenchmark {
+    }
+
+    @Threads(2)
+    public static class TwoThreads extends ContentionBenchmark {
+    }
+
+    @Threads(4)
+    public static class FourThreads extends ContentionBenchmark {
+    }
+
+    @Threads(8)
+    public static class EightThreads extends ContentionBenchmark {
+    }
+}
@@ -0,0 +1,130 @@
+package com.appunite.intenthelperlibrary.benchmark;
+
+
+import com.appunite.intenthelperlibrary.dao.ManagedFileDao;
+import com.google.protobuf.ByteString;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rx.schedulers.Schedulers;
+import rx.schedulers.TestScheduler;
+
+/**
+ * Operations on database that already contains given number of files.
+ * <p>
+ * Every acquisition is released and every created file is removed in the same benchmark,
+ * so the database does not grow.
+ * Run with different number of threads by subclasses.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public abstract class ManagedFileDaoBenchmark {
+
+    private static final int HELD_FILES = 1024;
+
+    @State(Scope.Benchmark)
+    public static class DaoState {
+
+        @Param({"1000", "100000", "1000000"})
+        int entries;
+
+        @Param({"MEMORY", "DISK"})
+        Backend backend;
+
+        Backend.Opened opened;
+        TestScheduler scheduler;
+        ManagedFileDao dao;
+        ByteString[] fileIds;
+        ManagedFileDao.ManagedFile[] heldFiles;
+        final AtomicLong newFiles = new AtomicLong();
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            opened = backend.open();
+            scheduler = Schedulers.test();
+            dao = new ManagedFileDao(scheduler, opened.keyValue, new NoFileOperations());
+            fileIds = new ByteString[entries];
+            for (int i = 0; i < entries; i++) {
+                final ManagedFileDao.ManagedFile managedFile = dao.manageFile(new File("/benchmark/file" + i), "setup");
+                fileIds[i] = managedFile.fileId();
+                managedFile.release();
+            }
+            heldFiles = new ManagedFileDao.ManagedFile[Math.min(HELD_FILES, entries)];
+            for (int i = 0; i < heldFiles.length; i++) {
+                heldFiles[i] = dao.findAndAcquireManagedFileIfExists(fileIds[i], "held");
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            for (ManagedFileDao.ManagedFile heldFile : heldFiles) {
+                heldFile.release();
+            }
+            opened.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        final Random random = new Random();
+    }
+
+    /**
+     * New file expires immediately and is removed by one step of sweep, files from setup
+     * expire later so sweep visits only new files
+     */
+    @Benchmark
+    public void manageAndRemoveFile(DaoState state) {
+        state.dao.manageFile(new File("/benchmark/new" + state.newFiles.incrementAndGet()), "benchmark",
+                state.scheduler.now())
+                .release();
+        state.dao.removeOldFiles(null, 1, Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public void newManagedFile(DaoState state, ThreadState threadState) {
+        state.heldFiles[threadState.random.nextInt(state.heldFiles.length)]
+                .newManagedFile("benchmark")
+                .release();
+    }
+
+    @Benchmark
+    public void newRestartManagedFile(DaoState state, ThreadState threadState) {
+        state.heldFiles[threadState.random.nextInt(state.heldFiles.length)]
+                .newRestartManagedFile("benchmark")
+                .release();
+    }
+
+    @Benchmark
+    public void findAndAcquireManagedFileIfExists(DaoState state, ThreadState threadState) {
+        final ManagedFileDao.ManagedFile managedFile = state.dao.findAndAcquireManagedFileIfExists(
+                state.fileIds[threadState.random.nextInt(state.fileIds.length)], "benchmark");
+        if (managedFile == null) {
+            throw new IllegalStateException("File was removed");
+        }
+        managedFile.release();
+    }
+
+    /**
+     * Periodic sweep when no file expired, cost should not depend on number of files
+     */
+    @Benchmark
+    public void removeOldFilesWhenNothingExpired(DaoState state) {
+        state.dao.removeOldFiles();
+    }
+}
@@ -0,0 +1,8 @@
+package com.appunite.intenthelperlibrary.benchmark;
+
+
+import org.openjdk.jmh.annotations.Threads;
+
+@Threads(8)
+public class MultiThreadManagedFileDaoBenchmark extends ManagedFileDaoBenchmark {
+}
@@ -0,0 +1,40 @@
+package com.appunite.intenthelperlibrary.benchmark;
+
+
+import com.appunite.intenthelperlibrary.dao.ManagedFileDao;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Benchmarks measure database, so files are not touched
+ */
+class NoFileOperations implements ManagedFileDao.ExtendedFileOperations {
+
+    @Override
+    public void removeFile(@Nonnull String path) {
+    }
+
+    @Override
+    public long fileSize(@Nonnull String path) {
+        return 0;
+    }
+
+    @Nonnull
+    @Override
+    public List<String> listFiles(@Nonnull String directory) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public long lastModified(@Nonnull String path) {
+        return 0;
+    }
+
+    @Override
+    public boolean createFile(@Nonnull String path) {
+        return true;
+    }
+}
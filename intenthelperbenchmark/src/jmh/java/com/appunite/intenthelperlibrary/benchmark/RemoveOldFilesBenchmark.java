@@ -0,0 +1,65 @@
+package com.appunite.intenthelperlibrary.benchmark;
+
+
+import com.appunite.intenthelperlibrary.dao.ManagedFileDao;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import rx.schedulers.Schedulers;
+import rx.schedulers.TestScheduler;
+
+/**
+ * Removing all files after they expired, every iteration starts with a freshly filled database
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, batchSize = 1)
+@Measurement(iterations = 5, batchSize = 1)
+@State(Scope.Thread)
+public class RemoveOldFilesBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    int entries;
+
+    @Param({"MEMORY", "DISK"})
+    Backend backend;
+
+    private Backend.Opened opened;
+    private ManagedFileDao dao;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        opened = backend.open();
+        final TestScheduler scheduler = Schedulers.test();
+        dao = new ManagedFileDao(scheduler, opened.keyValue, new NoFileOperations());
+        for (int i = 0; i < entries; i++) {
+            dao.manageFile(new File("/benchmark/file" + i), "setup").release();
+        }
+        scheduler.advanceTimeBy(1, TimeUnit.DAYS);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        opened.close();
+    }
+
+    @Benchmark
+    public void removeOldFiles() {
+        dao.removeOldFiles();
+    }
+}
@@ -0,0 +1,38 @@
+package com.appunite.intenthelperlibrary.benchmark;
+
+
+import com.appunite.keyvalue.KeyValueMemory;
+import com.appunite.keyvalue.NotFoundException;
+import com.google.protobuf.ByteString;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * {@link KeyValueMemory} that can be used from many benchmark threads at once,
+ * like LevelDB that synchronizes internally
+ */
+class SynchronizedKeyValueMemory extends KeyValueMemory {
+
+    @Override
+    public synchronized void put(@Nonnull ByteString key, @Nonnull ByteString value) {
+        super.put(key, value);
+    }
+
+    @Override
+    public synchronized void del(@Nonnull ByteString key) {
+        super.del(key);
+    }
+
+    @Nonnull
+    @Override
+    public synchronized ByteString getBytes(@Nonnull ByteString key) throws NotFoundException {
+        return super.getBytes(key);
+    }
+
+    @Nonnull
+    @Override
+    public synchronized Iterator getKeys(@Nonnull ByteString prefix, @Nullable ByteString nextToken, int batch) {
+        return super.getKeys(prefix, nextToken, batch);
+    }
+}
@@ -0,0 +1,120 @@
+package com.appunite.intenthelperlibrary.benchmark;
+
+
+import com.appunite.intenthelperlibrary.dao.ManagedFileDao;
+import com.google.protobuf.ByteString;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import rx.schedulers.Schedulers;
+
+/**
+ * Heap used by volatile acquisitions of every stored file
+ * <p>
+ * Handles stay referenced while heap is measured before and after release, so difference is
+ * memory of acquisition table only. Iteration fails if it exceeds
+ * {@link #MAX_BYTES_PER_FILE} or if entries are not freed on last release.
+ * <p>
+ * Serial collector does not always free whole garbage on {@link System#gc()}, so parallel one
+ * is used to get stable measurements.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, batchSize = 1)
+@Measurement(iterations = 3, batchSize = 1)
+@Fork(jvmArgsAppend = {"-XX:+UseParallelGC", "-Xmx3g"})
+@State(Scope.Thread)
+public class VolatileFootprintBenchmark {
+
+    /**
+     * Counter and primitive map slot per file, ids are not copied
+     */
+    private static final long MAX_BYTES_PER_FILE = 128;
+
+    @Param({"1000000"})
+    int files;
+
+    private ManagedFileDao dao;
+    private ByteString[] fileIds;
+    private ManagedFileDao.ManagedFile[] handles;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dao = new ManagedFileDao(Schedulers.test(), new SynchronizedKeyValueMemory(), new NoFileOperations());
+        fileIds = new ByteString[files];
+        for (int i = 0; i < files; i++) {
+            final ManagedFileDao.ManagedFile managedFile = dao.manageFile(new File("/benchmark/file" + i), "setup");
+            fileIds[i] = managedFile.fileId();
+            managedFile.release();
+        }
+        handles = new ManagedFileDao.ManagedFile[files];
+        // first acquisition fills caches, so it is not counted as memory of acquisitions
+        acquireEveryFile();
+        releaseEveryFile();
+    }
+
+    @Benchmark
+    public void acquireEveryFile() {
+        for (int i = 0; i < files; i++) {
+            handles[i] = dao.findAndAcquireManagedFileIfExists(fileIds[i], "footprint");
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkFootprint() {
+        if (dao.volatileAcquiredFilesCount() != files) {
+            throw new IllegalStateException("Expected " + files + " acquired files, got "
+                    + dao.volatileAcquiredFilesCount());
+        }
+        final long acquired = usedHeap();
+        releaseEveryFile();
+        final long released = usedHeap();
+        if (dao.volatileAcquiredFilesCount() != 0) {
+            throw new IllegalStateException("Entries were not freed on last release: "
+                    + dao.volatileAcquiredFilesCount());
+        }
+        final long bytesPerFile = (acquired - released) / files;
+        System.out.println("Volatile acquisitions: " + bytesPerFile + " bytes per file");
+        if (bytesPerFile > MAX_BYTES_PER_FILE) {
+            throw new IllegalStateException("Volatile acquisitions use " + bytesPerFile
+                    + " bytes per file, expected at most " + MAX_BYTES_PER_FILE);
+        }
+    }
+
+    private void releaseEveryFile() {
+        for (ManagedFileDao.ManagedFile handle : handles) {
+            handle.release();
+        }
+    }
+
+    /**
+     * Collects garbage until used heap stops shrinking
+     */
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        while (true) {
+            System.gc();
+            final long current = runtime.totalMemory() - runtime.freeMemory();
+            if (current >= used) {
+                return used;
+            }
+            used = current;
+        }
+    }
+}
@@ -39,6 +39,7 @@ import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
 
+import okio.Okio;
 import rx.Observable;
 import rx.functions.Func0;
 
@@ -151,11 +152,11 @@ public class IntentHelper {
     }
 
     @Nonnull
-    private FileResult fileResultFromUri(@Nonnull Uri uri) throws IOException {
+    private FileResult fileResultFromUri(@Nonnull Uri uri, @Nonnull ManagedFile temporaryFile) throws IOException {
         final String type = context.getContentResolver().getType(uri);
 
         if (type != null) {
-            final ManagedFile file = createFileFromUri(uri);
+            final ManagedFile file = createFileFromUri(uri, temporaryFile);
             return fix(new FileResult(file, type, fileNameFromUri(uri)));
         } else { // Check if file exists on sd card. We can get the file without permission for STORAGE
             final File sdCardFile = new File(uri.getPath());
@@ -164,7 +165,7 @@ public class IntentHelper {
                 throw new IOException("File does not exists in content resolver nor on sd card  " + uri);
             }
 
-            return fix(new FileResult(createFileFromFile(sdCardFile), guessMimeType(uri), fileNameFromUri(uri)));
+            return fix(new FileResult(createFileFromFile(sdCardFile, temporaryFile), guessMimeType(uri), fileNameFromUri(uri)));
         }
     }
 
@@ -223,26 +224,43 @@ public class IntentHelper {
     @Nonnull
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
     private List<FileResult> getFilesFromClipData(@Nonnull Intent data) throws IOException {
-        final List<FileResult> fileResult = new ArrayList<>();
+        final List<Uri> uris = new ArrayList<>();
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
             final ClipData clipData = data.getClipData();
             final Uri dataUri = data.getData();
             if (clipData != null) {
                 for (int i = 0; i < clipData.getItemCount(); ++i) {
-                    final Uri uri = clipData.getItemAt(i).getUri();
-                    fileResult.add(fileResultFromUri(uri));
+                    uris.add(clipData.getItemAt(i).getUri());
                 }
             } else if (dataUri != null) {
-                fileResult.add(fileResultFromUri(dataUri));
+                uris.add(dataUri);
             }
         } else {
             final ArrayList<String> dataPreJellyBean = data.getStringArrayListExtra(additionalSourceDataName);
             if (dataPreJellyBean != null && !dataPreJellyBean.isEmpty()) {
                 for (int i = 0; i < dataPreJellyBean.size(); ++i) {
-                    fileResult.add(fileResultFromUri(Uri.parse(dataPreJellyBean.get(i))));
+                    uris.add(Uri.parse(dataPreJellyBean.get(i)));
                 }
             }
         }
+        return fileResultsFromUris(uris);
+    }
+
+    @Nonnull
+    private List<FileResult> fileResultsFromUris(@Nonnull List<Uri> uris) throws IOException {
+        final List<FileResult> fileResult = new ArrayList<>();
+        if (uris.isEmpty()) {
+            return fileResult;
+        }
+        // all files are created and released at once, instead of writing database for every file
+        final List<ManagedFile> temporaryFiles = filesManager.createTemporaryFiles(null, uris.size(), "acquire for write");
+        try {
+            for (int i = 0; i < uris.size(); ++i) {
+                fileResult.add(fileResultFromUri(uris.get(i), temporaryFiles.get(i)));
+            }
+        } finally {
+            filesManager.releaseAll(temporaryFiles);
+        }
         return fileResult;
     }
 
@@ -304,46 +322,31 @@ public class IntentHelper {
     }
 
     @Nonnull
-    private ManagedFile createFileFromUri(@Nonnull Uri uri) throws IOException {
+    private ManagedFile createFileFromUri(@Nonnull Uri uri, @Nonnull ManagedFile temporaryFile) throws IOException {
         final InputStream inputStream = context.getContentResolver().openInputStream(uri);
         if (inputStream == null) {
             throw new IOException("Could not open uri");
         }
         try {
-            return writeToTemporaryFile(inputStream);
+            return writeToTemporaryFile(inputStream, temporaryFile);
         } finally {
             inputStream.close();
         }
     }
 
     @Nonnull
-    private ManagedFile createFileFromFile(@Nonnull File file) throws IOException {
+    private ManagedFile createFileFromFile(@Nonnull File file, @Nonnull ManagedFile temporaryFile) throws IOException {
         final InputStream inputStream = new FileInputStream(file);
         try {
-            return writeToTemporaryFile(inputStream);
+            return writeToTemporaryFile(inputStream, temporaryFile);
         } finally {
             inputStream.close();
         }
     }
 
     @Nonnull
-    private ManagedFile writeToTemporaryFile(@Nonnull InputStream inputStream) throws IOException {
-        final ManagedFile temporaryPrivateFile = createTemporaryPrivateFile();
-        try {
-            final FileOutputStream file = new FileOutputStream(temporaryPrivateFile.file());
-            try {
-                final byte[] buffer = new byte[1000];
-                int read;
-                while ((read = inputStream.read(buffer, 0, buffer.length)) != -1) {
-                    file.write(buffer, 0, read);
-                }
-            } finally {
-                file.close();
-            }
-            return temporaryPrivateFile.newManagedFile("file written temporary");
-        } finally {
-            temporaryPrivateFile.release();
-        }
+    private ManagedFile writeToTemporaryFile(@Nonnull InputStream inputStream, @Nonnull ManagedFile temporaryFile) throws IOException {
+        return filesManager.writeToManagedFile(temporaryFile, Okio.source(inputStream), "file written temporary");
     }
 
     @Nullable
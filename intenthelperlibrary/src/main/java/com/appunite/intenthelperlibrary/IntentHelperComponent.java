@@ -1,5 +1,7 @@
 package com.appunite.intenthelperlibrary;
 
+import com.appunite.intenthelperlibrary.dao.ManagedFileDao;
+
 import javax.annotation.Nonnull;
 import javax.inject.Singleton;
 
@@ -15,4 +17,10 @@ public interface IntentHelperComponent {
     @Nonnull
     IntentHelper intentHelper();
 
+    @Nonnull
+    ManagedFileDao managedFileDao();
+
+    @Nonnull
+    FilesManager filesManager();
+
 }
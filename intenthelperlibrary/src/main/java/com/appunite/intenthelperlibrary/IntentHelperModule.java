@@ -3,6 +3,8 @@ package com.appunite.intenthelperlibrary;
 
 import android.content.Context;
 
+import com.appunite.intenthelperlibrary.dao.JournaledBatchWriter;
+import com.appunite.intenthelperlibrary.dao.ManagedFileDao;
 import com.appunite.keyvalue.KeyValue;
 import com.appunite.keyvalue.driver.level.KeyValueLevel;
 import com.appunite.leveldb.LevelDB;
@@ -84,6 +86,22 @@ class IntentHelperModule {
         }
     }
 
+    @Nonnull
+    @Provides
+    ManagedFileDao.Settings provideManagedFileDaoSettings(@Nonnull JournaledBatchWriter batchWriter) {
+        return ManagedFileDao.Settings.builder()
+                .setBatchWriter(batchWriter)
+                .build();
+    }
+
+    @Nonnull
+    @Provides
+    FilesManager.Settings provideFilesManagerSettings() {
+        return FilesManager.Settings.builder()
+                .setSegmentedDownloadMinSizeInBytes(8 * 1024 * 1024)
+                .build();
+    }
+
     @Nonnull
     @Provides
     KeyValue provideKeyValue(@Nonnull KeyValueLevel impl) {
@@ -1,32 +1,133 @@
 package com.appunite.intenthelperlibrary;
 
 
+import com.appunite.intenthelperlibrary.dao.CacheValidators;
 import com.appunite.intenthelperlibrary.dao.ManagedFileDao;
+import com.appunite.intenthelperlibrary.dao.UrlMapping;
 import com.appunite.intenthelperlibrary.helpers.ShareResult;
+import com.appunite.rx.dagger.NetworkScheduler;
+import com.google.auto.value.AutoValue;
+import com.google.protobuf.ByteString;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.inject.Inject;
+import javax.inject.Singleton;
 
+import okhttp3.CacheControl;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import okio.Buffer;
 import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.HashingSink;
+import okio.HashingSource;
 import okio.Okio;
+import okio.Sink;
+import okio.Source;
 import rx.Observable;
+import rx.Scheduler;
 import rx.functions.Func0;
 import rx.functions.Func1;
 
+@Singleton
 public class FilesManager {
+
+    private static final MediaType DEFAULT_MEDIA_TYPE = MediaType.parse("application/octet-stream");
+    /**
+     * Files are managed right after they are created, so younger files can be still in progress
+     */
+    private static final long ORPHAN_GRACE_PERIOD_IN_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final long SEGMENT_THREAD_KEEP_ALIVE_IN_SECONDS = 60;
+
+    @AutoValue
+    public static abstract class Settings {
+
+        /**
+         * Responses of at least this size are downloaded in {@link #downloadSegmentCount()}
+         * parallel Range requests, 0 disables segmented downloads
+         * <p>
+         * Only responses that declare Accept-Ranges: bytes and have a strong validator
+         * are split, so all segments are guaranteed to come from the same content.
+         */
+        abstract long segmentedDownloadMinSizeInBytes();
+
+        /**
+         * Number of connections used by segmented download
+         */
+        abstract int downloadSegmentCount();
+
+        /**
+         * How long files handed out by share url and {@link #downloadAndStore(String, String)}
+         * are kept, they are never released by their receivers
+         * <p>
+         * Shared file needs to live only until receiving application reads it, so default
+         * is one day. {@link ManagedFileDao#NO_LEASE} keeps files forever.
+         */
+        abstract long leakedFileLeaseInMillis();
+
+        /**
+         * Executor of segments after the first one, first segment is downloaded on calling thread
+         * <p>
+         * By default every FilesManager uses {@link #downloadSegmentCount()} - 1 daemon threads
+         * that stop when idle. Segments never wait for other tasks, so executor can be bounded
+         * and shared.
+         */
+        @Nullable
+        abstract ExecutorService segmentExecutor();
+
+        @Nonnull
+        public static Builder builder() {
+            return new AutoValue_FilesManager_Settings.Builder()
+                    .setSegmentedDownloadMinSizeInBytes(0)
+                    .setDownloadSegmentCount(4)
+                    .setLeakedFileLeaseInMillis(TimeUnit.DAYS.toMillis(1));
+        }
+
+        @AutoValue.Builder
+        public static abstract class Builder {
+
+            @Nonnull
+            public abstract Builder setSegmentedDownloadMinSizeInBytes(long segmentedDownloadMinSizeInBytes);
+
+            @Nonnull
+            public abstract Builder setDownloadSegmentCount(int downloadSegmentCount);
+
+            @Nonnull
+            public abstract Builder setLeakedFileLeaseInMillis(long leakedFileLeaseInMillis);
+
+            @Nonnull
+            public abstract Builder setSegmentExecutor(@Nullable ExecutorService segmentExecutor);
+
+            @Nonnull
+            public abstract Settings build();
+        }
+    }
+
     @Nonnull
     private final FilesHelper filesHelper;
     @Nonnull
@@ -35,16 +136,52 @@ public class FilesManager {
     private final OkHttpClient okHttpClient;
     @Nonnull
     private final ManagedFileDao managedFileDao;
+    @Nonnull
+    private final Scheduler networkScheduler;
+    @Nonnull
+    private final Settings settings;
+    @Nonnull
+    private final SingleFlight<Download> downloads = new SingleFlight<>();
+    @Nonnull
+    private final ExecutorService segmentExecutor;
 
     @Inject
-    FilesManager(@Nonnull FilesHelper filesHelper,
-                 @Nonnull MimeTypeGetter mimeTypeGetter,
-                 @Nonnull OkHttpClient okHttpClient,
-                 @Nonnull ManagedFileDao managedFileDao) {
+    public FilesManager(@Nonnull FilesHelper filesHelper,
+                        @Nonnull MimeTypeGetter mimeTypeGetter,
+                        @Nonnull OkHttpClient okHttpClient,
+                        @Nonnull ManagedFileDao managedFileDao,
+                        @Nonnull @NetworkScheduler Scheduler networkScheduler,
+                        @Nonnull Settings settings) {
         this.filesHelper = filesHelper;
         this.mimeTypeGetter = mimeTypeGetter;
         this.okHttpClient = okHttpClient;
         this.managedFileDao = managedFileDao;
+        this.networkScheduler = networkScheduler;
+        this.settings = settings;
+        final ExecutorService segmentExecutor = settings.segmentExecutor();
+        this.segmentExecutor = segmentExecutor == null
+                ? newSegmentExecutor(Math.max(1, settings.downloadSegmentCount() - 1))
+                : segmentExecutor;
+    }
+
+    /**
+     * Segments are downloaded on own threads, so downloads waiting for their segments
+     * never block threads of network scheduler that segments would need
+     */
+    @Nonnull
+    private static ExecutorService newSegmentExecutor(int threads) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                SEGMENT_THREAD_KEEP_ALIVE_IN_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@Nonnull Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "FilesManagerSegment");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     @Nonnull
@@ -61,47 +198,74 @@ public class FilesManager {
 
             @Nonnull
             ShareResult downloadFileAndGetShareUrl(@Nonnull final String url) throws IOException {
-                final ResponseBody body = downloadBodyFromUrl(url);
+                final Download download = downloadToManagedFile(url, "temporary file - share");
                 try {
-                    final MediaType mediaType = body.contentType();
+                    final MediaType mediaType = download.mediaTypeOrDefault();
                     final String mimeType = mediaType.type() + "/" + mediaType.subtype();
-                    final String extension = mimeTypeGetter.getExtensionFromMediaType(mediaType);
-                    final ManagedFileDao.ManagedFile managedFile = writeToFile(extension, body);
-                    try {
-                        final File leakedFile = managedFile.newRestartManagedFile("leaked share url - " + url).file().getAbsoluteFile();
-                        final String uri = filesHelper.createUriForLocalPrivateFile(leakedFile);
-                        return new ShareResult(uri, mimeType);
-                    } finally {
-                        managedFile.release();
-                    }
+                    final File leakedFile = ManagedFileDao.newRestartManagedFile(download.managedFile,
+                            "leaked share url - " + url, leakedFileLeaseExpirationTimeInMillis()).file().getAbsoluteFile();
+                    final String uri = filesHelper.createUriForLocalPrivateFile(leakedFile);
+                    return new ShareResult(uri, mimeType);
                 } finally {
-                    body.close();
+                    download.managedFile.release();
                 }
             }
         });
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
+    /**
+     * Download file and keep it for {@link Settings#leakedFileLeaseInMillis()}
+     *
+     * @return path of stored file
+     * @throws IOException if could not download file
+     */
+    @Nonnull
     public String downloadAndStore(@Nonnull String id, @Nonnull String url) throws IOException {
-        final ResponseBody responseBody = downloadBodyFromUrl(url);
-        final ManagedFileDao.ManagedFile managedFile = writeToFile(null, responseBody);
+        return downloadAndStore(id, url, leakedFileLeaseExpirationTimeInMillis());
+    }
+
+    private long leakedFileLeaseExpirationTimeInMillis() {
+        final long lease = settings.leakedFileLeaseInMillis();
+        return lease == ManagedFileDao.NO_LEASE ? ManagedFileDao.NO_LEASE : managedFileDao.now() + lease;
+    }
+
+    /**
+     * Download file and keep it until lease expires
+     *
+     * @param leaseExpirationTimeInMillis time by {@link ManagedFileDao#now()} after which file can be
+     *                                    removed or {@link ManagedFileDao#NO_LEASE} to keep it forever
+     * @return path of stored file
+     * @throws IOException if could not download file
+     */
+    @Nonnull
+    public String downloadAndStore(@Nonnull String id, @Nonnull String url, long leaseExpirationTimeInMillis) throws IOException {
+        final ManagedFileDao.ManagedFile managedFile = downloadToManagedFile(url, "temporary file - store").managedFile;
         try {
-            return managedFile.newRestartManagedFile("leaked file - " + id + ", " + url).file().getAbsolutePath();
+            return ManagedFileDao.newRestartManagedFile(managedFile, "leaked file - " + id + ", " + url,
+                    leaseExpirationTimeInMillis).file().getAbsolutePath();
         } finally {
             managedFile.release();
         }
     }
 
+    /**
+     * File is created on writer thread of {@link ManagedFileDao#async()} and emitted on network scheduler
+     */
     @Nonnull
     public Observable<ManagedFileDao.ManagedFile> createTemporaryFileObservable(@Nullable final String extension, final @Nonnull String acquireName) {
         return Observable.defer(new Func0<Observable<ManagedFileDao.ManagedFile>>() {
             @Override
             public Observable<ManagedFileDao.ManagedFile> call() {
+                final File localPrivateDirectory;
                 try {
-                    return Observable.just(createTemporaryFile(extension, acquireName));
+                    localPrivateDirectory = filesHelper.getLocalPrivateDirectory();
                 } catch (IOException e) {
                     return Observable.error(e);
                 }
+                return managedFileDao.async()
+                        .createManagedFile(localPrivateDirectory, extension == null ? null : ("." + extension), acquireName)
+                        // do not continue on the single writer thread of dao
+                        .observeOn(networkScheduler);
             }
         });
     }
@@ -109,8 +273,43 @@ public class FilesManager {
     @Nonnull
     public ManagedFileDao.ManagedFile createTemporaryFile(@Nullable String extension, @Nonnull String acquireName) throws IOException {
         final File localPrivateDirectory = filesHelper.getLocalPrivateDirectory();
-        final File file = File.createTempFile("managed", extension == null ? null : ("." + extension), localPrivateDirectory);
-        return managedFileDao.manageFile(file, acquireName);
+        return managedFileDao.createManagedFile(localPrivateDirectory, extension == null ? null : ("." + extension), acquireName);
+    }
+
+    /**
+     * Create many temporary files at once, i.e. for import of many files
+     *
+     * @see ManagedFileDao#createManagedFiles(File, String, int, String)
+     */
+    @Nonnull
+    public List<ManagedFileDao.ManagedFile> createTemporaryFiles(@Nullable String extension, int count,
+                                                                 @Nonnull String acquireName) throws IOException {
+        final File localPrivateDirectory = filesHelper.getLocalPrivateDirectory();
+        return managedFileDao.createManagedFiles(localPrivateDirectory, extension == null ? null : ("." + extension),
+                count, acquireName);
+    }
+
+    /**
+     * Remove or adopt files from private directory that are not managed
+     * <p>
+     * Work is done on network scheduler, so it can be started during application startup
+     *
+     * @param policy what to do with not managed files
+     * @return observable that emits number of removed or adopted files
+     */
+    @Nonnull
+    public Observable<Integer> reconcileOrphanedFiles(@Nonnull final ManagedFileDao.OrphanPolicy policy) {
+        return Observable.defer(new Func0<Observable<Integer>>() {
+            @Override
+            public Observable<Integer> call() {
+                try {
+                    final List<File> directories = Collections.singletonList(filesHelper.getLocalPrivateDirectory());
+                    return managedFileDao.reconcileOrphanedFiles(directories, policy, ORPHAN_GRACE_PERIOD_IN_MILLIS);
+                } catch (IOException e) {
+                    return Observable.error(e);
+                }
+            }
+        });
     }
 
     @Nonnull
@@ -128,34 +327,592 @@ public class FilesManager {
     }
 
     @Nonnull
-    private ResponseBody downloadBodyFromUrl(@Nonnull String url) throws IOException {
-        final Request request = new Request.Builder()
-                .url(url)
-                .build();
-        final Response response = okHttpClient.newCall(request).execute();
+    private static Request.Builder downloadRequest(@Nonnull String url) {
+        return new Request.Builder()
+                .url(url);
+    }
+
+    /**
+     * Request of part of url content, without transparent compression so offsets of partial
+     * downloads match offsets of Range requests
+     *
+     * @param range      value of Range header, i.e. "bytes=100-"
+     * @param validators validators of already downloaded part, server sends whole content if
+     *                   they do not match
+     */
+    @Nonnull
+    private static Request.Builder rangeRequest(@Nonnull String url,
+                                                @Nonnull String range,
+                                                @Nonnull CacheValidators validators) {
+        return downloadRequest(url)
+                .header("Accept-Encoding", "identity")
+                .header("Range", range)
+                .header("If-Range", ifRangeOf(validators));
+    }
+
+    @Nonnull
+    private Response execute(@Nonnull Request request) throws IOException {
+        return okHttpClient.newCall(request).execute();
+    }
+
+    /**
+     * Download url to new managed file, or acquire file that was already downloaded from it
+     * <p>
+     * Concurrent calls for the same url share one download and one file, every caller gets
+     * its own acquisition.
+     */
+    @Nonnull
+    private Download downloadToManagedFile(@Nonnull final String url, @Nonnull final String acquireName) throws IOException {
+        for (; ; ) {
+            final SingleFlight.Result<Download> result = downloads.execute(url, new SingleFlight.Loader<Download>() {
+                @Nonnull
+                @Override
+                public Download load() throws IOException {
+                    return downloadOrReuse(url, acquireName);
+                }
+            });
+            if (!result.shared()) {
+                return result.value();
+            }
+            final Download shared = result.value();
+            final ManagedFileDao.ManagedFile managedFile = managedFileDao.findAndAcquireManagedFileIfExists(
+                    shared.managedFile.fileId(), acquireName);
+            if (managedFile != null) {
+                return new Download(managedFile, shared.mediaType);
+            }
+            // not mapped file was released and removed before we acquired it, download again
+        }
+    }
 
-        final boolean successful = response.isSuccessful();
-        if (!successful) {
-            throw new IOException("Could not download file");
+    /**
+     * Download url to new managed file, or acquire file that was already downloaded from it
+     * <p>
+     * Downloaded files are mapped by url in
+     * {@link ManagedFileDao#mapUrl(ManagedFileDao.ManagedFile, String, String, CacheValidators)},
+     * so url is downloaded again only after its file is removed or when it changed. Stale file
+     * is revalidated with conditional request and used if server responds 304 Not Modified.
+     */
+    @Nonnull
+    private Download downloadOrReuse(@Nonnull String url, @Nonnull String acquireName) throws IOException {
+        final UrlMapping cached = managedFileDao.findUrlMapping(url);
+        if (cached != null) {
+            final ManagedFileDao.ManagedFile managedFile = managedFileDao.findAndAcquireManagedFileIfExists(cached.fileId(), acquireName);
+            if (managedFile != null) {
+                if (!cached.isComplete()) {
+                    return resume(cached, managedFile, acquireName);
+                }
+                final CacheValidators validators = cached.validators();
+                if (validators.isFresh(managedFileDao.now())) {
+                    return new Download(managedFile, parseMediaType(cached.contentType()));
+                }
+                if (validators.canRevalidate()) {
+                    return revalidate(cached, managedFile, acquireName);
+                }
+                managedFile.release();
+            }
+            // file was removed or can not be revalidated, download again
+        }
+        return store(url, execute(downloadRequest(url).build()), acquireName);
+    }
+
+    /**
+     * @param managedFile acquired file of mapping, returned or released by this method
+     */
+    @Nonnull
+    private Download revalidate(@Nonnull UrlMapping cached,
+                                @Nonnull ManagedFileDao.ManagedFile managedFile,
+                                @Nonnull String acquireName) throws IOException {
+        final CacheValidators validators = cached.validators();
+        final Request.Builder request = downloadRequest(cached.url());
+        if (validators.etag() != null) {
+            request.header("If-None-Match", validators.etag());
+        }
+        if (validators.lastModified() != null) {
+            request.header("If-Modified-Since", validators.lastModified());
+        }
+        final Response response;
+        try {
+            response = execute(request.build());
+            if (response.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                response.body().close();
+                managedFileDao.mapUrl(managedFile, cached.url(), cached.contentType(),
+                        validatorsOf(response, managedFileDao.now(), validators));
+                return new Download(managedFile, parseMediaType(cached.contentType()));
+            }
+        } catch (IOException | RuntimeException e) {
+            managedFile.release();
+            throw e;
         }
-        return response.body();
+        managedFile.release();
+        return store(cached.url(), response, acquireName);
     }
 
+    /**
+     * Write response to new managed file and map it by url, response is closed
+     * <p>
+     * If response can be resumed and transfer fails, written bytes are kept and mapped
+     * as partial download. Large responses are split into parallel Range requests,
+     * see {@link Settings#segmentedDownloadMinSizeInBytes()}.
+     */
     @Nonnull
-    private ManagedFileDao.ManagedFile writeToFile(@Nullable String extension, @Nonnull ResponseBody body) throws IOException {
-        final ManagedFileDao.ManagedFile managedFile = createTemporaryFile(extension, "acquire for download share");
+    private Download store(@Nonnull String url, @Nonnull Response response, @Nonnull String acquireName) throws IOException {
+        final ResponseBody body = response.body();
         try {
-            final BufferedSink sink = Okio.buffer(Okio.sink(managedFile.file()));
+            if (!response.isSuccessful()) {
+                throw new IOException("Could not download file");
+            }
+            final MediaType mediaType = body.contentType();
+            final String contentType = mediaType == null ? null : mediaType.toString();
+            final String extension = mediaType == null ? null : mimeTypeGetter.getExtensionFromMediaType(mediaType);
+            final CacheValidators validators = validatorsOf(response, managedFileDao.now(), null);
+            final boolean cacheable = !response.cacheControl().noStore();
+            final ManagedFileDao.ManagedFile target = createTemporaryFile(extension, "acquire for write");
             try {
-                sink.writeAll(body.source());
-                sink.flush();
-                return managedFile.newManagedFile("temporary file - written");
+                final PartialDownload partial = cacheable && isResumable(response)
+                        ? new PartialDownload(url, contentType, validators)
+                        : null;
+                final ByteString contentHash;
+                if (isSegmentable(response, body.contentLength())) {
+                    writeSegments(target, url, body.source(), body.contentLength(), validators, partial);
+                    contentHash = null;
+                } else {
+                    contentHash = writeBody(target, body.source(), false, partial);
+                }
+                return complete(target, contentHash, cacheable ? url : null, contentType, validators, acquireName);
             } finally {
-                sink.close();
+                target.release();
+            }
+        } finally {
+            body.close();
+        }
+    }
+
+    /**
+     * Continue interrupted download with Range request
+     * <p>
+     * If-Range makes server send whole content if it changed since partial download, then
+     * it is downloaded to a new file.
+     *
+     * @param managedFile acquired partial file of mapping, released by this method
+     */
+    @Nonnull
+    private Download resume(@Nonnull UrlMapping partial,
+                            @Nonnull ManagedFileDao.ManagedFile managedFile,
+                            @Nonnull String acquireName) throws IOException {
+        final String url = partial.url();
+        final CacheValidators validators = partial.validators();
+        final long offset = partial.partialSizeInBytes();
+        Response response;
+        try {
+            final File file = managedFile.file();
+            if (file.length() < offset) {
+                // partial file is damaged
+                managedFileDao.unmapUrl(managedFile, url);
+                return store(url, execute(downloadRequest(url).build()), acquireName);
+            }
+            truncate(file, offset);
+            response = execute(rangeRequest(url, "bytes=" + offset + "-", validators).build());
+            if (response.code() == HttpURLConnection.HTTP_PARTIAL && rangeStartOf(response) == offset) {
+                final ResponseBody body = response.body();
+                try {
+                    final CacheValidators updated = validatorsOf(response, managedFileDao.now(), validators);
+                    writeBody(managedFile, body.source(), true, new PartialDownload(url, partial.contentType(), updated));
+                    return complete(managedFile, null, url, partial.contentType(), updated, acquireName);
+                } finally {
+                    body.close();
+                }
+            }
+            if (response.code() != HttpURLConnection.HTTP_OK) {
+                // i.e. 416 Range Not Satisfiable or wrong range, partial file can not be continued
+                response.body().close();
+                managedFileDao.unmapUrl(managedFile, url);
+                response = null;
             }
         } finally {
             managedFile.release();
         }
+        if (response == null) {
+            return store(url, execute(downloadRequest(url).build()), acquireName);
+        }
+        // content changed or server does not support ranges, whole content is sent
+        return store(url, response, acquireName);
+    }
+
+    /**
+     * Write source to managed file, on failure written bytes are mapped as partial download
+     *
+     * @param append  append to already written bytes
+     * @param partial mapping of partial download or null if download can not be resumed
+     * @return hash of content if deduplication is enabled and it could be computed while writing
+     */
+    @Nullable
+    private ByteString writeBody(@Nonnull ManagedFileDao.ManagedFile managedFile,
+                                 @Nonnull Source source,
+                                 boolean append,
+                                 @Nullable PartialDownload partial) throws IOException {
+        final File file = managedFile.file();
+        final Sink fileSink = append ? Okio.appendingSink(file) : Okio.sink(file);
+        final HashingSink hashingSink = !append && managedFileDao.isContentDeduplicationEnabled()
+                ? HashingSink.sha256(fileSink)
+                : null;
+        try {
+            writeAll(hashingSink == null ? fileSink : hashingSink, source);
+        } catch (IOException e) {
+            // sink is closed, so everything received is in file
+            if (partial != null && file.length() > 0) {
+                managedFileDao.mapPartialUrl(managedFile, partial.url, partial.contentType, partial.validators, file.length());
+            }
+            throw e;
+        }
+        return hashingSink == null ? null : ByteString.copyFrom(hashingSink.hash().toByteArray());
+    }
+
+    /**
+     * Write content in parallel segments, each segment is written at its offset of preallocated file
+     * <p>
+     * First segment is read from already received response on calling thread, others are
+     * requested with Range and If-Range on segment threads. On failure the longest fully written prefix
+     * is mapped as partial download, so it can be resumed as usual.
+     *
+     * @param source  content of response, only first segment is read from it
+     * @param partial mapping of partial download or null if download can not be resumed
+     */
+    private void writeSegments(@Nonnull ManagedFileDao.ManagedFile managedFile,
+                               @Nonnull final String url,
+                               @Nonnull final BufferedSource source,
+                               long contentLength,
+                               @Nonnull final CacheValidators validators,
+                               @Nullable PartialDownload partial) throws IOException {
+        final File file = managedFile.file();
+        final RandomAccessFile preallocated = new RandomAccessFile(file, "rw");
+        try {
+            preallocated.setLength(contentLength);
+        } finally {
+            preallocated.close();
+        }
+        final int count = (int) Math.min(settings.downloadSegmentCount(), contentLength);
+        final List<Segment> segments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            segments.add(new Segment(contentLength * i / count, contentLength * (i + 1) / count));
+        }
+        final List<Future<?>> downloads = new ArrayList<>(count - 1);
+        for (final Segment segment : segments.subList(1, count)) {
+            downloads.add(segmentExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        downloadSegment(file, segment, url, validators);
+                    } catch (IOException e) {
+                        segment.failure = e;
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            writeSegment(file, segments.get(0), source);
+        } catch (IOException e) {
+            segments.get(0).failure = e;
+        }
+        awaitSegments(downloads);
+
+        long writtenPrefix = 0;
+        for (Segment segment : segments) {
+            writtenPrefix = segment.start + segment.written;
+            final IOException failure = segment.failure;
+            if (failure != null) {
+                if (partial != null && writtenPrefix > 0) {
+                    truncate(file, writtenPrefix);
+                    managedFileDao.mapPartialUrl(managedFile, partial.url, partial.contentType, partial.validators,
+                            writtenPrefix);
+                }
+                throw failure;
+            }
+        }
+    }
+
+    private static void awaitSegments(@Nonnull List<Future<?>> downloads) throws IOException {
+        try {
+            for (Future<?> download : downloads) {
+                download.get();
+            }
+        } catch (InterruptedException e) {
+            for (Future<?> download : downloads) {
+                download.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for segments");
+        } catch (ExecutionException e) {
+            // segment failures are kept in segments, so it is a bug
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void downloadSegment(@Nonnull File file,
+                                 @Nonnull Segment segment,
+                                 @Nonnull String url,
+                                 @Nonnull CacheValidators validators) throws IOException {
+        final Response response = execute(rangeRequest(url, "bytes=" + segment.start + "-" + (segment.end - 1), validators)
+                .build());
+        final ResponseBody body = response.body();
+        try {
+            if (response.code() != HttpURLConnection.HTTP_PARTIAL || rangeStartOf(response) != segment.start) {
+                // content changed since first response
+                throw new IOException("Server did not return requested range");
+            }
+            writeSegment(file, segment, body.source());
+        } finally {
+            body.close();
+        }
+    }
+
+    private static void writeSegment(@Nonnull File file,
+                                     @Nonnull Segment segment,
+                                     @Nonnull BufferedSource source) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.seek(segment.start);
+            final byte[] buffer = new byte[8192];
+            final long length = segment.end - segment.start;
+            while (segment.written < length) {
+                final int read = source.read(buffer, 0, (int) Math.min(buffer.length, length - segment.written));
+                if (read == -1) {
+                    throw new EOFException("Response ended before end of segment");
+                }
+                randomAccessFile.write(buffer, 0, read);
+                segment.written += read;
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Response is split only if all segments can be requested with If-Range,
+     * so they can not mix different contents
+     */
+    private boolean isSegmentable(@Nonnull Response response, long contentLength) {
+        final long minSize = settings.segmentedDownloadMinSizeInBytes();
+        return minSize > 0
+                && settings.downloadSegmentCount() > 1
+                && contentLength >= minSize
+                && response.code() == HttpURLConnection.HTTP_OK
+                && "bytes".equalsIgnoreCase(response.header("Accept-Ranges"))
+                && isResumable(response);
+    }
+
+    /**
+     * Acquire completely written file for caller and map it by url
+     *
+     * @param contentHash hash of content or null if it need to be computed
+     * @param url         url to map or null if response can not be cached
+     */
+    @Nonnull
+    private Download complete(@Nonnull ManagedFileDao.ManagedFile written,
+                              @Nullable ByteString contentHash,
+                              @Nullable String url,
+                              @Nullable String contentType,
+                              @Nonnull CacheValidators validators,
+                              @Nonnull String acquireName) throws IOException {
+        final ManagedFileDao.ManagedFile managedFile;
+        if (managedFileDao.isContentDeduplicationEnabled()) {
+            managedFile = managedFileDao.deduplicate(written,
+                    contentHash == null ? sha256(written.file()) : contentHash, acquireName);
+        } else {
+            managedFile = written.newManagedFile(acquireName);
+        }
+        if (url != null) {
+            try {
+                managedFileDao.mapUrl(managedFile, url, contentType, validators);
+            } catch (RuntimeException e) {
+                managedFile.release();
+                throw e;
+            }
+        }
+        return new Download(managedFile, parseMediaType(contentType));
+    }
+
+    /**
+     * Download can be resumed with If-Range only if it has strong validator, server
+     * does not reject ranges and body is not compressed, so offsets in file are offsets
+     * of Range requests
+     */
+    private static boolean isResumable(@Nonnull Response response) {
+        if ("none".equalsIgnoreCase(response.header("Accept-Ranges"))) {
+            return false;
+        }
+        // transparent decompression removes Content-Encoding only from response passed to us
+        final Response networkResponse = response.networkResponse();
+        final String encoding = (networkResponse == null ? response : networkResponse).header("Content-Encoding");
+        if (encoding != null && !"identity".equalsIgnoreCase(encoding)) {
+            return false;
+        }
+        final String etag = response.header("ETag");
+        return (etag != null && !etag.startsWith("W/")) || response.header("Last-Modified") != null;
+    }
+
+    @Nonnull
+    private static String ifRangeOf(@Nonnull CacheValidators validators) {
+        final String etag = validators.etag();
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        final String lastModified = validators.lastModified();
+        if (lastModified == null) {
+            throw new IllegalStateException("Partial download without validator");
+        }
+        return lastModified;
+    }
+
+    /**
+     * @return first byte of Content-Range of response or -1 if it is missing
+     */
+    private static long rangeStartOf(@Nonnull Response response) {
+        // i.e. "bytes 100-199/200"
+        final String contentRange = response.header("Content-Range");
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        final int dash = contentRange.indexOf('-');
+        if (dash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void truncate(@Nonnull File file, long length) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    @Nonnull
+    private static ByteString sha256(@Nonnull File file) throws IOException {
+        final HashingSource source = HashingSource.sha256(Okio.source(file));
+        try {
+            final Buffer buffer = new Buffer();
+            while (source.read(buffer, 8192) != -1) {
+                buffer.clear();
+            }
+        } finally {
+            source.close();
+        }
+        return ByteString.copyFrom(source.hash().toByteArray());
+    }
+
+    /**
+     * Validators and freshness of response
+     * <p>
+     * Response with validators but without freshness is revalidated every time. Response without
+     * both is not revalidated, so it is downloaded again only after its file is removed.
+     *
+     * @param previous validators of revalidated content, updated by 304 response
+     */
+    @Nonnull
+    private static CacheValidators validatorsOf(@Nonnull Response response, long nowInMillis,
+                                                @Nullable CacheValidators previous) {
+        String etag = response.header("ETag");
+        String lastModified = response.header("Last-Modified");
+        if (previous != null) {
+            etag = etag == null ? previous.etag() : etag;
+            lastModified = lastModified == null ? previous.lastModified() : lastModified;
+        }
+        final CacheControl cacheControl = response.cacheControl();
+        final Date expires = response.headers().getDate("Expires");
+        final long freshUntilInMillis;
+        if (cacheControl.noCache()) {
+            freshUntilInMillis = 0;
+        } else if (cacheControl.maxAgeSeconds() >= 0) {
+            freshUntilInMillis = nowInMillis + TimeUnit.SECONDS.toMillis(cacheControl.maxAgeSeconds());
+        } else if (expires != null) {
+            freshUntilInMillis = expires.getTime();
+        } else if (etag != null || lastModified != null) {
+            freshUntilInMillis = 0;
+        } else {
+            freshUntilInMillis = CacheValidators.ALWAYS_FRESH;
+        }
+        return CacheValidators.create(etag, lastModified, freshUntilInMillis);
+    }
+
+    @Nullable
+    private static MediaType parseMediaType(@Nullable String contentType) {
+        return contentType == null ? null : MediaType.parse(contentType);
+    }
+
+    /**
+     * Write source to new temporary managed file
+     * <p>
+     * If content deduplication is enabled, file with the same content is returned instead
+     * of a new one when it already exists.
+     *
+     * @param extension   file extension or null
+     * @param source      content of file, not closed by this method
+     * @param acquireName acquire name of returned file - for debugging
+     * @return acquired file with content
+     * @throws IOException if could not write file
+     */
+    @Nonnull
+    public ManagedFileDao.ManagedFile writeToTemporaryFile(@Nullable String extension,
+                                                           @Nonnull Source source,
+                                                           @Nonnull String acquireName) throws IOException {
+        final ManagedFileDao.ManagedFile managedFile = createTemporaryFile(extension, "acquire for write");
+        try {
+            return writeToManagedFile(managedFile, source, acquireName);
+        } finally {
+            managedFile.release();
+        }
+    }
+
+    /**
+     * Write source to managed file, i.e. one of {@link #createTemporaryFiles(String, int, String)}
+     * <p>
+     * If content deduplication is enabled, file with the same content is returned instead
+     * when it already exists.
+     *
+     * @param managedFile file to write, not released by this method
+     * @param source      content of file, not closed by this method
+     * @param acquireName acquire name of returned file - for debugging
+     * @return acquired file with content
+     * @throws IOException if could not write file
+     */
+    @Nonnull
+    public ManagedFileDao.ManagedFile writeToManagedFile(@Nonnull ManagedFileDao.ManagedFile managedFile,
+                                                         @Nonnull Source source,
+                                                         @Nonnull String acquireName) throws IOException {
+        if (!managedFileDao.isContentDeduplicationEnabled()) {
+            writeAll(Okio.sink(managedFile.file()), source);
+            return managedFile.newManagedFile(acquireName);
+        }
+        final HashingSink hashingSink = HashingSink.sha256(Okio.sink(managedFile.file()));
+        writeAll(hashingSink, source);
+        final ByteString contentHash = ByteString.copyFrom(hashingSink.hash().toByteArray());
+        return managedFileDao.deduplicate(managedFile, contentHash, acquireName);
+    }
+
+    /**
+     * Release many managed files at once
+     *
+     * @see ManagedFileDao#releaseAll(List)
+     */
+    public void releaseAll(@Nonnull List<? extends ManagedFileDao.ManagedFile> managedFiles) {
+        managedFileDao.releaseAll(managedFiles);
+    }
+
+    private static void writeAll(@Nonnull Sink fileSink, @Nonnull Source source) throws IOException {
+        final BufferedSink sink = Okio.buffer(fileSink);
+        try {
+            sink.writeAll(source);
+            sink.flush();
+        } finally {
+            sink.close();
+        }
     }
 
     @Nonnull
@@ -190,26 +947,31 @@ public class FilesManager {
 
             @Nonnull
             File downloadFileAndReturnIt(@Nonnull String url) throws IOException {
-                final ResponseBody body = downloadBodyFromUrl(url);
+                final Download download = downloadToManagedFile(url, "temporary file - copy to public");
                 try {
-                    final MediaType mediaType = body.contentType();
+                    final MediaType mediaType = download.mediaTypeOrDefault();
                     final String extension = mimeTypeGetter.getExtensionFromMediaType(mediaType);
                     final File file = createTemporaryFile(filesHelper.getExternalStoragePublicDirectory(mediaType), extension);
-                    writeToFileOrDeleteAndThrow(file, body);
+                    final Source source = Okio.source(download.managedFile.file());
+                    try {
+                        writeToFileOrDeleteAndThrow(file, source);
+                    } finally {
+                        source.close();
+                    }
                     return file;
                 } finally {
-                    body.close();
+                    download.managedFile.release();
                 }
             }
         });
     }
 
 
-    private void writeToFileOrDeleteAndThrow(@Nonnull File file, @Nonnull ResponseBody body) throws IOException {
+    private void writeToFileOrDeleteAndThrow(@Nonnull File file, @Nonnull Source source) throws IOException {
         try {
             final BufferedSink sink = Okio.buffer(Okio.sink(file));
             try {
-                sink.writeAll(body.source());
+                sink.writeAll(source);
             } finally {
                 sink.close();
             }
@@ -234,4 +996,56 @@ public class FilesManager {
         final String timeStamp = timestampFormat.format(new Date());
         return "TMP_" + timeStamp + "_";
     }
+
+    private static class PartialDownload {
+        @Nonnull
+        private final String url;
+        @Nullable
+        private final String contentType;
+        @Nonnull
+        private final CacheValidators validators;
+
+        PartialDownload(@Nonnull String url, @Nullable String contentType, @Nonnull CacheValidators validators) {
+            this.url = url;
+            this.contentType = contentType;
+            this.validators = validators;
+        }
+    }
+
+    /**
+     * Byte range [start, end) of segmented download, written and failure are set by thread
+     * that downloads segment and read after all segments finish
+     */
+    private static class Segment {
+        private final long start;
+        private final long end;
+        private long written;
+        @Nullable
+        private IOException failure;
+
+        Segment(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static class Download {
+        @Nonnull
+        private final ManagedFileDao.ManagedFile managedFile;
+        @Nullable
+        private final MediaType mediaType;
+
+        Download(@Nonnull ManagedFileDao.ManagedFile managedFile, @Nullable MediaType mediaType) {
+            this.managedFile = managedFile;
+            this.mediaType = mediaType;
+        }
+
+        /**
+         * Server or cached response could have no content type, then file is treated as binary
+         */
+        @Nonnull
+        MediaType mediaTypeOrDefault() {
+            return mediaType == null ? DEFAULT_MEDIA_TYPE : mediaType;
+        }
+    }
 }
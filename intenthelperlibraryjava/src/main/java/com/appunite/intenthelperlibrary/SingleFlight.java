@@ -0,0 +1,122 @@
+package com.appunite.intenthelperlibrary;
+
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Joins concurrent loads of the same key, so only one of them is executed
+ * <p>
+ * First caller for a key loads value, callers that come while it is in progress wait for it
+ * and receive the same value. Value is not kept after load finishes.
+ */
+class SingleFlight<T> {
+
+    interface Loader<T> {
+        @Nonnull
+        T load() throws IOException;
+    }
+
+    static class Result<T> {
+        @Nonnull
+        private final T value;
+        private final boolean shared;
+
+        Result(@Nonnull T value, boolean shared) {
+            this.value = value;
+            this.shared = shared;
+        }
+
+        @Nonnull
+        T value() {
+            return value;
+        }
+
+        /**
+         * @return true if value was loaded by other caller
+         */
+        boolean shared() {
+            return shared;
+        }
+    }
+
+    @Nonnull
+    private final ConcurrentHashMap<String, Flight<T>> flights = new ConcurrentHashMap<>();
+
+    @Nonnull
+    Result<T> execute(@Nonnull String key, @Nonnull Loader<T> loader) throws IOException {
+        final Flight<T> flight = new Flight<>();
+        final Flight<T> inProgress = flights.putIfAbsent(key, flight);
+        if (inProgress != null) {
+            return new Result<>(inProgress.await(), true);
+        }
+        try {
+            final T value = loader.load();
+            flight.complete(value, null);
+            return new Result<>(value, false);
+        } catch (IOException | RuntimeException | Error e) {
+            flight.complete(null, e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * Number of loads in progress
+     */
+    int inFlightCount() {
+        return flights.size();
+    }
+
+    /**
+     * Number of callers that joined load of key in progress and wait for it
+     */
+    int waitingCount(@Nonnull String key) {
+        final Flight<T> flight = flights.get(key);
+        return flight == null ? 0 : flight.waiting.get();
+    }
+
+    private static class Flight<T> {
+        @Nonnull
+        private final CountDownLatch done = new CountDownLatch(1);
+        @Nonnull
+        private final AtomicInteger waiting = new AtomicInteger();
+        @Nullable
+        private volatile T value;
+        @Nullable
+        private volatile Throwable error;
+
+        void complete(@Nullable T value, @Nullable Throwable error) {
+            this.value = value;
+            this.error = error;
+            done.countDown();
+        }
+
+        @Nonnull
+        T await() throws IOException {
+            waiting.incrementAndGet();
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for shared load");
+            }
+            final Throwable error = this.error;
+            if (error instanceof IOException) {
+                throw new IOException("Shared load failed", error);
+            }
+            if (error != null) {
+                throw new RuntimeException("Shared load failed", error);
+            }
+            //noinspection ConstantConditions
+            return value;
+        }
+    }
+}
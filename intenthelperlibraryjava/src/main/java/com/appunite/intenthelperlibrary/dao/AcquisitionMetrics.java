@@ -0,0 +1,207 @@
+package com.appunite.intenthelperlibrary.dao;
+
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Counters of acquisitions and releases of managed files.
+ * <p>
+ * Recording is lock-free and does not allocate, except the first acquisition with a new
+ * acquire name and names that need to be normalized. Urls and numbers in names are replaced
+ * by {@link #URL_PLACEHOLDER} and {@link #NUMBER_PLACEHOLDER}, so names built from the same
+ * template are counted together. Only {@link #MAX_TRACKED_NAMES} names are counted separately,
+ * the rest is counted as {@link #OTHER_NAMES}.
+ * <p>
+ * Hold time histogram has {@link #HOLD_TIME_BUCKETS} buckets, bucket 0 counts releases held
+ * shorter than 1 millisecond and bucket i counts releases held from 2^(i-1) to 2^i - 1 milliseconds,
+ * the last bucket counts also everything longer.
+ */
+public class AcquisitionMetrics {
+
+    public static final int HOLD_TIME_BUCKETS = 40;
+    public static final int MAX_TRACKED_NAMES = 256;
+    public static final String OTHER_NAMES = "<other>";
+    public static final String URL_PLACEHOLDER = "<url>";
+    public static final String NUMBER_PLACEHOLDER = "#";
+    /**
+     * Hold time of acquisitions stored before acquire time was recorded
+     */
+    static final long UNKNOWN_HOLD_TIME = -1L;
+
+    public enum Kind {
+        VOLATILE,
+        RESTART
+    }
+
+    private final boolean enabled;
+    @Nonnull
+    private final AtomicLongArray acquires = new AtomicLongArray(Kind.values().length);
+    @Nonnull
+    private final AtomicLongArray releases = new AtomicLongArray(Kind.values().length);
+    @Nonnull
+    private final AtomicLongArray holdTimes = new AtomicLongArray(Kind.values().length * HOLD_TIME_BUCKETS);
+    @Nonnull
+    private final ConcurrentHashMap<String, AtomicLong> acquiresByName = new ConcurrentHashMap<>();
+    @Nonnull
+    private final AtomicLong otherNames = new AtomicLong();
+
+    AcquisitionMetrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    void recordAcquire(@Nonnull Kind kind, @Nonnull String acquireName) {
+        if (!enabled) {
+            return;
+        }
+        acquires.incrementAndGet(kind.ordinal());
+        counterFor(normalizeName(acquireName)).incrementAndGet();
+    }
+
+    void recordRelease(@Nonnull Kind kind, long holdTimeInMillis) {
+        if (!enabled) {
+            return;
+        }
+        releases.incrementAndGet(kind.ordinal());
+        if (holdTimeInMillis == UNKNOWN_HOLD_TIME) {
+            return;
+        }
+        holdTimes.incrementAndGet(kind.ordinal() * HOLD_TIME_BUCKETS + bucketFor(holdTimeInMillis));
+    }
+
+    @Nonnull
+    private AtomicLong counterFor(@Nonnull String acquireName) {
+        final AtomicLong counter = acquiresByName.get(acquireName);
+        if (counter != null) {
+            return counter;
+        }
+        if (acquiresByName.size() >= MAX_TRACKED_NAMES) {
+            return otherNames;
+        }
+        final AtomicLong newCounter = new AtomicLong();
+        final AtomicLong previous = acquiresByName.putIfAbsent(acquireName, newCounter);
+        return previous == null ? newCounter : previous;
+    }
+
+    /**
+     * Replace words of name that are urls or contain digits by placeholders, words are
+     * separated by whitespace or comma
+     */
+    @Nonnull
+    static String normalizeName(@Nonnull String acquireName) {
+        if (!hasDigit(acquireName, 0, acquireName.length()) && !acquireName.contains("://")) {
+            return acquireName;
+        }
+        final StringBuilder builder = new StringBuilder(acquireName.length());
+        int wordStart = 0;
+        for (int i = 0; i <= acquireName.length(); i++) {
+            if (i < acquireName.length() && !isSeparator(acquireName.charAt(i))) {
+                continue;
+            }
+            if (isUrl(acquireName, wordStart, i)) {
+                builder.append(URL_PLACEHOLDER);
+            } else if (hasDigit(acquireName, wordStart, i)) {
+                builder.append(NUMBER_PLACEHOLDER);
+            } else {
+                builder.append(acquireName, wordStart, i);
+            }
+            if (i < acquireName.length()) {
+                builder.append(acquireName.charAt(i));
+            }
+            wordStart = i + 1;
+        }
+        return builder.toString();
+    }
+
+    private static boolean isSeparator(char c) {
+        return Character.isWhitespace(c) || c == ',';
+    }
+
+    private static boolean isUrl(@Nonnull String name, int start, int end) {
+        final int schemeEnd = name.indexOf("://", start);
+        return schemeEnd > start && schemeEnd + 3 <= end;
+    }
+
+    private static boolean hasDigit(@Nonnull String name, int start, int end) {
+        for (int i = start; i < end; i++) {
+            final char c = name.charAt(i);
+            if (c >= '0' && c <= '9') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static int bucketFor(long holdTimeInMillis) {
+        if (holdTimeInMillis <= 0) {
+            return 0;
+        }
+        return Math.min(HOLD_TIME_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(holdTimeInMillis));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long acquires(@Nonnull Kind kind) {
+        return acquires.get(kind.ordinal());
+    }
+
+    public long releases(@Nonnull Kind kind) {
+        return releases.get(kind.ordinal());
+    }
+
+    /**
+     * Number of handles acquired and not released since process start.
+     * <p>
+     * Restart acquisitions survive restarts, so for {@link Kind#RESTART} it can be negative
+     * when acquisitions from previous process are released.
+     */
+    public long live(@Nonnull Kind kind) {
+        return acquires(kind) - releases(kind);
+    }
+
+    /**
+     * @return copy of hold time histogram, see {@link AcquisitionMetrics} for buckets
+     */
+    @Nonnull
+    public long[] holdTimeHistogram(@Nonnull Kind kind) {
+        final long[] histogram = new long[HOLD_TIME_BUCKETS];
+        final int offset = kind.ordinal() * HOLD_TIME_BUCKETS;
+        for (int i = 0; i < HOLD_TIME_BUCKETS; i++) {
+            histogram[i] = holdTimes.get(offset + i);
+        }
+        return histogram;
+    }
+
+    /**
+     * @return copy of number of acquisitions by acquire name
+     */
+    @Nonnull
+    public Map<String, Long> acquiresByName() {
+        final Map<String, Long> result = new HashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : acquiresByName.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        final long other = otherNames.get();
+        if (other > 0) {
+            result.put(OTHER_NAMES, other);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "AcquisitionMetrics{" +
+                "volatileAcquires=" + acquires(Kind.VOLATILE) +
+                ", volatileReleases=" + releases(Kind.VOLATILE) +
+                ", restartAcquires=" + acquires(Kind.RESTART) +
+                ", restartReleases=" + releases(Kind.RESTART) +
+                '}';
+    }
+}
@@ -0,0 +1,357 @@
+package com.appunite.intenthelperlibrary.dao;
+
+
+import com.google.protobuf.ByteString;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import rx.Observable;
+import rx.Subscriber;
+
+/**
+ * Asynchronous access to {@link ManagedFileDao}
+ * <p>
+ * Every operation is executed on one writer thread when observable is subscribed. Operations
+ * queued at the same time are executed together and their writes are stored in one batch,
+ * so under burst load database is written much less often. Result is emitted, on the writer
+ * thread, only after writes of the operation are stored, use
+ * {@link Observable#observeOn(rx.Scheduler)} to continue on other thread.
+ * <p>
+ * If writes of operations can not be stored, they are discarded and operations fail. Files
+ * acquired by operations that failed or that were unsubscribed before result was emitted are
+ * released, so they do not leak.
+ * <p>
+ * Blocking methods of {@link ManagedFileDao} can be used together with this class,
+ * they see writes of queued operations.
+ */
+public class AsyncManagedFileDao {
+
+    static final int MAX_OPERATIONS_PER_BATCH = 64;
+
+    @Nonnull
+    private final ManagedFileDao managedFileDao;
+    @Nonnull
+    private final WriteCoalescer writeCoalescer;
+    @Nonnull
+    private final Executor writer;
+    @Nonnull
+    private final ConcurrentLinkedQueue<Operation<?>> queue = new ConcurrentLinkedQueue<>();
+    @Nonnull
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    @Nonnull
+    private final Runnable drainer = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                drain();
+            } finally {
+                drainScheduled.set(false);
+                if (!queue.isEmpty()) {
+                    scheduleDrain();
+                }
+            }
+        }
+    };
+
+    AsyncManagedFileDao(@Nonnull ManagedFileDao managedFileDao,
+                        @Nonnull WriteCoalescer writeCoalescer,
+                        @Nonnull Executor writer) {
+        this.managedFileDao = managedFileDao;
+        this.writeCoalescer = writeCoalescer;
+        this.writer = writer;
+    }
+
+    @Nonnull
+    static ExecutorService newWriterExecutor() {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@Nonnull Runnable runnable) {
+                final Thread thread = new Thread(runnable, "ManagedFileDaoWriter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @see ManagedFileDao#manageFile(File, String)
+     */
+    @Nonnull
+    public Observable<ManagedFileDao.ManagedFile> manageFile(@Nonnull final File file, @Nonnull final String acquireName) {
+        return submitAcquire(new Callable<ManagedFileDao.ManagedFile>() {
+            @Override
+            public ManagedFileDao.ManagedFile call() throws Exception {
+                return managedFileDao.manageFile(file, acquireName);
+            }
+        });
+    }
+
+    /**
+     * @see ManagedFileDao#manageFile(File, String, long)
+     */
+    @Nonnull
+    public Observable<ManagedFileDao.ManagedFile> manageFile(@Nonnull final File file,
+                                                            @Nonnull final String acquireName,
+                                                            final long expirationTimeInMillis) {
+        return submitAcquire(new Callable<ManagedFileDao.ManagedFile>() {
+            @Override
+            public ManagedFileDao.ManagedFile call() throws Exception {
+                return managedFileDao.manageFile(file, acquireName, expirationTimeInMillis);
+            }
+        });
+    }
+
+    /**
+     * @see ManagedFileDao#createManagedFile(File, String, String)
+     */
+    @Nonnull
+    public Observable<ManagedFileDao.ManagedFile> createManagedFile(@Nonnull final File directory,
+                                                                   @Nullable final String suffix,
+                                                                   @Nonnull final String acquireName) {
+        return submitAcquire(new Callable<ManagedFileDao.ManagedFile>() {
+            @Override
+            public ManagedFileDao.ManagedFile call() throws Exception {
+                return managedFileDao.createManagedFile(directory, suffix, acquireName);
+            }
+        });
+    }
+
+    /**
+     * @return acquired file, or completes without items if file does not exist
+     * @see ManagedFileDao#findAndAcquireManagedFileIfExists(ByteString, String)
+     */
+    @Nonnull
+    public Observable<ManagedFileDao.ManagedFile> findAndAcquireManagedFileIfExists(@Nonnull final ByteString fileId,
+                                                                                   @Nonnull final String acquireName) {
+        return submitAcquire(new Callable<ManagedFileDao.ManagedFile>() {
+            @Override
+            public ManagedFileDao.ManagedFile call() throws Exception {
+                return managedFileDao.findAndAcquireManagedFileIfExists(fileId, acquireName);
+            }
+        });
+    }
+
+    /**
+     * @see ManagedFileDao#receiveRestartManagedFile(ByteString)
+     */
+    @Nonnull
+    public Observable<ManagedFileDao.RestartManagedFile> receiveRestartManagedFile(@Nonnull final ByteString managedFileId) {
+        return submit(new Callable<ManagedFileDao.RestartManagedFile>() {
+            @Override
+            public ManagedFileDao.RestartManagedFile call() throws Exception {
+                return managedFileDao.receiveRestartManagedFile(managedFileId);
+            }
+        });
+    }
+
+    /**
+     * @see ManagedFileDao.ManagedFile#newManagedFile(String)
+     */
+    @Nonnull
+    public Observable<ManagedFileDao.ManagedFile> newManagedFile(@Nonnull final ManagedFileDao.ManagedFile managedFile,
+                                                                @Nonnull final String acquireName) {
+        return submitAcquire(new Callable<ManagedFileDao.ManagedFile>() {
+            @Override
+            public ManagedFileDao.ManagedFile call() throws Exception {
+                return managedFile.newManagedFile(acquireName);
+            }
+        });
+    }
+
+    /**
+     * @see ManagedFileDao#newRestartManagedFile(ManagedFileDao.ManagedFile, String, long)
+     */
+    @Nonnull
+    public Observable<ManagedFileDao.RestartManagedFile> newRestartManagedFile(@Nonnull final ManagedFileDao.ManagedFile managedFile,
+                                                                              @Nonnull final String acquireName,
+                                                                              final long leaseExpirationTimeInMillis) {
+        return submitAcquire(new Callable<ManagedFileDao.RestartManagedFile>() {
+            @Override
+            public ManagedFileDao.RestartManagedFile call() throws Exception {
+                return ManagedFileDao.newRestartManagedFile(managedFile, acquireName, leaseExpirationTimeInMillis);
+            }
+        });
+    }
+
+    /**
+     * @return completes without items when release is stored
+     * @see ManagedFileDao.ManagedFile#release()
+     */
+    @Nonnull
+    public Observable<Void> release(@Nonnull final ManagedFileDao.ManagedFile managedFile) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                managedFile.release();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Sweep blocks writer thread until all files are visited, prefer
+     * {@link ManagedFileDao#startRemovingOldFiles(long, java.util.concurrent.TimeUnit, int, long)}
+     * for big databases
+     *
+     * @return completes without items when sweep is finished
+     * @see ManagedFileDao#removeOldFiles()
+     */
+    @Nonnull
+    public Observable<Void> removeOldFiles() {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                managedFileDao.removeOldFiles();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Number of operations waiting for writer thread
+     */
+    int queuedOperationsCount() {
+        return queue.size();
+    }
+
+    @Nonnull
+    private <T> Observable<T> submit(@Nonnull final Callable<T> callable) {
+        return submit(callable, false);
+    }
+
+    /**
+     * Submit operation that returns newly acquired file, it is released if it can not be emitted
+     */
+    @Nonnull
+    private <T extends ManagedFileDao.ManagedFile> Observable<T> submitAcquire(@Nonnull final Callable<T> callable) {
+        return submit(callable, true);
+    }
+
+    @Nonnull
+    private <T> Observable<T> submit(@Nonnull final Callable<T> callable, final boolean acquires) {
+        return Observable.create(new Observable.OnSubscribe<T>() {
+            @Override
+            public void call(Subscriber<? super T> subscriber) {
+                queue.add(new Operation<>(callable, subscriber, acquires));
+                scheduleDrain();
+            }
+        });
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            writer.execute(drainer);
+        }
+    }
+
+    private void drain() {
+        final List<Operation<?>> batch = new ArrayList<>();
+        for (Operation<?> operation; batch.size() < MAX_OPERATIONS_PER_BATCH
+                && (operation = queue.poll()) != null; ) {
+            batch.add(operation);
+        }
+        final long discardedFlushes = writeCoalescer.discardedFlushes();
+        writeCoalescer.startDeferring();
+        try {
+            for (Operation<?> operation : batch) {
+                operation.execute();
+            }
+        } finally {
+            try {
+                writeCoalescer.endDeferring();
+                if (writeCoalescer.discardedFlushes() != discardedFlushes) {
+                    // writes were flushed by other thread and discarded
+                    throw new IllegalStateException("Writes of operations were discarded");
+                }
+            } catch (RuntimeException e) {
+                // writes are not stored, so none of operations can be confirmed
+                for (Operation<?> operation : batch) {
+                    operation.fail(e);
+                }
+            }
+        }
+        for (Operation<?> operation : batch) {
+            operation.emit();
+        }
+    }
+
+    private static class Operation<T> {
+        @Nonnull
+        private final Callable<T> callable;
+        @Nonnull
+        private final Subscriber<? super T> subscriber;
+        private final boolean acquires;
+        private boolean executed;
+        @Nullable
+        private T result;
+        @Nullable
+        private Throwable error;
+
+        Operation(@Nonnull Callable<T> callable, @Nonnull Subscriber<? super T> subscriber, boolean acquires) {
+            this.callable = callable;
+            this.subscriber = subscriber;
+            this.acquires = acquires;
+        }
+
+        void execute() {
+            if (subscriber.isUnsubscribed()) {
+                return;
+            }
+            executed = true;
+            try {
+                result = callable.call();
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+
+        void fail(@Nonnull Throwable error) {
+            if (this.error == null) {
+                this.error = error;
+            }
+        }
+
+        void emit() {
+            if (!executed) {
+                return;
+            }
+            if (error != null || subscriber.isUnsubscribed()) {
+                releaseResult();
+            }
+            if (subscriber.isUnsubscribed()) {
+                return;
+            }
+            if (error != null) {
+                subscriber.onError(error);
+                return;
+            }
+            if (result != null) {
+                subscriber.onNext(result);
+            }
+            subscriber.onCompleted();
+        }
+
+        private void releaseResult() {
+            if (!acquires || result == null) {
+                return;
+            }
+            try {
+                ((ManagedFileDao.ManagedFile) result).release();
+            } catch (IllegalStateException ignore) {
+                // acquisition was stored only in discarded writes, so there is nothing to release
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.appunite.intenthelperlibrary.dao;
+
+
+import javax.annotation.Nonnull;
+
+public interface BatchWriter {
+
+    /**
+     * Store all operations from batch
+     * <p>
+     * Implementations should apply batch atomically, see {@link JournaledBatchWriter}
+     *
+     * @param batch operations to write
+     */
+    void write(@Nonnull WriteBatch batch);
+}
@@ -0,0 +1,24 @@
+package com.appunite.intenthelperlibrary.dao;
+
+
+import com.google.auto.value.AutoValue;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Counters of file entry cache, see {@link ManagedFileDao#fileEntryCacheStats()}
+ */
+@AutoValue
+public abstract class CacheStats {
+
+    public abstract long hits();
+
+    public abstract long misses();
+
+    public abstract int size();
+
+    @Nonnull
+    public static CacheStats create(long hits, long misses, int size) {
+        return new AutoValue_CacheStats(hits, misses, size);
+    }
+}
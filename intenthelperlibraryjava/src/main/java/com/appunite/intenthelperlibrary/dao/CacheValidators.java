@@ -0,0 +1,81 @@
+package com.appunite.intenthelperlibrary.dao;
+
+
+import com.google.auto.value.AutoValue;
+import com.newmedia.intenthelperlibrary.snappy.files.Message;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * HTTP validators and freshness of downloaded content
+ * <p>
+ * Stale content with {@link #etag()} or {@link #lastModified()} can be revalidated by conditional
+ * request, so it is downloaded again only if it changed.
+ */
+@AutoValue
+public abstract class CacheValidators {
+
+    /**
+     * Content never needs revalidation, i.e. server did not send freshness nor validators
+     */
+    public static final long ALWAYS_FRESH = Long.MAX_VALUE;
+
+    @Nonnull
+    private static final CacheValidators NONE = create(null, null, ALWAYS_FRESH);
+
+    /**
+     * Value of ETag header
+     */
+    @Nullable
+    public abstract String etag();
+
+    /**
+     * Value of Last-Modified header
+     */
+    @Nullable
+    public abstract String lastModified();
+
+    /**
+     * Time until content can be used without revalidation, 0 to always revalidate
+     * or {@link #ALWAYS_FRESH}
+     */
+    public abstract long freshUntilInMillis();
+
+    @Nonnull
+    public static CacheValidators create(@Nullable String etag, @Nullable String lastModified, long freshUntilInMillis) {
+        return new AutoValue_CacheValidators(etag, lastModified, freshUntilInMillis);
+    }
+
+    @Nonnull
+    public static CacheValidators none() {
+        return NONE;
+    }
+
+    public boolean isFresh(long nowInMillis) {
+        return nowInMillis < freshUntilInMillis();
+    }
+
+    public boolean canRevalidate() {
+        return etag() != null || lastModified() != null;
+    }
+
+    @Nonnull
+    static CacheValidators fromMessage(@Nonnull Message.FileUrlMappingMessage message) {
+        return create(message.hasEtag() ? message.getEtag() : null,
+                message.hasLastModified() ? message.getLastModified() : null,
+                message.hasFreshUntilInMillis() ? message.getFreshUntilInMillis() : ALWAYS_FRESH);
+    }
+
+    void writeTo(@Nonnull Message.FileUrlMappingMessage.Builder message) {
+        if (etag() != null) {
+            message.setEtag(etag());
+        }
+        if (lastModified() != null) {
+            message.setLastModified(lastModified());
+        }
+        if (freshUntilInMillis() != ALWAYS_FRESH) {
+            message.setFreshUntilInMillis(freshUntilInMillis());
+        }
+    }
+}
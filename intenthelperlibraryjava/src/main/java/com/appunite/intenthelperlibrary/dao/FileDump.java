@@ -0,0 +1,199 @@
+package com.appunite.intenthelperlibrary.dao;
+
+
+import com.appunite.keyvalue.KeyValue;
+import com.appunite.keyvalue.NotFoundException;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.newmedia.intenthelperlibrary.snappy.files.Message;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Writes managed file entries as JSON lines, one object per file
+ * <p>
+ * Example line:
+ * <pre>
+ * {"fileId":"0a1b","path":"/data/file.jpg","sizeInBytes":100,"expirationTimeInMillis":1,"lastAcquiredTimeInMillis":1,
+ *  "restartAcquisitions":[{"name":"upload","leaseExpirationTimeInMillis":0}],"restartAcquisitionsTruncated":false,
+ *  "volatileAcquisitions":1,"volatileAcquireNames":["for glide"]}
+ * </pre>
+ */
+class FileDump {
+
+    /**
+     * Maximal number of restart acquisitions written for one file
+     */
+    static final int MAX_RESTART_ACQUISITIONS = 100;
+
+    @Nonnull
+    private final FileStore store;
+    @Nonnull
+    private final LockStripes fileLocks;
+    @Nonnull
+    private final VolatileAcquisitions volatileAcquisitions;
+    @Nonnull
+    private final KeySchema.Compact keys;
+
+    FileDump(@Nonnull FileStore store,
+             @Nonnull LockStripes fileLocks,
+             @Nonnull VolatileAcquisitions volatileAcquisitions,
+             @Nonnull KeySchema.Compact keys) {
+        this.store = store;
+        this.fileLocks = fileLocks;
+        this.volatileAcquisitions = volatileAcquisitions;
+        this.keys = keys;
+    }
+
+    /**
+     * Write page of file entries with their acquisitions
+     * <p>
+     * Restart acquisitions are scanned once and only for files that have them
+     *
+     * @return cursor of next page or null if all files were written
+     */
+    @Nullable
+    ByteString writePage(@Nonnull Writer writer, @Nullable ByteString cursor, int maxFiles) throws IOException {
+        final KeyValue.Iterator iterator = store.getKeys(keys.fileAllPrefix(), cursor, maxFiles);
+        for (ByteString key : iterator.keys()) {
+            final Message.FileEntryMessage message;
+            try {
+                message = Message.FileEntryMessage.parseFrom(store.getBytes(key));
+            } catch (NotFoundException ignore) {
+                // Removed concurrently
+                continue;
+            } catch (InvalidProtocolBufferException e) {
+                throw new RuntimeException(e);
+            }
+            final ByteString fileId = message.getFileId();
+            final Collection<Message.AcquireMessage> restartAcquisitions;
+            if (message.hasRestartAcquireCount() && message.getRestartAcquireCount() == 0) {
+                restartAcquisitions = Collections.emptyList();
+            } else {
+                restartAcquisitions = store.getRestartAcquisitions(fileId, keys, MAX_RESTART_ACQUISITIONS + 1).values();
+            }
+            final boolean truncated = restartAcquisitions.size() > MAX_RESTART_ACQUISITIONS;
+            final int volatileAcquisitionCount;
+            final List<String> volatileAcquireNames;
+            final Lock lock = fileLocks.lockFor(fileId);
+            lock.lock();
+            try {
+                volatileAcquisitionCount = volatileAcquisitions.count(fileId);
+                volatileAcquireNames = volatileAcquisitions.names(fileId);
+            } finally {
+                lock.unlock();
+            }
+            writeLine(writer, message,
+                    truncated ? firstOf(restartAcquisitions, MAX_RESTART_ACQUISITIONS) : restartAcquisitions,
+                    truncated, volatileAcquisitionCount, volatileAcquireNames);
+        }
+        return iterator.nextToken();
+    }
+
+    @Nonnull
+    private static <T> List<T> firstOf(@Nonnull Collection<T> collection, int count) {
+        final List<T> first = new ArrayList<>(count);
+        for (T item : collection) {
+            if (first.size() >= count) {
+                break;
+            }
+            first.add(item);
+        }
+        return first;
+    }
+
+    static void writeLine(@Nonnull Writer writer,
+                          @Nonnull Message.FileEntryMessage fileEntry,
+                          @Nonnull Collection<Message.AcquireMessage> restartAcquisitions,
+                          boolean restartAcquisitionsTruncated,
+                          int volatileAcquisitionCount,
+                          @Nonnull List<String> volatileAcquireNames) throws IOException {
+        writer.write("{\"fileId\":");
+        writeString(writer, hex(fileEntry.getFileId()));
+        writer.write(",\"path\":");
+        writeString(writer, fileEntry.getPath());
+        writer.write(",\"sizeInBytes\":");
+        writer.write(Long.toString(fileEntry.getSizeInBytes()));
+        writer.write(",\"expirationTimeInMillis\":");
+        writer.write(Long.toString(fileEntry.getExpirationTimeInMillis()));
+        writer.write(",\"lastAcquiredTimeInMillis\":");
+        writer.write(Long.toString(fileEntry.getLastAcquiredTimeInMillis()));
+        writer.write(",\"restartAcquisitions\":[");
+        boolean first = true;
+        for (Message.AcquireMessage acquire : restartAcquisitions) {
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            writer.write("{\"name\":");
+            writeString(writer, acquire.getAcquireName());
+            writer.write(",\"leaseExpirationTimeInMillis\":");
+            writer.write(Long.toString(acquire.getLeaseExpirationTimeInMillis()));
+            writer.write('}');
+        }
+        writer.write("],\"restartAcquisitionsTruncated\":");
+        writer.write(restartAcquisitionsTruncated ? "true" : "false");
+        writer.write(",\"volatileAcquisitions\":");
+        writer.write(Integer.toString(volatileAcquisitionCount));
+        writer.write(",\"volatileAcquireNames\":[");
+        first = true;
+        for (String acquireName : volatileAcquireNames) {
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            writeString(writer, acquireName);
+        }
+        writer.write("]}\n");
+    }
+
+    @Nonnull
+    private static String hex(@Nonnull ByteString bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.size() * 2);
+        for (int i = 0; i < bytes.size(); i++) {
+            final int b = bytes.byteAt(i) & 0xff;
+            sb.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static void writeString(@Nonnull Writer writer, @Nonnull String value) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+}
@@ -0,0 +1,106 @@
+package com.appunite.intenthelperlibrary.dao;
+
+
+import com.google.protobuf.ByteString;
+import com.newmedia.intenthelperlibrary.snappy.files.Message;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Bounded cache of decoded {@link Message.FileEntryMessage} by fileId.
+ * <p>
+ * Cache is split into segments, each with own LRU order and own monitor, so lookups of different
+ * files do not serialize on one lock. Segment for fileId is the same as file lock stripe.
+ */
+class FileEntryCache {
+
+    @Nonnull
+    private final LockStripes stripes;
+    @Nonnull
+    private final Segment[] segments;
+    @Nonnull
+    private final AtomicLong hits = new AtomicLong();
+    @Nonnull
+    private final AtomicLong misses = new AtomicLong();
+
+    FileEntryCache(@Nonnull LockStripes stripes, int maxSize) {
+        this.stripes = stripes;
+        final int segmentSize = Math.max(1, maxSize / stripes.size());
+        segments = new Segment[stripes.size()];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    @Nullable
+    Message.FileEntryMessage get(@Nonnull ByteString fileId) {
+        final Segment segment = segmentFor(fileId);
+        final Message.FileEntryMessage message;
+        synchronized (segment) {
+            message = segment.get(fileId);
+        }
+        if (message == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return message;
+    }
+
+    void put(@Nonnull Message.FileEntryMessage message) {
+        final Segment segment = segmentFor(message.getFileId());
+        synchronized (segment) {
+            segment.put(message.getFileId(), message);
+        }
+    }
+
+    void remove(@Nonnull ByteString fileId) {
+        final Segment segment = segmentFor(fileId);
+        synchronized (segment) {
+            segment.remove(fileId);
+        }
+    }
+
+    void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    @Nonnull
+    CacheStats stats() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return CacheStats.create(hits.get(), misses.get(), size);
+    }
+
+    @Nonnull
+    private Segment segmentFor(@Nonnull ByteString fileId) {
+        return segments[stripes.indexFor(fileId)];
+    }
+
+    private static class Segment extends LinkedHashMap<ByteString, Message.FileEntryMessage> {
+        private final int maxSize;
+
+        Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteString, Message.FileEntryMessage> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.appunite.intenthelperlibrary.dao;
+
+
+import com.appunite.keyvalue.KeyValue;
+import com.appunite.keyvalue.NotFoundException;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.newmedia.intenthelperlibrary.snappy.files.Message;
+
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Reads and writes of {@link ManagedFileDao} database used by {@link KeyMigration},
+ * {@link UrlMappings} and {@link FileDump}
+ */
+interface FileStore {
+
+    /**
+     * Read value, including writes that are not flushed yet
+     */
+    @Nonnull
+    ByteString getBytes(@Nonnull ByteString key) throws NotFoundException;
+
+    /**
+     * List index, pending writes are flushed first so they are listed too
+     */
+    @Nonnull
+    KeyValue.Iterator getKeys(@Nonnull ByteString prefix, @Nullable ByteString nextToken, int batch);
+
+    void write(@Nonnull WriteBatch batch);
+
+    /**
+     * Write batch together with updated total size of managed files
+     */
+    void write(@Nonnull WriteBatch batch, long sizeDeltaInBytes);
+
+    /**
+     * Read file entry, from cache if it is there
+     */
+    @Nonnull
+    Message.FileEntryMessage readFileEntry(@Nonnull ByteString fileId) throws NotFoundException, InvalidProtocolBufferException;
+
+    /**
+     * @param schema layout of keys under which acquisitions are stored
+     * @param limit maximal number of returned acquisitions
+     */
+    @Nonnull
+    Map<ByteString, Message.AcquireMessage> getRestartAcquisitions(@Nonnull ByteString fileId, @Nonnull KeySchema schema, int limit);
+}
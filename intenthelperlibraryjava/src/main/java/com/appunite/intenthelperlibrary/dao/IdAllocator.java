@@ -0,0 +1,78 @@
+package com.appunite.intenthelperlibrary.dao;
+
+
+import com.appunite.keyvalue.KeyValue;
+import com.appunite.keyvalue.NotFoundException;
+import com.google.protobuf.ByteString;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Allocates ids from a 64-bit counter
+ * <p>
+ * Ids are reserved in blocks, only the end of reserved block (high-water mark) is stored,
+ * so allocation usually does not write to database. After restart counter continues from
+ * stored mark, so ids are never reused even if reserved ones were not used.
+ * <p>
+ * Id is stored as {@link #ID_SIZE} bytes big endian, ids of previous versions are longer,
+ * so they can be told apart by {@link #isNumeric(ByteString)}.
+ */
+class IdAllocator {
+
+    static final int ID_SIZE = 8;
+
+    @Nonnull
+    private final KeyValue keyValue;
+    @Nonnull
+    private final ByteString highWaterMarkKey;
+    private final int reservation;
+    private long next; // guarded by this
+    private long reservedUntil; // guarded by this, 0 if mark not read yet
+
+    IdAllocator(@Nonnull KeyValue keyValue, @Nonnull ByteString highWaterMarkKey, int reservation) {
+        if (reservation <= 0) {
+            throw new IllegalArgumentException("Reservation need to be positive");
+        }
+        this.keyValue = keyValue;
+        this.highWaterMarkKey = highWaterMarkKey;
+        this.reservation = reservation;
+    }
+
+    @Nonnull
+    ByteString newId() {
+        return toBytes(nextLong());
+    }
+
+    synchronized long nextLong() {
+        if (reservedUntil == 0) {
+            try {
+                next = KeySchema.bytesToLong(keyValue.getBytes(highWaterMarkKey));
+            } catch (NotFoundException ignore) {
+                next = 1;
+            }
+            reservedUntil = next;
+        }
+        if (next >= reservedUntil) {
+            // stored before id is used, so crash can not lead to id reuse
+            reservedUntil = next + reservation;
+            keyValue.put(highWaterMarkKey, KeySchema.longToBytes(reservedUntil));
+        }
+        return next++;
+    }
+
+    static boolean isNumeric(@Nonnull ByteString id) {
+        return id.size() == ID_SIZE;
+    }
+
+    /**
+     * @param id id for which {@link #isNumeric(ByteString)} is true
+     */
+    static long toLong(@Nonnull ByteString id) {
+        return KeySchema.bytesToLong(id);
+    }
+
+    @Nonnull
+    static ByteString toBytes(long id) {
+        return KeySchema.longToBytes(id);
+    }
+}
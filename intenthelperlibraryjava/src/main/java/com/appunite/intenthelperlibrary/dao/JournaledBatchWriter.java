@@ -0,0 +1,117 @@
+package com.appunite.intenthelperlibrary.dao;
+
+
+import com.appunite.keyvalue.KeyValue;
+import com.appunite.keyvalue.NotFoundException;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+
+/**
+ * Makes batches atomic on any {@link KeyValue}
+ * <p>
+ * Batch with more than one operation is stored under single journal key before it is applied
+ * and journal is removed after that. If process dies in the middle of batch, journal is
+ * replayed when writer is created, so batch is always stored completely.
+ */
+public class JournaledBatchWriter implements BatchWriter {
+
+    /**
+     * Does not start with any prefix of {@link KeySchema}, so it is never returned by index scans
+     */
+    static final ByteString JOURNAL_KEY = ByteString.copyFromUtf8("batch_journal");
+
+    @Nonnull
+    private final KeyValue keyValue;
+
+    @Inject
+    public JournaledBatchWriter(@Nonnull KeyValue keyValue) {
+        this.keyValue = keyValue;
+        replayJournal();
+    }
+
+    @Override
+    public synchronized void write(@Nonnull WriteBatch batch) {
+        final Map<ByteString, ByteString> operations = batch.operations();
+        if (operations.size() <= 1) {
+            apply(operations);
+            return;
+        }
+        keyValue.put(JOURNAL_KEY, encode(operations));
+        apply(operations);
+        keyValue.del(JOURNAL_KEY);
+    }
+
+    private synchronized void replayJournal() {
+        final ByteString journal;
+        try {
+            journal = keyValue.getBytes(JOURNAL_KEY);
+        } catch (NotFoundException e) {
+            return;
+        }
+        final WriteBatch batch;
+        try {
+            batch = decode(journal);
+        } catch (IOException e) {
+            // journal is written with single put, so it could not be stored partially
+            throw new IllegalStateException("Corrupted batch journal", e);
+        }
+        apply(batch.operations());
+        keyValue.del(JOURNAL_KEY);
+    }
+
+    private void apply(@Nonnull Map<ByteString, ByteString> operations) {
+        for (Map.Entry<ByteString, ByteString> operation : operations.entrySet()) {
+            final ByteString value = operation.getValue();
+            if (value == null) {
+                keyValue.del(operation.getKey());
+            } else {
+                keyValue.put(operation.getKey(), value);
+            }
+        }
+    }
+
+    @Nonnull
+    static ByteString encode(@Nonnull Map<ByteString, ByteString> operations) {
+        final ByteString.Output output = ByteString.newOutput();
+        final CodedOutputStream stream = CodedOutputStream.newInstance(output);
+        try {
+            stream.writeUInt32NoTag(operations.size());
+            for (Map.Entry<ByteString, ByteString> operation : operations.entrySet()) {
+                final ByteString value = operation.getValue();
+                stream.writeBoolNoTag(value != null);
+                stream.writeBytesNoTag(operation.getKey());
+                if (value != null) {
+                    stream.writeBytesNoTag(value);
+                }
+            }
+            stream.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return output.toByteString();
+    }
+
+    @Nonnull
+    static WriteBatch decode(@Nonnull ByteString journal) throws IOException {
+        final CodedInputStream stream = journal.newCodedInput();
+        final WriteBatch batch = new WriteBatch();
+        final int size = stream.readUInt32();
+        for (int i = 0; i < size; i++) {
+            final boolean put = stream.readBool();
+            final ByteString key = stream.readBytes();
+            if (put) {
+                batch.put(key, stream.readBytes());
+            } else {
+                batch.del(key);
+            }
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,263 @@
+package com.appunite.intenthelperlibrary.dao;
+
+
+import com.appunite.keyvalue.KeyValue;
+import com.appunite.keyvalue.NotFoundException;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.newmedia.intenthelperlibrary.snappy.files.Message;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import rx.Scheduler;
+import rx.functions.Action0;
+
+/**
+ * Moves keys of {@link KeySchema#legacy()} layout to {@link KeySchema#compact()} layout
+ * <p>
+ * Whether there are legacy keys is checked once, if there are, migration is started in background.
+ * Until it finishes, entries not found by compact keys are looked up by legacy keys and migrated
+ * on first use, and files that are not migrated yet are not swept.
+ */
+class KeyMigration {
+
+    private static final int PAGE_SIZE = 100;
+    private static final String SCHEMA_VERSION = "1";
+
+    @Nonnull
+    private final FileStore store;
+    @Nonnull
+    private final KeyValue keyValue;
+    @Nonnull
+    private final ManagedFileDao.ExtendedFileOperations fileOperations;
+    @Nonnull
+    private final LockStripes fileLocks;
+    @Nonnull
+    private final Scheduler scheduler;
+    @Nonnull
+    private final KeySchema.Compact keys;
+    @Nonnull
+    private final KeySchema legacyKeys = KeySchema.legacy();
+    @Nonnull
+    private final Object migrationLock = new Object();
+    @Nullable
+    private volatile Boolean pending; // null if not checked yet
+    @Nullable
+    private ByteString cursor; // guarded by migrationLock
+    @Nonnull
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    KeyMigration(@Nonnull FileStore store,
+                 @Nonnull KeyValue keyValue,
+                 @Nonnull ManagedFileDao.ExtendedFileOperations fileOperations,
+                 @Nonnull LockStripes fileLocks,
+                 @Nonnull Scheduler scheduler,
+                 @Nonnull KeySchema.Compact keys) {
+        this.store = store;
+        this.keyValue = keyValue;
+        this.fileOperations = fileOperations;
+        this.fileLocks = fileLocks;
+        this.scheduler = scheduler;
+        this.keys = keys;
+    }
+
+    /**
+     * Whether database has legacy keys that are not migrated yet, first call starts migration
+     */
+    boolean isPending() {
+        final Boolean pending = this.pending;
+        if (pending != null) {
+            return pending;
+        }
+        synchronized (migrationLock) {
+            if (this.pending == null) {
+                this.pending = checkPending();
+                if (this.pending) {
+                    schedule();
+                }
+            }
+            return this.pending;
+        }
+    }
+
+    private boolean checkPending() {
+        try {
+            store.getBytes(keys.schemaVersionKey());
+            return false;
+        } catch (NotFoundException ignore) {
+            // Legacy or new database
+        }
+        if (hasLegacyKeys()) {
+            return true;
+        }
+        // marker is written only once, by this check, so it does not need to wait for a batch
+        keyValue.put(keys.schemaVersionKey(), ByteString.copyFromUtf8(SCHEMA_VERSION));
+        return false;
+    }
+
+    private boolean hasLegacyKeys() {
+        // acquisitions and paths of first versions always belong to a listed file
+        return !store.getKeys(legacyKeys.fileAllPrefix(), null, 1).keys().isEmpty();
+    }
+
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        final Scheduler.Worker worker = scheduler.createWorker();
+        worker.schedule(new Action0() {
+            @Override
+            public void call() {
+                try {
+                    migratePage(PAGE_SIZE);
+                } finally {
+                    scheduled.set(false);
+                    worker.unsubscribe();
+                }
+                if (isPending()) {
+                    // next page in next action, so other work on scheduler is not blocked
+                    schedule();
+                }
+            }
+        });
+    }
+
+    /**
+     * Migrate page of legacy files, finish migration after last one
+     *
+     * @return number of migrated files
+     */
+    int migratePage(int maxFiles) {
+        if (!isPending()) {
+            return 0;
+        }
+        synchronized (migrationLock) {
+            if (!isPending()) {
+                return 0;
+            }
+            final KeyValue.Iterator iterator = store.getKeys(legacyKeys.fileAllPrefix(), cursor, maxFiles);
+            int migrated = 0;
+            for (ByteString legacyFileKey : iterator.keys()) {
+                final Message.FileEntryMessage message;
+                try {
+                    message = Message.FileEntryMessage.parseFrom(store.getBytes(legacyFileKey));
+                } catch (NotFoundException ignore) {
+                    // Removed or migrated concurrently
+                    continue;
+                } catch (InvalidProtocolBufferException e) {
+                    throw new RuntimeException("Wrong database state");
+                }
+                if (migrateFile(message.getFileId())) {
+                    migrated += 1;
+                }
+            }
+            cursor = iterator.nextToken();
+            if (cursor == null) {
+                finish();
+            }
+            return migrated;
+        }
+    }
+
+    /**
+     * Mark database as migrated, need to be called under migration lock
+     */
+    private void finish() {
+        store.write(new WriteBatch()
+                .put(keys.schemaVersionKey(), ByteString.copyFromUtf8(SCHEMA_VERSION)));
+        pending = false;
+    }
+
+    /**
+     * Move file entry, its indexes and restart acquisitions from legacy keys to compact keys
+     *
+     * @return true if file had legacy keys
+     */
+    boolean migrateFile(@Nonnull ByteString fileId) {
+        if (!isPending()) {
+            return false;
+        }
+        final Lock lock = fileLocks.lockFor(fileId);
+        lock.lock();
+        try {
+            final ByteString legacyFileKey = legacyKeys.fileKey(fileId);
+            final Message.FileEntryMessage message;
+            try {
+                message = Message.FileEntryMessage.parseFrom(store.getBytes(legacyFileKey));
+            } catch (NotFoundException ignore) {
+                return false;
+            }
+            final Collection<Message.AcquireMessage> acquisitions =
+                    store.getRestartAcquisitions(fileId, legacyKeys, Integer.MAX_VALUE).values();
+            // first versions did not store size nor acquire count
+            final Message.FileEntryMessage migrated = message.toBuilder()
+                    .setSizeInBytes(fileOperations.fileSize(message.getPath()))
+                    .setRestartAcquireCount(acquisitions.size())
+                    .build();
+            final ByteString keyId = keys.fileKey(fileId);
+            final WriteBatch batch = new WriteBatch()
+                    .del(legacyFileKey)
+                    .del(legacyKeys.filePathKey(message.getPath()))
+                    .del(legacyKeys.fileAllIndex(fileId))
+                    .put(keyId, migrated.toByteString())
+                    .put(keys.filePathKey(migrated.getPath()), keyId)
+                    .put(keys.fileAllIndex(fileId), keyId)
+                    .put(keys.fileExpirationIndex(migrated), keyId)
+                    .put(keys.fileLruIndex(migrated), keyId);
+            for (Message.AcquireMessage acquire : acquisitions) {
+                final ByteString acquireKey = keys.acquireKey(acquire.getAcquireId());
+                batch.del(legacyKeys.acquireKey(acquire.getAcquireId()))
+                        .del(legacyKeys.acquireOfFileIndex(acquire))
+                        .put(acquireKey, acquire.toByteString())
+                        .put(keys.acquireOfFileIndex(acquire), acquireKey);
+            }
+            store.write(batch, migrated.getSizeInBytes());
+            return true;
+        } catch (InvalidProtocolBufferException e) {
+            throw new RuntimeException("Wrong database state");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Migrate file stored under path by legacy keys
+     *
+     * @return true if file had legacy keys
+     */
+    boolean migrateFileWithPath(@Nonnull String path) {
+        if (!isPending()) {
+            return false;
+        }
+        try {
+            final Message.FileEntryMessage message = Message.FileEntryMessage.parseFrom(
+                    store.getBytes(store.getBytes(legacyKeys.filePathKey(path))));
+            return migrateFile(message.getFileId());
+        } catch (NotFoundException e) {
+            return false;
+        } catch (InvalidProtocolBufferException e) {
+            throw new RuntimeException("Wrong database state");
+        }
+    }
+
+    /**
+     * Migrate file of acquisition stored by legacy keys
+     *
+     * @return false if migration is not pending
+     * @throws NotFoundException if there is no such legacy acquisition
+     */
+    boolean migrateFileOfAcquire(@Nonnull ByteString acquireId) throws NotFoundException, InvalidProtocolBufferException {
+        if (!isPending()) {
+            return false;
+        }
+        final Message.AcquireMessage legacyAcquire = Message.AcquireMessage.parseFrom(
+                store.getBytes(legacyKeys.acquireKey(acquireId)));
+        migrateFile(legacyAcquire.getFileId());
+        return true;
+    }
+}
@@ -0,0 +1,307 @@
+package com.appunite.intenthelperlibrary.dao;
+
+
+import com.appunite.keyvalue.KeyGenerator;
+import com.google.protobuf.ByteString;
+import com.newmedia.intenthelperlibrary.snappy.files.Message;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Layout of keys of {@link ManagedFileDao} in key-value database
+ * <p>
+ * {@link #legacy()} is the layout of files and acquisitions stored by first versions, built by
+ * {@link KeyGenerator} with long names in every key. It is only read to migrate it.
+ * {@link #compact()} starts every key with {@link Compact#SCHEMA_PREFIX} and one byte tag, other
+ * indexes exist only in this layout. Index values are keys of the same layout.
+ */
+abstract class KeySchema {
+
+    @Nonnull
+    private static final KeySchema LEGACY = new Legacy();
+    @Nonnull
+    private static final Compact COMPACT = new Compact();
+
+    @Nonnull
+    static KeySchema legacy() {
+        return LEGACY;
+    }
+
+    @Nonnull
+    static Compact compact() {
+        return COMPACT;
+    }
+
+    @Nonnull
+    abstract ByteString acquireKey(@Nonnull ByteString acquireId);
+
+    @Nonnull
+    abstract ByteString acquireOfFilePrefix(@Nonnull ByteString fileId);
+
+    @Nonnull
+    abstract ByteString acquireOfFileIndex(@Nonnull Message.AcquireMessage acquireMessage);
+
+    @Nonnull
+    abstract ByteString fileKey(@Nonnull ByteString fileId);
+
+    @Nonnull
+    abstract ByteString filePathKey(@Nonnull String path);
+
+    @Nonnull
+    abstract ByteString fileAllIndex(@Nonnull ByteString fileId);
+
+    @Nonnull
+    abstract ByteString fileAllPrefix();
+
+    @Nonnull
+    static ByteString longToBytes(long value) {
+        final byte[] bytes = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+        return ByteString.copyFrom(bytes);
+    }
+
+    static long bytesToLong(@Nonnull ByteString bytes) {
+        long value = 0;
+        for (int i = 0; i < bytes.size(); i++) {
+            value = (value << 8) | (bytes.byteAt(i) & 0xff);
+        }
+        return value;
+    }
+
+    private static class Legacy extends KeySchema {
+
+        private static final byte[] ACQUIRE = "managed_file_acquire".getBytes();
+        private static final byte[] ACQUIRE_ORDER_FILE = "managed_file_acquire_order_file".getBytes();
+        private static final byte[] ACQUIRE_ORDER_FILE_INDEX_FILE_ID = "file_id".getBytes();
+        private static final byte[] MANAGED_FILE = "managed_file".getBytes();
+        private static final byte[] MANAGED_FILE_PATH = "managed_file_path".getBytes();
+        private static final byte[] MANAGED_FILE_ALL = "manged_file_all".getBytes();
+
+        @Nonnull
+        private final ThreadLocal<KeyGenerator> keyGenerators = new ThreadLocal<KeyGenerator>() {
+            @Override
+            protected KeyGenerator initialValue() {
+                return new KeyGenerator();
+            }
+        };
+
+        @Nonnull
+        private KeyGenerator keyGenerator() {
+            return keyGenerators.get();
+        }
+
+        @Nonnull
+        @Override
+        ByteString acquireKey(@Nonnull ByteString acquireId) {
+            return keyGenerator().value(ACQUIRE, acquireId);
+        }
+
+        @Nonnull
+        @Override
+        ByteString acquireOfFilePrefix(@Nonnull ByteString fileId) {
+            return keyGenerator().startIndex(ACQUIRE_ORDER_FILE)
+                    .addField(ACQUIRE_ORDER_FILE_INDEX_FILE_ID, fileId)
+                    .buildQuery();
+        }
+
+        @Nonnull
+        @Override
+        ByteString acquireOfFileIndex(@Nonnull Message.AcquireMessage acquireMessage) {
+            return keyGenerator().startIndex(ACQUIRE_ORDER_FILE)
+                    .addField(ACQUIRE_ORDER_FILE_INDEX_FILE_ID, acquireMessage.getFileId())
+                    .buildIndex(acquireMessage.getAcquireId());
+        }
+
+        @Nonnull
+        @Override
+        ByteString fileKey(@Nonnull ByteString fileId) {
+            return keyGenerator().value(MANAGED_FILE, fileId);
+        }
+
+        @Nonnull
+        @Override
+        ByteString filePathKey(@Nonnull String path) {
+            return keyGenerator().value(MANAGED_FILE_PATH, ByteString.copyFromUtf8(path));
+        }
+
+        @Nonnull
+        @Override
+        ByteString fileAllIndex(@Nonnull ByteString fileId) {
+            return keyGenerator().startIndex(MANAGED_FILE_ALL)
+                    .buildIndex(fileId);
+        }
+
+        @Nonnull
+        @Override
+        ByteString fileAllPrefix() {
+            return keyGenerator().startIndex(MANAGED_FILE_ALL)
+                    .buildQuery();
+        }
+    }
+
+    /**
+     * Every key is {@link #SCHEMA_PREFIX}, tag and fields. Ids are prefixed by their length
+     * if other field follows, so prefix of one id never matches other id.
+     */
+    static class Compact extends KeySchema {
+
+        /**
+         * Not a printable character, so keys never collide with {@link Legacy} keys
+         */
+        static final byte SCHEMA_PREFIX = 0x01;
+
+        private static final byte ACQUIRE = 'a';
+        private static final byte ACQUIRE_OF_FILE = 'o';
+        private static final byte ACQUIRE_LEASE = 'l';
+        private static final byte FILE = 'F';
+        private static final byte FILE_PATH = 'P';
+        private static final byte FILE_ALL = 'A';
+        private static final byte FILE_EXPIRATION = 'E';
+        private static final byte FILE_LRU = 'L';
+        private static final byte FILE_CONTENT = 'C';
+        private static final byte INTENT = 'I';
+        private static final byte TOTAL_SIZE = 'S';
+        private static final byte SCHEMA_VERSION = 'M';
+        private static final byte ID_HIGH_WATER_MARK = 'N';
+        private static final byte FILE_URL = 'U';
+
+        @Nonnull
+        private static ByteString tag(byte tag) {
+            return ByteString.copyFrom(new byte[]{SCHEMA_PREFIX, tag});
+        }
+
+        @Nonnull
+        private static ByteString sized(@Nonnull ByteString id) {
+            if (id.size() > 0xff) {
+                throw new IllegalArgumentException("Id too long");
+            }
+            return ByteString.copyFrom(new byte[]{(byte) id.size()}).concat(id);
+        }
+
+        /**
+         * Version of schema, stored when all legacy keys are migrated
+         */
+        @Nonnull
+        ByteString schemaVersionKey() {
+            return tag(SCHEMA_VERSION);
+        }
+
+        /**
+         * End of ids reserved by {@link IdAllocator}
+         */
+        @Nonnull
+        ByteString idHighWaterMarkKey() {
+            return tag(ID_HIGH_WATER_MARK);
+        }
+
+        /**
+         * Mapping of url to file downloaded from it, there were no such keys in {@link Legacy}
+         */
+        @Nonnull
+        ByteString fileUrlKey(@Nonnull String url) {
+            return tag(FILE_URL).concat(ByteString.copyFromUtf8(url));
+        }
+
+        @Nonnull
+        @Override
+        ByteString acquireKey(@Nonnull ByteString acquireId) {
+            return tag(ACQUIRE).concat(acquireId);
+        }
+
+        @Nonnull
+        @Override
+        ByteString acquireOfFilePrefix(@Nonnull ByteString fileId) {
+            return tag(ACQUIRE_OF_FILE).concat(sized(fileId));
+        }
+
+        @Nonnull
+        @Override
+        ByteString acquireOfFileIndex(@Nonnull Message.AcquireMessage acquireMessage) {
+            return acquireOfFilePrefix(acquireMessage.getFileId()).concat(acquireMessage.getAcquireId());
+        }
+
+        @Nonnull
+        ByteString acquireLeaseIndex(@Nonnull Message.AcquireMessage acquireMessage) {
+            return acquireLeasePrefix()
+                    .concat(longToBytes(acquireMessage.getLeaseExpirationTimeInMillis()))
+                    .concat(acquireMessage.getAcquireId());
+        }
+
+        @Nonnull
+        ByteString acquireLeasePrefix() {
+            return tag(ACQUIRE_LEASE);
+        }
+
+        @Nonnull
+        @Override
+        ByteString fileKey(@Nonnull ByteString fileId) {
+            return tag(FILE).concat(fileId);
+        }
+
+        @Nonnull
+        @Override
+        ByteString filePathKey(@Nonnull String path) {
+            return tag(FILE_PATH).concat(ByteString.copyFromUtf8(path));
+        }
+
+        @Nonnull
+        @Override
+        ByteString fileAllIndex(@Nonnull ByteString fileId) {
+            return fileAllPrefix().concat(fileId);
+        }
+
+        @Nonnull
+        @Override
+        ByteString fileAllPrefix() {
+            return tag(FILE_ALL);
+        }
+
+        @Nonnull
+        ByteString fileExpirationIndex(@Nonnull Message.FileEntryMessage message) {
+            // big endian, so keys are ordered by expiration time
+            return fileExpirationPrefix()
+                    .concat(longToBytes(message.getExpirationTimeInMillis()))
+                    .concat(message.getFileId());
+        }
+
+        @Nonnull
+        ByteString fileExpirationPrefix() {
+            return tag(FILE_EXPIRATION);
+        }
+
+        @Nonnull
+        ByteString fileLruIndex(@Nonnull Message.FileEntryMessage message) {
+            return fileLruPrefix()
+                    .concat(longToBytes(message.getLastAcquiredTimeInMillis()))
+                    .concat(message.getFileId());
+        }
+
+        @Nonnull
+        ByteString fileLruPrefix() {
+            return tag(FILE_LRU);
+        }
+
+        @Nonnull
+        ByteString fileContentKey(@Nonnull ByteString contentHash) {
+            return tag(FILE_CONTENT).concat(contentHash);
+        }
+
+        @Nonnull
+        ByteString intentKey(@Nonnull ByteString intentId) {
+            return intentPrefix().concat(intentId);
+        }
+
+        @Nonnull
+        ByteString intentPrefix() {
+            return tag(INTENT);
+        }
+
+        @Nonnull
+        ByteString totalSizeKey() {
+            return tag(TOTAL_SIZE);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.appunite.intenthelperlibrary.dao;
+
+
+import com.google.protobuf.ByteString;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Finds handles that were garbage collected without being released.
+ * <p>
+ * Only every n-th handle is tracked, so cost of tracking is paid by small part of acquisitions.
+ * Tracked handles are watched by phantom references, collected ones are reported
+ * by a daemon thread started with first tracked handle, or by {@link #reapEnqueued()}
+ * if the thread is disabled.
+ */
+class LeakDetector {
+
+    private static final Logger LOGGER = Logger.getLogger("ManagedFileDao");
+
+    interface Releaser {
+        void release();
+    }
+
+    private final int sampleRate;
+    @Nonnull
+    private final LeakListener listener;
+    private final boolean autoRelease;
+    @Nonnull
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+    @Nonnull
+    private final Set<Tracker> trackers = Collections.newSetFromMap(new ConcurrentHashMap<Tracker, Boolean>());
+    @Nonnull
+    private final AtomicLong handles = new AtomicLong();
+    @Nonnull
+    private final AtomicBoolean reaperStarted;
+
+    /**
+     * @param sampleRate  track every sampleRate-th handle, 0 to disable
+     * @param listener    listener of leaks
+     * @param autoRelease release leaked handles
+     */
+    LeakDetector(int sampleRate, @Nonnull LeakListener listener, boolean autoRelease) {
+        this(sampleRate, listener, autoRelease, true);
+    }
+
+    /**
+     * @param reapInBackground start reaper thread, otherwise collected handles are reported
+     *                         only by {@link #reapEnqueued()}
+     */
+    LeakDetector(int sampleRate, @Nonnull LeakListener listener, boolean autoRelease, boolean reapInBackground) {
+        if (sampleRate < 0) {
+            throw new IllegalArgumentException("Sample rate can not be negative");
+        }
+        this.sampleRate = sampleRate;
+        this.listener = listener;
+        this.autoRelease = autoRelease;
+        this.reaperStarted = new AtomicBoolean(!reapInBackground);
+    }
+
+    /**
+     * @return tracker that need to be untracked when handle is released, or null if
+     * handle is not tracked
+     */
+    @Nullable
+    Tracker track(@Nonnull Object handle,
+                  @Nonnull ByteString fileId,
+                  @Nonnull String acquireName,
+                  @Nonnull Releaser releaser) {
+        if (sampleRate == 0 || handles.incrementAndGet() % sampleRate != 0) {
+            return null;
+        }
+        startReaperIfNeeded();
+        final Tracker tracker = new Tracker(handle, queue, fileId, acquireName, releaser);
+        trackers.add(tracker);
+        return tracker;
+    }
+
+    int trackedCount() {
+        return trackers.size();
+    }
+
+    private void startReaperIfNeeded() {
+        if (!reaperStarted.compareAndSet(false, true)) {
+            return;
+        }
+        final Thread reaper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (; ; ) {
+                    try {
+                        reap((Tracker) queue.remove());
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "ManagedFileLeakReaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /**
+     * Report handles that are already collected, without waiting for more
+     *
+     * @return number of reported handles
+     */
+    int reapEnqueued() {
+        int reaped = 0;
+        for (Tracker tracker = (Tracker) queue.poll(); tracker != null; tracker = (Tracker) queue.poll()) {
+            if (reap(tracker)) {
+                reaped += 1;
+            }
+        }
+        return reaped;
+    }
+
+    /**
+     * @return false if handle was released in the meantime
+     */
+    private boolean reap(@Nonnull Tracker tracker) {
+        if (!trackers.remove(tracker)) {
+            // released in the meantime
+            return false;
+        }
+        try {
+            if (autoRelease) {
+                tracker.releaser.release();
+            }
+            listener.onLeak(tracker.fileId, tracker.acquireName, autoRelease);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Could not handle leaked file: " + tracker.acquireName, e);
+        }
+        return true;
+    }
+
+    class Tracker extends PhantomReference<Object> {
+        @Nonnull
+        private final ByteString fileId;
+        @Nonnull
+        private final String acquireName;
+        @Nonnull
+        private final Releaser releaser;
+
+        Tracker(@Nonnull Object handle,
+                @Nonnull ReferenceQueue<Object> queue,
+                @Nonnull ByteString fileId,
+                @Nonnull String acquireName,
+                @Nonnull Releaser releaser) {
+            super(handle, queue);
+            this.fileId = fileId;
+            this.acquireName = acquireName;
+            this.releaser = releaser;
+        }
+
+        void untrack() {
+            trackers.remove(this);
+            clear();
+        }
+    }
+
+    static class LoggingLeakListener implements LeakListener {
+        @Override
+        public void onLeak(@Nonnull ByteString fileId, @Nonnull String acquireName, boolean released) {
+            LOGGER.warning("Managed file was not released: " + acquireName
+                    + (released ? ", released automatically" : ""));
+        }
+    }
+}
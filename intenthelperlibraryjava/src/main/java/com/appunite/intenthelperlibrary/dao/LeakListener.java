@@ -0,0 +1,22 @@
+package com.appunite.intenthelperlibrary.dao;
+
+
+import com.google.protobuf.ByteString;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Notified about managed files that were garbage collected without calling
+ * {@link ManagedFileDao.ManagedFile#release()}
+ * <p>
+ * Called on leak detection thread
+ */
+public interface LeakListener {
+
+    /**
+     * @param fileId      leaked file
+     * @param acquireName acquire name of leaked handle
+     * @param released    true if handle was released automatically
+     */
+    void onLeak(@Nonnull ByteString fileId, @Nonnull String acquireName, boolean released);
+}
@@ -0,0 +1,91 @@
+package com.appunite.intenthelperlibrary.dao;
+
+
+import com.google.protobuf.ByteString;
+
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Fixed set of locks where every key is mapped to one of them.
+ * <p>
+ * Operations on different keys usually take different locks so they can run in parallel,
+ * operations on the same key always take the same lock.
+ */
+class LockStripes {
+
+    @Nonnull
+    private final ReentrantLock[] locks;
+    private final int mask;
+
+    /**
+     * @param minimumStripes minimal number of locks, rounded up to power of two
+     */
+    LockStripes(int minimumStripes) {
+        if (minimumStripes <= 0) {
+            throw new IllegalArgumentException("Stripes need to be positive");
+        }
+        int stripes = 1;
+        while (stripes < minimumStripes) {
+            stripes <<= 1;
+        }
+        locks = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        mask = stripes - 1;
+    }
+
+    @Nonnull
+    ReentrantLock lockFor(@Nonnull ByteString key) {
+        return locks[indexFor(key)];
+    }
+
+    @Nonnull
+    ReentrantLock lockAt(int index) {
+        return locks[index];
+    }
+
+    int indexFor(@Nonnull ByteString key) {
+        if (IdAllocator.isNumeric(key)) {
+            // allocated ids are sequential, so their low bits already spread over stripes
+            final long id = IdAllocator.toLong(key);
+            final int bits = (int) (id ^ (id >>> 32));
+            return (bits ^ (bits >>> 16)) & mask;
+        }
+        final int hash = key.hashCode();
+        // spread bits, ids usually differ only on few bytes
+        return (hash ^ (hash >>> 16) ^ (hash >>> 8)) & mask;
+    }
+
+    int size() {
+        return locks.length;
+    }
+
+    /**
+     * Indexes of locks for keys, without duplicates and in ascending order
+     * <p>
+     * Threads that take many locks in this order can not deadlock each other
+     */
+    @Nonnull
+    int[] sortedIndexesFor(@Nonnull Collection<ByteString> keys) {
+        final boolean[] used = new boolean[locks.length];
+        int count = 0;
+        for (ByteString key : keys) {
+            final int index = indexFor(key);
+            if (!used[index]) {
+                used[index] = true;
+                count += 1;
+            }
+        }
+        final int[] indexes = new int[count];
+        for (int i = 0, next = 0; next < count; i++) {
+            if (used[i]) {
+                indexes[next++] = i;
+            }
+        }
+        return indexes;
+    }
+}
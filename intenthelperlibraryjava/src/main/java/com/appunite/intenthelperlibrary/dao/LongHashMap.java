@@ -0,0 +1,155 @@
+package com.appunite.intenthelperlibrary.dao;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Hash map with primitive long keys
+ * <p>
+ * Open addressing with linear probing, so lookups do not box keys and entries do not allocate
+ * nodes. Table shrinks when entries are removed, so memory depends on current size.
+ * Not thread safe.
+ */
+class LongHashMap<V> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    @Nonnull
+    private long[] keys;
+    @Nonnull
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    LongHashMap() {
+        allocate(MIN_CAPACITY);
+    }
+
+    @Nullable
+    V get(long key) {
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            final Object value = values[i];
+            if (value == null) {
+                return null;
+            }
+            if (keys[i] == key) {
+                return cast(value);
+            }
+        }
+    }
+
+    /**
+     * @return previous value or null
+     */
+    @Nullable
+    V put(long key, @Nonnull V value) {
+        int i = slot(key);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                final V previous = cast(values[i]);
+                values[i] = value;
+                return previous;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        size += 1;
+        // at most half full, so probes stay short
+        if (size * 2 > values.length) {
+            resize(values.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * @return removed value or null
+     */
+    @Nullable
+    V remove(long key) {
+        int i = slot(key);
+        for (; ; i = (i + 1) & mask) {
+            if (values[i] == null) {
+                return null;
+            }
+            if (keys[i] == key) {
+                break;
+            }
+        }
+        final V removed = cast(values[i]);
+        values[i] = null;
+        size -= 1;
+        // move following entries back, so no probe sequence is broken by the hole
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            final int home = slot(keys[j]);
+            final boolean movable = i <= j
+                    ? home <= i || home > j
+                    : home <= i && home > j;
+            if (movable) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                values[j] = null;
+                i = j;
+            }
+        }
+        if (values.length > MIN_CAPACITY && size * 8 < values.length) {
+            resize(values.length / 2);
+        }
+        return removed;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return copy of values, in no particular order
+     */
+    @Nonnull
+    List<V> values() {
+        final List<V> copy = new ArrayList<>(size);
+        for (Object value : values) {
+            if (value != null) {
+                copy.add(cast(value));
+            }
+        }
+        return copy;
+    }
+
+    private int slot(long key) {
+        // ids are sequential, so spread them over whole table
+        final long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    private void resize(int capacity) {
+        final long[] oldKeys = keys;
+        final Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int j = slot(oldKeys[i]);
+                while (values[j] != null) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nonnull
+    private V cast(@Nonnull Object value) {
+        return (V) value;
+    }
+}
@@ -1,35 +1,61 @@
 package com.appunite.intenthelperlibrary.dao;
 
 
-import com.appunite.keyvalue.IdGenerator;
-import com.appunite.keyvalue.KeyGenerator;
 import com.appunite.keyvalue.KeyValue;
 import com.appunite.keyvalue.NotFoundException;
 import com.appunite.rx.dagger.NetworkScheduler;
+import com.google.auto.value.AutoValue;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.newmedia.intenthelperlibrary.snappy.files.Message;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import rx.Observable;
 import rx.Scheduler;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.functions.Func2;
 
 @Singleton
 public class ManagedFileDao {
 
+    private static final Logger LOGGER = Logger.getLogger("ManagedFileDao");
     private static final long EXPIRATION_DURATION_IN_MILLIS = 1000L * 60L * 60L * 2L; // mills, seconds, minutes, 2 = 2 hours
+    private static final int SWEEP_PAGE_SIZE = 100;
+    private static final int RECONCILE_PAGE_SIZE = 100;
+    private static final int DUMP_PAGE_SIZE = 100;
 
-    public static class FileOperationsImpl implements FileOperations {
+    public static class FileOperationsImpl implements ExtendedFileOperations {
 
         @Inject
         FileOperationsImpl() {
@@ -40,26 +66,304 @@ public class ManagedFileDao {
             //noinspection ResultOfMethodCallIgnored
             new File(path).delete();
         }
+
+        @Override
+        public long fileSize(@Nonnull String path) {
+            return new File(path).length();
+        }
+
+        @Nonnull
+        @Override
+        public List<String> listFiles(@Nonnull String directory) {
+            final File[] files = new File(directory).listFiles();
+            if (files == null) {
+                return Collections.emptyList();
+            }
+            final List<String> paths = new ArrayList<>(files.length);
+            for (File file : files) {
+                if (file.isFile()) {
+                    paths.add(file.getAbsolutePath());
+                }
+            }
+            return paths;
+        }
+
+        @Override
+        public long lastModified(@Nonnull String path) {
+            return new File(path).lastModified();
+        }
+
+        @Override
+        public boolean createFile(@Nonnull String path) throws IOException {
+            return new File(path).createNewFile();
+        }
     }
 
     public interface FileOperations {
         void removeFile(@Nonnull String path);
     }
 
-    private static class FileDatabase {
+    /**
+     * Optional operations used to count sizes, adopt orphans and create temporary files
+     * <p>
+     * If {@link FileOperations} passed to dao does not implement it, these operations are done
+     * directly on {@link File}.
+     */
+    public interface ExtendedFileOperations extends FileOperations {
+
+        /**
+         * @return size of file in bytes or 0 if file does not exist
+         */
+        long fileSize(@Nonnull String path);
 
+        /**
+         * @return absolute paths of files in directory, empty if directory does not exist
+         */
         @Nonnull
-        private final KeyValue keyValue;
+        List<String> listFiles(@Nonnull String directory);
+
+        /**
+         * @return time of last modification in millis or 0 if file does not exist
+         */
+        long lastModified(@Nonnull String path);
+
+        /**
+         * @return false if file already exists
+         * @throws IOException if file could not be created
+         */
+        boolean createFile(@Nonnull String path) throws IOException;
+    }
+
+    /**
+     * Removes files with given {@link FileOperations}, other operations are done on {@link File}
+     */
+    private static class FileOperationsAdapter extends FileOperationsImpl {
+
         @Nonnull
         private final FileOperations fileOperations;
+
+        FileOperationsAdapter(@Nonnull FileOperations fileOperations) {
+            this.fileOperations = fileOperations;
+        }
+
+        @Override
+        public void removeFile(@Nonnull String path) {
+            fileOperations.removeFile(path);
+        }
+    }
+
+    @Nonnull
+    private static ExtendedFileOperations extended(@Nonnull FileOperations fileOperations) {
+        return fileOperations instanceof ExtendedFileOperations
+                ? (ExtendedFileOperations) fileOperations
+                : new FileOperationsAdapter(fileOperations);
+    }
+
+    /**
+     * What to do with file that is in managed directory but is not managed
+     */
+    public enum OrphanPolicy {
+        /**
+         * Remove file
+         */
+        DELETE,
+        /**
+         * Start managing file, it will be removed when it expires
+         */
+        ADOPT
+    }
+
+    private static final long NOT_ACQUIRED = -1L;
+    /**
+     * Restart acquisition without lease is kept until released
+     */
+    public static final long NO_LEASE = 0L;
+
+    @AutoValue
+    public static abstract class Settings {
+
+        /**
+         * Writer used for every multi-key mutation, provide atomic writer (i.e.
+         * {@link JournaledBatchWriter}) to avoid partially written operations.
+         * Without writer operations are written one by one.
+         */
+        @Nullable
+        abstract BatchWriter batchWriter();
+
+        /**
+         * Maximum number of decoded file entries kept in memory
+         */
+        abstract int fileEntryCacheSize();
+
+        /**
+         * Keep names of volatile acquisitions for {@link #debugPurposeListAllFiles()},
+         * otherwise only counters are kept
+         */
+        abstract boolean traceVolatileAcquisitions();
+
+        /**
+         * Maximum size of all managed files, when exceeded least recently used files that
+         * are not acquired are removed even if they did not expire. 0 means no limit.
+         */
+        abstract long byteQuota();
+
+        /**
+         * Compute hash of written content and keep one file per content,
+         * see {@link #deduplicate(ManagedFile, ByteString, String)}
+         */
+        abstract boolean deduplicateContent();
+
+        /**
+         * Count acquisitions and hold times, see {@link #acquisitionMetrics()}
+         */
+        abstract boolean recordAcquisitionMetrics();
+
+        /**
+         * Track every n-th volatile handle and report it if it is garbage collected without
+         * being released, 0 disables tracking
+         */
+        abstract int leakDetectionSampleRate();
+
+        /**
+         * Listener of leaked handles, by default leaks are logged
+         */
+        @Nullable
+        abstract LeakListener leakListener();
+
+        /**
+         * Release leaked handles, so files they pin can be removed
+         */
+        abstract boolean autoReleaseLeaks();
+
+        @Nonnull
+        public static Builder builder() {
+            return new AutoValue_ManagedFileDao_Settings.Builder()
+                    .setFileEntryCacheSize(4096)
+                    .setTraceVolatileAcquisitions(false)
+                    .setByteQuota(0)
+                    .setDeduplicateContent(false)
+                    .setRecordAcquisitionMetrics(true)
+                    .setLeakDetectionSampleRate(0)
+                    .setAutoReleaseLeaks(false);
+        }
+
+        @AutoValue.Builder
+        public static abstract class Builder {
+
+            @Nonnull
+            public abstract Builder setBatchWriter(@Nullable BatchWriter batchWriter);
+
+            @Nonnull
+            public abstract Builder setFileEntryCacheSize(int fileEntryCacheSize);
+
+            @Nonnull
+            public abstract Builder setTraceVolatileAcquisitions(boolean traceVolatileAcquisitions);
+
+            @Nonnull
+            public abstract Builder setByteQuota(long byteQuota);
+
+            @Nonnull
+            public abstract Builder setDeduplicateContent(boolean deduplicateContent);
+
+            @Nonnull
+            public abstract Builder setRecordAcquisitionMetrics(boolean recordAcquisitionMetrics);
+
+            @Nonnull
+            public abstract Builder setLeakDetectionSampleRate(int leakDetectionSampleRate);
+
+            @Nonnull
+            public abstract Builder setLeakListener(@Nullable LeakListener leakListener);
+
+            @Nonnull
+            public abstract Builder setAutoReleaseLeaks(boolean autoReleaseLeaks);
+
+            @Nonnull
+            public abstract Settings build();
+        }
+    }
+
+    private static class FileDatabase implements FileStore {
+
+        private static final int LOCK_STRIPES = 64;
+        /**
+         * Number of ids reserved by one write of high-water mark
+         */
+        private static final int ID_RESERVATION = 1024;
+        private static final long LAST_ACQUIRED_RESOLUTION_IN_MILLIS = 1000L * 60L; // mills, seconds = 1 minute
+
+        @Nonnull
+        private final Scheduler scheduler;
+        @Nonnull
+        private final KeyValue keyValue;
+        @Nonnull
+        private final ExtendedFileOperations fileOperations;
+        @Nonnull
+        private final BatchWriter batchWriter;
+        @Nonnull
+        private final WriteCoalescer writeCoalescer;
         @Nonnull
-        private final Map<ByteString, Map<ByteString, Message.AcquireMessage>> volotailAcqurisions = new HashMap<>(); // fileId -> (acquireId -> acquire name)
+        private final IdAllocator idAllocator;
         @Nonnull
-        private final IdGenerator idGenerator = new IdGenerator();
+        private final LockStripes fileLocks = new LockStripes(LOCK_STRIPES);
+        @Nonnull
+        private final VolatileAcquisitions volatileAcquisitions;
+        @Nonnull
+        private final Object createLock = new Object();
+        @Nonnull
+        private final Object contentLock = new Object();
+        /**
+         * Intents of operations in progress, they are not replayed by {@link #recoverIntents()}
+         */
+        @Nonnull
+        private final Set<ByteString> inFlightIntents = Collections.newSetFromMap(new ConcurrentHashMap<ByteString, Boolean>());
+        @Nonnull
+        private final AtomicBoolean intentsRecovered = new AtomicBoolean();
+        @Nonnull
+        private final FileEntryCache fileEntryCache;
+        @Nonnull
+        private final AcquisitionMetrics acquisitionMetrics;
+        private final long byteQuota;
+        @Nonnull
+        private final Object totalSizeLock = new Object();
+        private long totalSizeInBytes = -1; // guarded by totalSizeLock, -1 if not read yet
+        @Nonnull
+        private final AtomicBoolean evictionScheduled = new AtomicBoolean();
+        /**
+         * Files released since their size and last acquire time were stored, to time of last release
+         */
+        @Nonnull
+        private final ConcurrentHashMap<ByteString, Long> pendingUsage = new ConcurrentHashMap<>();
+        @Nonnull
+        private final AtomicBoolean usageWriteScheduled = new AtomicBoolean();
+        @Nonnull
+        private final KeySchema.Compact keys = KeySchema.compact();
+        @Nonnull
+        private final KeyMigration keyMigration;
+        @Nonnull
+        private final UrlMappings urlMappings;
+        @Nonnull
+        private final FileDump fileDump;
 
-        FileDatabase(@Nonnull KeyValue keyValue, @Nonnull FileOperations fileOperations) {
+        FileDatabase(@Nonnull Scheduler scheduler, @Nonnull KeyValue keyValue, @Nonnull ExtendedFileOperations fileOperations, @Nonnull Settings settings) {
+            this.scheduler = scheduler;
             this.keyValue = keyValue;
             this.fileOperations = fileOperations;
+            final BatchWriter batchWriter = settings.batchWriter();
+            this.batchWriter = batchWriter == null ? new SequentialBatchWriter(keyValue) : batchWriter;
+            this.writeCoalescer = new WriteCoalescer(keyValue, this.batchWriter, new Runnable() {
+                @Override
+                public void run() {
+                    forgetDiscardedWrites();
+                }
+            });
+            this.idAllocator = new IdAllocator(keyValue, keys.idHighWaterMarkKey(), ID_RESERVATION);
+            this.volatileAcquisitions = new VolatileAcquisitions(fileLocks, settings.traceVolatileAcquisitions());
+            this.fileEntryCache = new FileEntryCache(fileLocks, settings.fileEntryCacheSize());
+            this.acquisitionMetrics = new AcquisitionMetrics(settings.recordAcquisitionMetrics());
+            this.byteQuota = settings.byteQuota();
+            this.keyMigration = new KeyMigration(this, keyValue, fileOperations, fileLocks, scheduler, keys);
+            this.urlMappings = new UrlMappings(this, fileLocks, fileEntryCache, keys);
+            this.fileDump = new FileDump(this, fileLocks, volatileAcquisitions, keys);
         }
 
         class FileEntry {
@@ -85,66 +389,142 @@ public class ManagedFileDao {
             }
 
             @Nonnull
-            ByteString acquireRestart(@Nonnull String acquireName) {
-                synchronized (FileDatabase.this) {
-                    final Message.AcquireMessage acquireMessage = newAcquire(acquireName);
+            ByteString acquireRestart(@Nonnull String acquireName, long leaseExpirationTimeInMillis) {
+                final Lock lock = fileLocks.lockFor(fileId);
+                lock.lock();
+                try {
+                    final Message.FileEntryMessage fileEntryMessage = readFileEntry(fileId);
+                    final Message.AcquireMessage acquireMessage = newAcquire(acquireName, leaseExpirationTimeInMillis);
                     final ByteString acquireKey = getAcquireKey(acquireMessage.getAcquireId());
-                    keyValue.put(acquireKey, acquireMessage.toByteString());
-                    keyValue.put(getAcquirePathIndex(acquireMessage), acquireKey);
+                    final Message.FileEntryMessage updatedFileEntry = withRestartAcquireCount(fileEntryMessage,
+                            restartAcquireCount(fileEntryMessage) + 1);
+                    final WriteBatch batch = new WriteBatch()
+                            .put(acquireKey, acquireMessage.toByteString())
+                            .put(getAcquirePathIndex(acquireMessage), acquireKey)
+                            .put(getManagedFileKey(fileId), updatedFileEntry.toByteString());
+                    if (hasLease(acquireMessage)) {
+                        batch.put(getAcquireLeaseIndex(acquireMessage), acquireKey);
+                    }
+                    write(batch);
+                    fileEntryCache.put(updatedFileEntry);
+                    acquisitionMetrics.recordAcquire(AcquisitionMetrics.Kind.RESTART, acquireName);
                     return acquireMessage.getAcquireId();
+                } catch (InvalidProtocolBufferException | NotFoundException e) {
+                    throw new RuntimeException("Wrong database state");
+                } finally {
+                    lock.unlock();
                 }
             }
 
             void releaseRestart(@Nonnull ByteString acquireId) {
-                synchronized (FileDatabase.this) {
-                    try {
-                        final Message.AcquireMessage acquireMessage = Message.AcquireMessage.parseFrom(keyValue.getBytes(getAcquireKey(acquireId)));
-                        keyValue.del(getAcquirePathIndex(acquireMessage));
-                        keyValue.del(getAcquireKey(acquireMessage.getAcquireId()));
-                    } catch (InvalidProtocolBufferException e) {
-                        throw new RuntimeException("Wrong database state");
-                    } catch (NotFoundException e) {
-                        throw new IllegalStateException("Acquire does not exist");
+                final Lock lock = fileLocks.lockFor(fileId);
+                lock.lock();
+                try {
+                    final Message.AcquireMessage acquireMessage = readAcquire(acquireId);
+                    final Message.FileEntryMessage fileEntryMessage = readFileEntry(fileId);
+                    final Message.FileEntryMessage releasedFileEntry = withRestartAcquireCount(fileEntryMessage,
+                            Math.max(0, restartAcquireCount(fileEntryMessage) - 1));
+                    final WriteBatch batch = new WriteBatch()
+                            .del(getAcquirePathIndex(acquireMessage))
+                            .del(getAcquireKey(acquireMessage.getAcquireId()));
+                    if (hasLease(acquireMessage)) {
+                        batch.del(getAcquireLeaseIndex(acquireMessage));
                     }
+                    pendingUsage.remove(fileId);
+                    final Message.FileEntryMessage updatedFileEntry = withUsage(fileEntryMessage, releasedFileEntry,
+                            scheduler.now(), batch);
+                    batch.put(getManagedFileKey(fileId), updatedFileEntry.toByteString());
+                    write(batch, updatedFileEntry.getSizeInBytes() - fileEntryMessage.getSizeInBytes());
+                    fileEntryCache.put(updatedFileEntry);
+                    acquisitionMetrics.recordRelease(AcquisitionMetrics.Kind.RESTART,
+                            acquireMessage.hasAcquiredTimeInMillis()
+                                    ? scheduler.now() - acquireMessage.getAcquiredTimeInMillis()
+                                    : AcquisitionMetrics.UNKNOWN_HOLD_TIME);
+                } catch (InvalidProtocolBufferException e) {
+                    throw new RuntimeException("Wrong database state");
+                } catch (NotFoundException e) {
+                    throw new IllegalStateException("Acquire does not exist");
+                } finally {
+                    lock.unlock();
                 }
             }
 
-            @Nonnull
-            ByteString acquireVolatile(@Nonnull String acquireName) {
-                synchronized (FileDatabase.this) {
-                    final ByteString acquire = idGenerator.newId();
-                    final Map<ByteString, Message.AcquireMessage> volotailAcquirisions = getVolatileAcqusitions();
-                    volotailAcquirisions.put(acquire, newAcquire(acquireName));
-                    return acquire;
+            long acquireVolatile(@Nonnull String acquireName) {
+                final Lock lock = fileLocks.lockFor(fileId);
+                lock.lock();
+                try {
+                    final long acquireId = volatileAcquisitions.acquire(fileId, acquireName);
+                    acquisitionMetrics.recordAcquire(AcquisitionMetrics.Kind.VOLATILE, acquireName);
+                    return acquireId;
+                } finally {
+                    lock.unlock();
                 }
             }
 
-            void releaseVolatile(@Nonnull ByteString acquireId) {
-                synchronized (FileDatabase.this) {
-                    final Map<ByteString, Message.AcquireMessage> volotailAcquirisions = getVolatileAcqusitions();
-                    final Message.AcquireMessage remove = volotailAcquirisions.remove(acquireId);
-                    if (remove == null) {
-                        throw new IllegalStateException("Already released");
+            /**
+             * Acquire file only if it was not removed in the meantime
+             *
+             * @return acquire id or {@link #NOT_ACQUIRED} if file does not exist anymore
+             */
+            long acquireVolatileIfExists(@Nonnull String acquireName) {
+                final Lock lock = fileLocks.lockFor(fileId);
+                lock.lock();
+                try {
+                    if (fileEntryByFileId(fileId) == null) {
+                        return NOT_ACQUIRED;
                     }
+                    return acquireVolatile(acquireName);
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            void releaseVolatile(long acquireId, long acquiredTimeInMillis) {
+                final Lock lock = fileLocks.lockFor(fileId);
+                lock.lock();
+                try {
+                    final long nowInMillis = scheduler.now();
+                    volatileAcquisitions.release(fileId, acquireId);
+                    acquisitionMetrics.recordRelease(AcquisitionMetrics.Kind.VOLATILE, nowInMillis - acquiredTimeInMillis);
+                    markUsed(fileId, nowInMillis);
+                } finally {
+                    lock.unlock();
                 }
             }
 
             @Nonnull
-            private Message.AcquireMessage newAcquire(@Nonnull String acquireName) {
+            private Message.AcquireMessage newAcquire(@Nonnull String acquireName, long leaseExpirationTimeInMillis) {
                 return Message.AcquireMessage.newBuilder()
                         .setFileId(fileId)
-                        .setAcquireId(idGenerator.newId())
+                        .setAcquireId(newId())
                         .setAcquireName(acquireName)
+                        .setAcquiredTimeInMillis(scheduler.now())
+                        .setLeaseExpirationTimeInMillis(leaseExpirationTimeInMillis)
                         .build();
             }
 
-            public void removeIfNonAcquired(long nowInMillis) {
-                removeIfNoneAcquired(fileId, nowInMillis);
+            int getVolatileAcquisitionCount() {
+                final Lock lock = fileLocks.lockFor(fileId);
+                lock.lock();
+                try {
+                    return volatileAcquisitions.count(fileId);
+                } finally {
+                    lock.unlock();
+                }
             }
 
+            /**
+             * @return acquire names, empty if tracing of volatile acquisitions is disabled
+             */
             @Nonnull
-            Map<ByteString, Message.AcquireMessage> getVolatileAcqusitions() {
-                return FileDatabase.this.getVolatileAcquisitions(fileId);
+            List<String> getVolatileAcquisitionNames() {
+                final Lock lock = fileLocks.lockFor(fileId);
+                lock.lock();
+                try {
+                    return volatileAcquisitions.names(fileId);
+                } finally {
+                    lock.unlock();
+                }
             }
 
             @Nonnull
@@ -154,72 +534,615 @@ public class ManagedFileDao {
 
         }
 
-        private synchronized void removeIfNoneAcquired(@Nonnull ByteString fileId, long nowInMillis) {
-            final Map<ByteString, Message.AcquireMessage> volotailAcquirisions = getVolatileAcquisitions(fileId);
-            if (!volotailAcquirisions.isEmpty()) {
+        /**
+         * Lock files in order of lock stripes, so bulk operations do not deadlock each other
+         *
+         * @return locked stripes to pass to {@link #unlockFiles(int[])}
+         */
+        @Nonnull
+        private int[] lockFiles(@Nonnull List<FileEntry> fileEntries) {
+            final List<ByteString> fileIds = new ArrayList<>(fileEntries.size());
+            for (FileEntry fileEntry : fileEntries) {
+                fileIds.add(fileEntry.fileId());
+            }
+            return lockFileIds(fileIds);
+        }
+
+        @Nonnull
+        private int[] lockFileIds(@Nonnull Collection<ByteString> fileIds) {
+            final int[] stripes = fileLocks.sortedIndexesFor(fileIds);
+            for (int stripe : stripes) {
+                fileLocks.lockAt(stripe).lock();
+            }
+            return stripes;
+        }
+
+        private void unlockFiles(@Nonnull int[] stripes) {
+            for (int i = stripes.length - 1; i >= 0; i--) {
+                fileLocks.lockAt(stripes[i]).unlock();
+            }
+        }
+
+        /**
+         * Acquire many files taking every file lock once
+         *
+         * @return acquire ids, in order of fileEntries
+         */
+        @Nonnull
+        long[] acquireVolatileAll(@Nonnull List<FileEntry> fileEntries, @Nonnull String acquireName) {
+            final long[] acquireIds = new long[fileEntries.size()];
+            final int[] stripes = lockFiles(fileEntries);
+            try {
+                for (int i = 0; i < acquireIds.length; i++) {
+                    acquireIds[i] = fileEntries.get(i).acquireVolatile(acquireName);
+                }
+            } finally {
+                unlockFiles(stripes);
+            }
+            return acquireIds;
+        }
+
+        /**
+         * Release many files taking every file lock once and writing one batch
+         */
+        void releaseVolatileAll(@Nonnull List<FileEntry> fileEntries,
+                                @Nonnull long[] acquireIds,
+                                @Nonnull long[] acquiredTimesInMillis) {
+            final int[] stripes = lockFiles(fileEntries);
+            try {
+                final long nowInMillis = scheduler.now();
+                for (int i = 0; i < fileEntries.size(); i++) {
+                    final ByteString fileId = fileEntries.get(i).fileId();
+                    volatileAcquisitions.release(fileId, acquireIds[i]);
+                    acquisitionMetrics.recordRelease(AcquisitionMetrics.Kind.VOLATILE, nowInMillis - acquiredTimesInMillis[i]);
+                    markUsed(fileId, nowInMillis);
+                }
+            } finally {
+                unlockFiles(stripes);
+            }
+        }
+
+        /**
+         * Remember that file was used, its size and last acquire time are written later
+         * by {@link #writeUsage()} so releasing does not touch database nor file system
+         */
+        private void markUsed(@Nonnull ByteString fileId, long nowInMillis) {
+            pendingUsage.put(fileId, nowInMillis);
+            if (!usageWriteScheduled.compareAndSet(false, true)) {
+                return;
+            }
+            final Scheduler.Worker worker = scheduler.createWorker();
+            worker.schedule(new Action0() {
+                @Override
+                public void call() {
+                    try {
+                        usageWriteScheduled.set(false);
+                        writeUsage();
+                    } finally {
+                        worker.unsubscribe();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Store size and last acquire time of released files in one batch
+         */
+        void writeUsage() {
+            if (pendingUsage.isEmpty()) {
+                return;
+            }
+            final List<ByteString> fileIds = new ArrayList<>(pendingUsage.keySet());
+            final int[] stripes = lockFileIds(fileIds);
+            try {
+                final WriteBatch batch = new WriteBatch();
+                final List<Message.FileEntryMessage> updatedFileEntries = new ArrayList<>();
+                long sizeDeltaInBytes = 0;
+                for (ByteString fileId : fileIds) {
+                    final Long usedTimeInMillis = pendingUsage.remove(fileId);
+                    if (usedTimeInMillis == null) {
+                        // Written or removed in the meantime
+                        continue;
+                    }
+                    final Message.FileEntryMessage fileEntryMessage;
+                    try {
+                        fileEntryMessage = readFileEntry(fileId);
+                    } catch (NotFoundException ignore) {
+                        continue;
+                    }
+                    final Message.FileEntryMessage updatedFileEntry = withUsage(fileEntryMessage, fileEntryMessage,
+                            usedTimeInMillis, batch);
+                    if (updatedFileEntry != fileEntryMessage) {
+                        batch.put(getManagedFileKey(fileId), updatedFileEntry.toByteString());
+                        sizeDeltaInBytes += updatedFileEntry.getSizeInBytes() - fileEntryMessage.getSizeInBytes();
+                        updatedFileEntries.add(updatedFileEntry);
+                    }
+                }
+                write(batch, sizeDeltaInBytes);
+                for (Message.FileEntryMessage updatedFileEntry : updatedFileEntries) {
+                    fileEntryCache.put(updatedFileEntry);
+                }
+            } catch (InvalidProtocolBufferException e) {
+                throw new RuntimeException("Wrong database state");
+            } finally {
+                unlockFiles(stripes);
+            }
+        }
+
+        @Override
+        public void write(@Nonnull WriteBatch batch) {
+            if (!batch.isEmpty()) {
+                writeCoalescer.write(batch);
+            }
+        }
+
+        /**
+         * Read value, including writes that are not flushed yet
+         */
+        @Nonnull
+        @Override
+        public ByteString getBytes(@Nonnull ByteString key) throws NotFoundException {
+            return writeCoalescer.getBytes(key);
+        }
+
+        /**
+         * List index, pending writes are flushed first so they are listed too
+         */
+        @Nonnull
+        @Override
+        public KeyValue.Iterator getKeys(@Nonnull ByteString prefix, @Nullable ByteString nextToken, int batch) {
+            writeCoalescer.flush();
+            return keyValue.getKeys(prefix, nextToken, batch);
+        }
+
+        /**
+         * Write batch together with updated total size of managed files
+         */
+        @Override
+        public void write(@Nonnull WriteBatch batch, long sizeDeltaInBytes) {
+            write(batch, sizeDeltaInBytes, false);
+        }
+
+        /**
+         * @param now write immediately, even if writes of current thread are deferred,
+         *            needed when files are touched after write
+         */
+        private void write(@Nonnull WriteBatch batch, long sizeDeltaInBytes, boolean now) {
+            if (sizeDeltaInBytes == 0) {
+                if (now) {
+                    writeCoalescer.writeNow(batch);
+                } else {
+                    write(batch);
+                }
+                return;
+            }
+            final long totalSize;
+            synchronized (totalSizeLock) {
+                totalSize = Math.max(0, totalSizeInBytes() + sizeDeltaInBytes);
+                batch.put(getTotalSizeKey(), longToBytes(totalSize));
+                if (now) {
+                    writeCoalescer.writeNow(batch);
+                } else {
+                    write(batch);
+                }
+                totalSizeInBytes = totalSize;
+            }
+            if (sizeDeltaInBytes > 0 && byteQuota > 0 && totalSize > byteQuota) {
+                scheduleEviction();
+            }
+        }
+
+        /**
+         * Cached entries and total size could include writes that were discarded, so they are
+         * read again from database
+         */
+        private void forgetDiscardedWrites() {
+            fileEntryCache.clear();
+            synchronized (totalSizeLock) {
+                totalSizeInBytes = -1;
+            }
+        }
+
+        long totalSizeInBytes() {
+            synchronized (totalSizeLock) {
+                if (totalSizeInBytes < 0) {
+                    try {
+                        totalSizeInBytes = bytesToLong(getBytes(getTotalSizeKey()));
+                    } catch (NotFoundException e) {
+                        // New database or files were never released
+                        totalSizeInBytes = 0;
+                    }
+                }
+                return totalSizeInBytes;
+            }
+        }
+
+        /**
+         * Update size and last acquire time of file entry, need to be called under file lock
+         *
+         * @param original entry as stored in database
+         * @param updated  entry with other changes that will be stored
+         * @param usedTimeInMillis time when file was released
+         * @param batch    batch to which index changes are added
+         * @return entry with usage, same instance as updated if nothing changed
+         */
+        @Nonnull
+        private Message.FileEntryMessage withUsage(@Nonnull Message.FileEntryMessage original,
+                                                   @Nonnull Message.FileEntryMessage updated,
+                                                   long usedTimeInMillis,
+                                                   @Nonnull WriteBatch batch) {
+            final long sizeInBytes = fileOperations.fileSize(original.getPath());
+            final boolean sizeChanged = sizeInBytes != original.getSizeInBytes();
+            final boolean touched = usedTimeInMillis - original.getLastAcquiredTimeInMillis() >= LAST_ACQUIRED_RESOLUTION_IN_MILLIS;
+            if (!sizeChanged && !touched) {
+                return updated;
+            }
+            final Message.FileEntryMessage withUsage = updated.toBuilder()
+                    .setSizeInBytes(sizeInBytes)
+                    .setLastAcquiredTimeInMillis(touched ? usedTimeInMillis : original.getLastAcquiredTimeInMillis())
+                    .build();
+            if (touched) {
+                batch.del(getManagedFileLruIndex(original))
+                        .put(getManagedFileLruIndex(withUsage), getManagedFileKey(original.getFileId()));
+            }
+            return withUsage;
+        }
+
+        private void scheduleEviction() {
+            if (!evictionScheduled.compareAndSet(false, true)) {
                 return;
             }
-            final Map<ByteString, Message.AcquireMessage> restartAcquirisions = getRestartAcquisitions(fileId);
-            if (!restartAcquirisions.isEmpty()) {
+            final Scheduler.Worker worker = scheduler.createWorker();
+            worker.schedule(new Action0() {
+                @Override
+                public void call() {
+                    try {
+                        evictToQuota(Integer.MAX_VALUE);
+                    } finally {
+                        evictionScheduled.set(false);
+                        worker.unsubscribe();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Remove least recently acquired files that are not acquired until size of all files
+         * is under quota
+         *
+         * @param limit maximum number of visited files
+         */
+        void evictToQuota(int limit) {
+            if (byteQuota <= 0) {
                 return;
             }
+            writeUsage();
+            final long nowInMillis = scheduler.now();
+            final ByteString prefix = getManagedFileLruPrefix();
+            ByteString nextTokenOrNull = null;
+            int visited = 0;
+            while (visited < limit && totalSizeInBytes() > byteQuota) {
+                final KeyValue.Iterator iterator = getKeys(prefix, nextTokenOrNull, Math.min(100, limit - visited));
+                final List<ByteString> keys = iterator.keys();
+                for (ByteString key : keys) {
+                    if (totalSizeInBytes() <= byteQuota) {
+                        return;
+                    }
+                    visited += 1;
+                    final Message.FileEntryMessage message;
+                    try {
+                        message = Message.FileEntryMessage.parseFrom(getBytes(key));
+                    } catch (NotFoundException ignore) {
+                        // Removed concurrently
+                        continue;
+                    } catch (InvalidProtocolBufferException e) {
+                        throw new RuntimeException(e);
+                    }
+                    removeIfNoneAcquired(message.getFileId(), nowInMillis, true);
+                }
+                nextTokenOrNull = iterator.nextToken();
+                if (nextTokenOrNull == null) {
+                    break;
+                }
+            }
+        }
+
+        @Nonnull
+        private ByteString newId() {
+            return idAllocator.newId();
+        }
+
+        /**
+         * Read file entry, from cache if possible
+         * <p>
+         * Cache is filled only under file lock, so entry removed in the meantime is never cached
+         */
+        @Nonnull
+        @Override
+        public Message.FileEntryMessage readFileEntry(@Nonnull ByteString fileId) throws NotFoundException, InvalidProtocolBufferException {
+            final Message.FileEntryMessage cached = fileEntryCache.get(fileId);
+            if (cached != null) {
+                return cached;
+            }
+            final Lock lock = fileLocks.lockFor(fileId);
+            lock.lock();
             try {
-                final Message.FileEntryMessage message = Message.FileEntryMessage.parseFrom(keyValue.getBytes(getManagedFileKey(fileId)));
-                if (message.getExpirationTimeInMillis() != 0 && nowInMillis < message.getExpirationTimeInMillis()) {
+                ByteString bytes;
+                try {
+                    bytes = getBytes(getManagedFileKey(fileId));
+                } catch (NotFoundException e) {
+                    if (!keyMigration.migrateFile(fileId)) {
+                        throw e;
+                    }
+                    bytes = getBytes(getManagedFileKey(fileId));
+                }
+                final Message.FileEntryMessage message = Message.FileEntryMessage.parseFrom(bytes);
+                fileEntryCache.put(message);
+                return message;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Nonnull
+        KeyMigration keyMigration() {
+            return keyMigration;
+        }
+
+        @Nonnull
+        UrlMappings urlMappings() {
+            return urlMappings;
+        }
+
+        int volatileAcquiredFilesCount() {
+            return volatileAcquisitions.size();
+        }
+
+        @Nonnull
+        CacheStats fileEntryCacheStats() {
+            return fileEntryCache.stats();
+        }
+
+        private void removeIfNoneAcquired(@Nonnull ByteString fileId, long nowInMillis, boolean evenIfNotExpired) {
+            final Lock lock = fileLocks.lockFor(fileId);
+            lock.lock();
+            try {
+                if (volatileAcquisitions.count(fileId) > 0) {
+                    return;
+                }
+                final Message.FileEntryMessage message = readFileEntry(fileId);
+                if (restartAcquireCount(message) > 0) {
+                    return;
+                }
+                if (!evenIfNotExpired && !isExpired(message, nowInMillis)) {
                     return;
                 }
 
+                fileEntryCache.remove(message.getFileId());
+                pendingUsage.remove(message.getFileId());
+                final ByteString intentKey = beginIntent();
+                final WriteBatch batch = new WriteBatch()
+                        .put(intentKey, intentMessage(intentKey, Message.IntentMessage.Type.DELETE, message.getPath()))
+                        .del(getManagedFileKey(message.getFileId()))
+                        .del(getManagedFilePathIndex(message))
+                        .del(getManagedFileAllIndex(message))
+                        .del(getManagedFileExpirationIndex(message))
+                        .del(getManagedFileLruIndex(message));
+                if (message.hasContentHash()) {
+                    final ByteString contentIndex = getManagedFileContentIndex(message.getContentHash());
+                    try {
+                        if (getBytes(contentIndex).equals(getManagedFileKey(message.getFileId()))) {
+                            batch.del(contentIndex);
+                        }
+                    } catch (NotFoundException ignore) {
+                        // Content index already points nowhere
+                    }
+                }
+                if (message.getUrlCount() == 0) {
+                    write(batch, -message.getSizeInBytes(), true);
+                } else {
+                    synchronized (urlMappings.lock()) {
+                        urlMappings.deleteMappings(batch, message);
+                        write(batch, -message.getSizeInBytes(), true);
+                    }
+                }
+                // file is removed after its entry, crash in between is repaired by recoverIntents()
                 fileOperations.removeFile(message.getPath());
-                keyValue.del(getManagedFileKey(message.getFileId()));
-                keyValue.del(getManagedFilePathIndex(message));
-                keyValue.del(getManagedFileAllIndex(message));
+                endIntent(intentKey);
 
             } catch (InvalidProtocolBufferException e) {
                 throw new RuntimeException("database issue");
             } catch (NotFoundException ignore) {
                 // Already removed
+            } finally {
+                lock.unlock();
             }
         }
 
+        /**
+         * Number of restart acquisitions of file, need to be called under file lock
+         * <p>
+         * Entries written before the counter existed do not have it, for them acquisitions
+         * are counted once and the counter is stored
+         */
+        private int restartAcquireCount(@Nonnull Message.FileEntryMessage message) {
+            if (message.hasRestartAcquireCount()) {
+                return message.getRestartAcquireCount();
+            }
+            final int count = getRestartAcquisitions(message.getFileId()).size();
+            final Message.FileEntryMessage updatedFileEntry = withRestartAcquireCount(message, count);
+            write(new WriteBatch()
+                    .put(getManagedFileKey(message.getFileId()), updatedFileEntry.toByteString()));
+            fileEntryCache.put(updatedFileEntry);
+            return count;
+        }
+
         @Nonnull
-        private synchronized Map<ByteString, Message.AcquireMessage> getRestartAcquisitions(ByteString fileId) {
-            final ByteString prefix = getAcquirePathPrefix(fileId);
-            ByteString nextTokenOrNull = null;
-            final Map<ByteString, Message.AcquireMessage> objects = new HashMap<>();
-            for (; ; ) {
+        private static Message.FileEntryMessage withRestartAcquireCount(@Nonnull Message.FileEntryMessage message, int count) {
+            return message.toBuilder()
+                    .setRestartAcquireCount(count)
+                    .build();
+        }
 
-                final KeyValue.Iterator iterator = keyValue.getKeys(prefix, nextTokenOrNull, 100);
-                final List<ByteString> keys = iterator.keys();
-                for (ByteString key : keys) {
+        private static boolean isExpired(@Nonnull Message.FileEntryMessage message, long nowInMillis) {
+            return message.getExpirationTimeInMillis() == 0 || nowInMillis >= message.getExpirationTimeInMillis();
+        }
+
+        /**
+         * Release restart acquisitions which lease expired
+         * <p>
+         * Lease index is ordered by lease expiration, so only expired leases are visited.
+         * Index entries of acquisitions that do not exist anymore are skipped and not counted,
+         * so they do not stop callers that release until less than limit is released.
+         *
+         * @param limit maximum number of released acquisitions
+         * @return number of released acquisitions
+         */
+        int releaseExpiredLeases(long nowInMillis, int limit) {
+            int released = 0;
+            ByteString nextTokenOrNull = null;
+            do {
+                final KeyValue.Iterator iterator = getKeys(getAcquireLeasePrefix(), nextTokenOrNull, limit);
+                for (ByteString key : iterator.keys()) {
+                    final Message.AcquireMessage acquireMessage;
                     try {
-                        final Message.AcquireMessage message = Message.AcquireMessage.parseFrom(keyValue.getBytes(key));
-                        objects.put(message.getAcquireId(), message);
-                    } catch (InvalidProtocolBufferException | NotFoundException e) {
+                        acquireMessage = Message.AcquireMessage.parseFrom(getBytes(key));
+                    } catch (NotFoundException ignore) {
+                        // Released concurrently or stale index entry
+                        continue;
+                    } catch (InvalidProtocolBufferException e) {
                         throw new RuntimeException(e);
                     }
+                    if (acquireMessage.getLeaseExpirationTimeInMillis() > nowInMillis) {
+                        return released;
+                    }
+                    final FileEntry fileEntry = fileEntryByFileId(acquireMessage.getFileId());
+                    if (fileEntry == null) {
+                        // file is already removed, only acquisition is left
+                        write(new WriteBatch()
+                                .del(getAcquireLeaseIndex(acquireMessage))
+                                .del(getAcquirePathIndex(acquireMessage))
+                                .del(getAcquireKey(acquireMessage.getAcquireId())));
+                    } else {
+                        try {
+                            fileEntry.releaseRestart(acquireMessage.getAcquireId());
+                        } catch (IllegalStateException ignore) {
+                            // Released concurrently
+                            continue;
+                        }
+                    }
+                    released += 1;
+                    if (released >= limit) {
+                        return released;
+                    }
                 }
                 nextTokenOrNull = iterator.nextToken();
-                if (nextTokenOrNull == null) {
-                    break;
+            } while (nextTokenOrNull != null);
+            return released;
+        }
+
+        private static boolean hasLease(@Nonnull Message.AcquireMessage acquireMessage) {
+            return acquireMessage.getLeaseExpirationTimeInMillis() != NO_LEASE;
+        }
+
+        /**
+         * Remove not acquired files that expired
+         * <p>
+         * Visits only entries from expiration index that are already expired, so cost depends
+         * on number of expired files not on number of all files
+         *
+         * @param cursor cursor returned from previous call or null to start from the oldest file
+         * @param limit  maximum number of visited files
+         * @return cursor to continue from or null if there are no more expired files
+         */
+        @Nullable
+        ByteString removeExpiredFiles(long nowInMillis, @Nullable ByteString cursor, int limit) {
+            final KeyValue.Iterator iterator = getKeys(getManagedFileExpirationPrefix(), cursor, limit);
+            final List<ByteString> keys = iterator.keys();
+            for (ByteString key : keys) {
+                final Message.FileEntryMessage message;
+                try {
+                    message = Message.FileEntryMessage.parseFrom(getBytes(key));
+                } catch (NotFoundException ignore) {
+                    // Removed concurrently
+                    continue;
+                } catch (InvalidProtocolBufferException e) {
+                    throw new RuntimeException(e);
+                }
+                if (!isExpired(message, nowInMillis)) {
+                    // index is ordered by expiration so all following files are not expired too
+                    return null;
                 }
+                removeIfNoneAcquired(message.getFileId(), nowInMillis, false);
             }
-            return objects;
+            return iterator.nextToken();
+        }
+
+        @Nonnull
+        private Map<ByteString, Message.AcquireMessage> getRestartAcquisitions(ByteString fileId) {
+            return getRestartAcquisitions(fileId, keys, Integer.MAX_VALUE);
+        }
+
+        /**
+         * @param limit maximal number of returned acquisitions
+         */
+        @Nonnull
+        @Override
+        public Map<ByteString, Message.AcquireMessage> getRestartAcquisitions(@Nonnull ByteString fileId, @Nonnull KeySchema schema, int limit) {
+            final Lock lock = fileLocks.lockFor(fileId);
+            lock.lock();
+            try {
+                final ByteString prefix = schema.acquireOfFilePrefix(fileId);
+                ByteString nextTokenOrNull = null;
+                final Map<ByteString, Message.AcquireMessage> objects = new HashMap<>();
+                while (objects.size() < limit) {
+
+                    final KeyValue.Iterator iterator = getKeys(prefix, nextTokenOrNull, Math.min(100, limit - objects.size()));
+                    final List<ByteString> keys = iterator.keys();
+                    for (ByteString key : keys) {
+                        try {
+                            final Message.AcquireMessage message = Message.AcquireMessage.parseFrom(getBytes(key));
+                            objects.put(message.getAcquireId(), message);
+                        } catch (InvalidProtocolBufferException | NotFoundException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    nextTokenOrNull = iterator.nextToken();
+                    if (nextTokenOrNull == null) {
+                        break;
+                    }
+                }
+                return objects;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Write page of file entries with their acquisitions, see {@link FileDump#writePage(Writer, ByteString, int)}
+         */
+        @Nullable
+        ByteString dumpFiles(@Nonnull Writer writer, @Nullable ByteString cursor, int maxFiles) throws IOException {
+            writeUsage();
+            return fileDump.writePage(writer, cursor, maxFiles);
         }
 
         @Nonnull
-        public synchronized ArrayList<FileEntry> getFileEntries() {
+        public ArrayList<FileEntry> getFileEntries() {
             final ByteString prefix = getManagedFileAllPrefx();
             ByteString nextTokenOrNull = null;
             final ArrayList<FileEntry> objects = new ArrayList<>();
             for (; ; ) {
 
-                final KeyValue.Iterator iterator = keyValue.getKeys(prefix, nextTokenOrNull, 100);
+                final KeyValue.Iterator iterator = getKeys(prefix, nextTokenOrNull, 100);
                 final List<ByteString> keys = iterator.keys();
                 for (ByteString key : keys) {
                     try {
-                        final Message.FileEntryMessage message = Message.FileEntryMessage.parseFrom(keyValue.getBytes(key));
+                        final Message.FileEntryMessage message = Message.FileEntryMessage.parseFrom(getBytes(key));
                         objects.add(new FileEntry(message.getFileId(), message.getPath()));
-                    } catch (InvalidProtocolBufferException | NotFoundException e) {
+                    } catch (NotFoundException ignore) {
+                        // Removed concurrently
+                    } catch (InvalidProtocolBufferException e) {
                         throw new RuntimeException(e);
                     }
                 }
@@ -232,16 +1155,16 @@ public class ManagedFileDao {
         }
 
         @Nonnull
-        public synchronized FileEntry fileEntryByManagedAcquireId(@Nonnull ByteString acquireId) throws IllegalStateException {
+        public FileEntry fileEntryByManagedAcquireId(@Nonnull ByteString acquireId) throws IllegalStateException {
             try {
                 final Message.AcquireMessage acquireMessage;
                 try {
-                    acquireMessage = Message.AcquireMessage.parseFrom(keyValue.getBytes(getAcquireKey(acquireId)));
+                    acquireMessage = readAcquire(acquireId);
                 } catch (NotFoundException e) {
                     throw new IllegalStateException("Acquire does not exist");
                 }
                 try {
-                    final Message.FileEntryMessage fileEntryMessage = Message.FileEntryMessage.parseFrom(keyValue.getBytes(getManagedFileKey(acquireMessage.getFileId())));
+                    final Message.FileEntryMessage fileEntryMessage = readFileEntry(acquireMessage.getFileId());
                     return new FileEntry(fileEntryMessage.getFileId(), fileEntryMessage.getPath());
                 } catch (NotFoundException e) {
                     throw new RuntimeException("Can not read from database");
@@ -252,29 +1175,411 @@ public class ManagedFileDao {
         }
 
         @Nonnull
-        public synchronized FileEntry create(@Nonnull String path, long expirationTimeInMillis) {
+        public FileEntry create(@Nonnull String path, long expirationTimeInMillis) {
+            return create(path, expirationTimeInMillis, null);
+        }
+
+        @Nonnull
+        private FileEntry create(@Nonnull String path, long expirationTimeInMillis, @Nullable ByteString intentKey) {
+            synchronized (createLock) {
+                if (isManaged(path)) {
+                    throw new IllegalStateException("File already managed");
+                }
+                return createWithoutCheck(path, expirationTimeInMillis, 0, intentKey);
+            }
+        }
+
+        /**
+         * Create new empty file in directory and manage it
+         * <p>
+         * Intent is written before file is created and removed together with writing file entry,
+         * so file left by crash in between is removed by {@link #recoverIntents()}
+         */
+        @Nonnull
+        FileEntry createFile(@Nonnull File directory, @Nullable String suffix, long expirationTimeInMillis) throws IOException {
+            for (; ; ) {
+                final String path = newManagedPath(directory, suffix);
+                final ByteString intentKey = beginIntent();
+                try {
+                    // intent key is new, so it can not be overtaken by pending writes
+                    keyValue.put(intentKey, intentMessage(intentKey, Message.IntentMessage.Type.CREATE, path));
+                    if (!fileOperations.createFile(path)) {
+                        // name already taken, try another one
+                        endIntent(intentKey);
+                        continue;
+                    }
+                    return create(path, expirationTimeInMillis, intentKey);
+                } catch (IOException | RuntimeException e) {
+                    fileOperations.removeFile(path);
+                    endIntent(intentKey);
+                    throw e;
+                } finally {
+                    inFlightIntents.remove(intentKey);
+                }
+            }
+        }
+
+        /**
+         * Create many new empty files in directory and manage them
+         * <p>
+         * Intents of all files are written in one batch, and removed together with writing
+         * file entries in one batch
+         */
+        @Nonnull
+        List<FileEntry> createFiles(@Nonnull File directory, @Nullable String suffix, int count,
+                                    long expirationTimeInMillis) throws IOException {
+            final List<String> paths = new ArrayList<>(count);
+            final List<ByteString> intentKeys = new ArrayList<>(count);
+            final WriteBatch intents = new WriteBatch();
+            for (int i = 0; i < count; i++) {
+                final String path = newManagedPath(directory, suffix);
+                final ByteString intentKey = beginIntent();
+                paths.add(path);
+                intentKeys.add(intentKey);
+                intents.put(intentKey, intentMessage(intentKey, Message.IntentMessage.Type.CREATE, path));
+            }
+            final List<String> created = new ArrayList<>(count);
             try {
-                keyValue.getBytes(getManagedFilePathPrefix(path));
-                throw new IllegalStateException("File already managed");
-            } catch (NotFoundException ignore) {
+                writeCoalescer.writeNow(intents);
+                for (int i = 0; i < count; i++) {
+                    while (!fileOperations.createFile(paths.get(i))) {
+                        // name already taken, try another one
+                        final String path = newManagedPath(directory, suffix);
+                        final ByteString intentKey = beginIntent();
+                        final ByteString takenIntentKey = intentKeys.set(i, intentKey);
+                        paths.set(i, path);
+                        writeCoalescer.writeNow(new WriteBatch()
+                                .del(takenIntentKey)
+                                .put(intentKey, intentMessage(intentKey, Message.IntentMessage.Type.CREATE, path)));
+                        inFlightIntents.remove(takenIntentKey);
+                    }
+                    created.add(paths.get(i));
+                }
+                return createAll(paths, expirationTimeInMillis, intentKeys);
+            } catch (IOException | RuntimeException e) {
+                final WriteBatch batch = new WriteBatch();
+                for (String path : created) {
+                    fileOperations.removeFile(path);
+                }
+                for (ByteString intentKey : intentKeys) {
+                    batch.del(intentKey);
+                }
+                write(batch);
+                throw e;
+            } finally {
+                inFlightIntents.removeAll(intentKeys);
+            }
+        }
+
+        @Nonnull
+        private static String newManagedPath(@Nonnull File directory, @Nullable String suffix) {
+            return new File(directory, "managed" + UUID.randomUUID() + (suffix == null ? "" : suffix))
+                    .getAbsolutePath();
+        }
+
+        @Nonnull
+        private ByteString beginIntent() {
+            final ByteString intentKey = getIntentKey(newId());
+            inFlightIntents.add(intentKey);
+            return intentKey;
+        }
+
+        private void endIntent(@Nonnull ByteString intentKey) {
+            write(new WriteBatch().del(intentKey));
+            inFlightIntents.remove(intentKey);
+        }
+
+        @Nonnull
+        private ByteString intentMessage(@Nonnull ByteString intentKey,
+                                         @Nonnull Message.IntentMessage.Type type,
+                                         @Nonnull String path) {
+            return Message.IntentMessage.newBuilder()
+                    .setIntentKey(intentKey)
+                    .setType(type)
+                    .setPath(path)
+                    .build()
+                    .toByteString();
+        }
+
+        /**
+         * Intents left by previous process need to be replayed once, later intents are
+         * in flight or already finished
+         */
+        void ensureIntentsRecovered() {
+            if (intentsRecovered.compareAndSet(false, true)) {
+                recoverIntents();
+            }
+        }
+
+        /**
+         * Finish operations interrupted by crash
+         * <p>
+         * Only intents left by interrupted operations are visited, not all files
+         *
+         * @return number of finished operations
+         */
+        int recoverIntents() {
+            final ByteString prefix = getIntentPrefix();
+            int recovered = 0;
+            ByteString nextTokenOrNull = null;
+            for (; ; ) {
+                final KeyValue.Iterator iterator = getKeys(prefix, nextTokenOrNull, SWEEP_PAGE_SIZE);
+                for (ByteString value : iterator.keys()) {
+                    final Message.IntentMessage intent;
+                    try {
+                        intent = Message.IntentMessage.parseFrom(value);
+                    } catch (InvalidProtocolBufferException e) {
+                        throw new RuntimeException("Wrong database state");
+                    }
+                    if (inFlightIntents.contains(intent.getIntentKey())) {
+                        continue;
+                    }
+                    switch (intent.getType()) {
+                        case CREATE:
+                            synchronized (createLock) {
+                                if (!isManaged(intent.getPath())) {
+                                    fileOperations.removeFile(intent.getPath());
+                                }
+                            }
+                            break;
+                        case DELETE:
+                            fileOperations.removeFile(intent.getPath());
+                            break;
+                        default:
+                            throw new RuntimeException("Wrong database state");
+                    }
+                    write(new WriteBatch().del(intent.getIntentKey()));
+                    recovered += 1;
+                }
+                nextTokenOrNull = iterator.nextToken();
+                if (nextTokenOrNull == null) {
+                    return recovered;
+                }
+            }
+        }
+
+        /**
+         * Remove or adopt files that are not managed
+         *
+         * @param paths files to check
+         * @param modifiedBeforeInMillis files modified later are skipped, they can be just created
+         * @return number of removed or adopted files
+         */
+        int reconcile(@Nonnull List<String> paths, @Nonnull OrphanPolicy policy,
+                      long modifiedBeforeInMillis, long expirationTimeInMillis) {
+            int reconciled = 0;
+            for (String path : paths) {
+                if (fileOperations.lastModified(path) >= modifiedBeforeInMillis) {
+                    continue;
+                }
+                // createLock, so file can not become managed between check and removal
+                synchronized (createLock) {
+                    if (isManaged(path)) {
+                        continue;
+                    }
+                    switch (policy) {
+                        case DELETE:
+                            fileOperations.removeFile(path);
+                            break;
+                        case ADOPT:
+                            createWithoutCheck(path, expirationTimeInMillis, fileOperations.fileSize(path), null);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown policy: " + policy);
+                    }
+                }
+                reconciled += 1;
+            }
+            return reconciled;
+        }
+
+        private boolean isManaged(@Nonnull String path) {
+            try {
+                getBytes(getManagedFilePathPrefix(path));
+                return true;
+            } catch (NotFoundException e) {
+                return keyMigration.migrateFileWithPath(path);
+            }
+        }
+
+        /**
+         * Manage many files writing one batch
+         *
+         * @param intentKeys intents removed together with writing file entries or null
+         * @throws IllegalStateException if any of files is already managed, then none is managed
+         */
+        @Nonnull
+        List<FileEntry> createAll(@Nonnull List<String> paths, long expirationTimeInMillis,
+                                  @Nullable List<ByteString> intentKeys) {
+            synchronized (createLock) {
+                final Set<String> uniquePaths = new HashSet<>();
+                for (String path : paths) {
+                    if (!uniquePaths.add(path) || isManaged(path)) {
+                        throw new IllegalStateException("File already managed");
+                    }
+                }
+                final WriteBatch batch = new WriteBatch();
+                final List<Message.FileEntryMessage> messages = new ArrayList<>(paths.size());
+                for (String path : paths) {
+                    messages.add(putNewFileEntry(batch, path, expirationTimeInMillis, 0));
+                }
+                if (intentKeys != null) {
+                    for (ByteString intentKey : intentKeys) {
+                        batch.del(intentKey);
+                    }
+                }
+                write(batch);
+                final List<FileEntry> fileEntries = new ArrayList<>(messages.size());
+                for (Message.FileEntryMessage message : messages) {
+                    fileEntryCache.put(message);
+                    fileEntries.add(new FileEntry(message.getFileId(), message.getPath()));
+                }
+                return fileEntries;
+            }
+        }
+
+        @Nonnull
+        private FileEntry createWithoutCheck(@Nonnull String path, long expirationTimeInMillis, long sizeInBytes,
+                                             @Nullable ByteString intentKey) {
+            final WriteBatch batch = new WriteBatch();
+            final Message.FileEntryMessage message = putNewFileEntry(batch, path, expirationTimeInMillis, sizeInBytes);
+            if (intentKey != null) {
+                batch.del(intentKey);
             }
-            final ByteString fileId = idGenerator.newId();
+            write(batch, sizeInBytes);
+            fileEntryCache.put(message);
+            return new FileEntry(message.getFileId(), path);
+        }
+
+        /**
+         * Add new file entry with its indexes to batch
+         */
+        @Nonnull
+        private Message.FileEntryMessage putNewFileEntry(@Nonnull WriteBatch batch, @Nonnull String path,
+                                                         long expirationTimeInMillis, long sizeInBytes) {
+            final ByteString fileId = newId();
             final Message.FileEntryMessage message = Message.FileEntryMessage.newBuilder()
                     .setFileId(fileId)
                     .setPath(path)
                     .setExpirationTimeInMillis(expirationTimeInMillis)
+                    .setRestartAcquireCount(0)
+                    .setSizeInBytes(sizeInBytes)
+                    .setLastAcquiredTimeInMillis(scheduler.now())
                     .build();
             final ByteString keyId = getManagedFileKey(fileId);
-            keyValue.put(keyId, message.toByteString());
-            keyValue.put(getManagedFilePathIndex(message), keyId);
-            keyValue.put(getManagedFileAllIndex(message), keyId);
-            return new FileEntry(fileId, path);
+            batch.put(keyId, message.toByteString())
+                    .put(getManagedFilePathIndex(message), keyId)
+                    .put(getManagedFileAllIndex(message), keyId)
+                    .put(getManagedFileExpirationIndex(message), keyId)
+                    .put(getManagedFileLruIndex(message), keyId);
+            return message;
+        }
+
+        /**
+         * Find file with given content or make this file the one for given content
+         *
+         * @return file that has given content, fileEntry if there was no such file before
+         */
+        @Nonnull
+        FileEntry registerContentOrGetOwner(@Nonnull FileEntry fileEntry, @Nonnull ByteString contentHash) {
+            synchronized (contentLock) {
+                try {
+                    final Message.FileEntryMessage owner = readContentOwner(contentHash);
+                    return new FileEntry(owner.getFileId(), owner.getPath());
+                } catch (NotFoundException ignore) {
+                    // No file with this content
+                } catch (InvalidProtocolBufferException e) {
+                    throw new RuntimeException("Wrong database state");
+                }
+                final Lock lock = fileLocks.lockFor(fileEntry.fileId());
+                lock.lock();
+                try {
+                    final Message.FileEntryMessage message = readFileEntry(fileEntry.fileId());
+                    final Message.FileEntryMessage updatedFileEntry = message.toBuilder()
+                            .setContentHash(contentHash)
+                            .build();
+                    final ByteString keyId = getManagedFileKey(message.getFileId());
+                    write(new WriteBatch()
+                            .put(keyId, updatedFileEntry.toByteString())
+                            .put(getManagedFileContentIndex(contentHash), keyId));
+                    fileEntryCache.put(updatedFileEntry);
+                    return fileEntry;
+                } catch (InvalidProtocolBufferException | NotFoundException e) {
+                    throw new RuntimeException("Wrong database state");
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        @Nonnull
+        private Message.FileEntryMessage readContentOwner(@Nonnull ByteString contentHash) throws NotFoundException, InvalidProtocolBufferException {
+            return Message.FileEntryMessage.parseFrom(getBytes(getBytes(getManagedFileContentIndex(contentHash))));
+        }
+
+        /**
+         * Acquire owner of content and fold duplicate into it
+         * <p>
+         * Owner expires not earlier than duplicate and duplicate expires now, so it is removed as
+         * soon as it is released. Both entries are written in one batch under locks of both files.
+         *
+         * @return acquire id of owner or {@link #NOT_ACQUIRED} if owner does not own the content anymore
+         */
+        long foldIntoOwner(@Nonnull FileEntry duplicate, @Nonnull FileEntry owner,
+                           @Nonnull ByteString contentHash, @Nonnull String acquireName) {
+            final int[] stripes = lockFiles(Arrays.asList(owner, duplicate));
+            try {
+                final ByteString ownerKeyId = getManagedFileKey(owner.fileId());
+                try {
+                    // content index is removed together with owner, under owner lock
+                    if (!ownerKeyId.equals(getBytes(getManagedFileContentIndex(contentHash)))) {
+                        return NOT_ACQUIRED;
+                    }
+                } catch (NotFoundException e) {
+                    return NOT_ACQUIRED;
+                }
+                final Message.FileEntryMessage ownerMessage = readFileEntry(owner.fileId());
+                final Message.FileEntryMessage duplicateMessage = readFileEntry(duplicate.fileId());
+                final WriteBatch batch = new WriteBatch();
+                final Message.FileEntryMessage updatedOwner = ownerMessage.getExpirationTimeInMillis() < duplicateMessage.getExpirationTimeInMillis()
+                        ? withExpiration(ownerMessage, duplicateMessage.getExpirationTimeInMillis(), batch)
+                        : ownerMessage;
+                final Message.FileEntryMessage updatedDuplicate = withExpiration(duplicateMessage, scheduler.now(), batch);
+                write(batch);
+                fileEntryCache.put(updatedOwner);
+                fileEntryCache.put(updatedDuplicate);
+                return owner.acquireVolatile(acquireName);
+            } catch (InvalidProtocolBufferException | NotFoundException e) {
+                throw new RuntimeException("Wrong database state");
+            } finally {
+                unlockFiles(stripes);
+            }
+        }
+
+        /**
+         * Change expiration of file and move it in expiration index, need to be called under file lock
+         *
+         * @param batch batch to which entry and index changes are added
+         * @return updated entry
+         */
+        @Nonnull
+        private Message.FileEntryMessage withExpiration(@Nonnull Message.FileEntryMessage message,
+                                                        long expirationTimeInMillis,
+                                                        @Nonnull WriteBatch batch) {
+            final Message.FileEntryMessage updatedFileEntry = message.toBuilder()
+                    .setExpirationTimeInMillis(expirationTimeInMillis)
+                    .build();
+            final ByteString keyId = getManagedFileKey(message.getFileId());
+            batch.del(getManagedFileExpirationIndex(message))
+                    .put(keyId, updatedFileEntry.toByteString())
+                    .put(getManagedFileExpirationIndex(updatedFileEntry), keyId);
+            return updatedFileEntry;
         }
 
         @Nullable
-        public synchronized FileEntry fileEntryByFileId(@Nonnull ByteString fileId) {
+        public FileEntry fileEntryByFileId(@Nonnull ByteString fileId) {
             try {
-                Message.FileEntryMessage message = Message.FileEntryMessage.parseFrom(keyValue.getBytes(getManagedFileKey(fileId)));
+                final Message.FileEntryMessage message = readFileEntry(fileId);
                 return new FileEntry(message.getFileId(), message.getPath());
             } catch (NotFoundException e) {
                 return null;
@@ -283,73 +1588,115 @@ public class ManagedFileDao {
             }
         }
 
-
         @Nonnull
-        private synchronized Map<ByteString, Message.AcquireMessage> getVolatileAcquisitions(@Nonnull ByteString fileId) {
-            final Map<ByteString, Message.AcquireMessage> elements = volotailAcqurisions.get(fileId);
-            if (elements != null) {
-                return elements;
+        private Message.AcquireMessage readAcquire(@Nonnull ByteString acquireId) throws NotFoundException, InvalidProtocolBufferException {
+            try {
+                return Message.AcquireMessage.parseFrom(getBytes(getAcquireKey(acquireId)));
+            } catch (NotFoundException e) {
+                if (!keyMigration.migrateFileOfAcquire(acquireId)) {
+                    throw e;
+                }
+                return Message.AcquireMessage.parseFrom(getBytes(getAcquireKey(acquireId)));
             }
-            final HashMap<ByteString, Message.AcquireMessage> newElements = new HashMap<>();
-            volotailAcqurisions.put(fileId, newElements);
-            return newElements;
         }
 
+        @Nonnull
+        private ByteString getAcquireKey(@Nonnull ByteString acquireId) {
+            return keys.acquireKey(acquireId);
+        }
+
+        @Nonnull
+        private ByteString getAcquirePathPrefix(@Nonnull ByteString fileId) {
+            return keys.acquireOfFilePrefix(fileId);
+        }
+
+        @Nonnull
+        private ByteString getAcquirePathIndex(@Nonnull Message.AcquireMessage acquireMessage) {
+            return keys.acquireOfFileIndex(acquireMessage);
+        }
+
+        @Nonnull
+        private ByteString getAcquireLeaseIndex(@Nonnull Message.AcquireMessage acquireMessage) {
+            return keys.acquireLeaseIndex(acquireMessage);
+        }
+
+        @Nonnull
+        private ByteString getAcquireLeasePrefix() {
+            return keys.acquireLeasePrefix();
+        }
+
+        @Nonnull
+        private ByteString getManagedFileKey(@Nonnull ByteString fileId) {
+            return keys.fileKey(fileId);
+        }
+
+        @Nonnull
+        private ByteString getManagedFilePathPrefix(@Nonnull String path) {
+            return keys.filePathKey(path);
+        }
 
-        private static final byte[] ACQUIRE = "managed_file_acquire".getBytes();
-        private static final byte[] ACQUIRE_ORDER_FILE = "managed_file_acquire_order_file".getBytes();
-        private static final byte[] ACQUIRE_ORDER_FILE_INDEX_FILE_ID = "file_id".getBytes();
-        private static final byte[] MANAGED_FILE = "managed_file".getBytes();
-        private static final byte[] MANAGED_FILE_PATH = "managed_file_path".getBytes();
-        private static final byte[] MANAGED_FILE_ALL = "manged_file_all".getBytes();
+        @Nonnull
+        private ByteString getManagedFilePathIndex(@Nonnull Message.FileEntryMessage message) {
+            return keys.filePathKey(message.getPath());
+        }
+
+        @Nonnull
+        private ByteString getManagedFileAllIndex(@Nonnull Message.FileEntryMessage message) {
+            return keys.fileAllIndex(message.getFileId());
+        }
+
+        @Nonnull
+        private ByteString getManagedFileAllPrefx() {
+            return keys.fileAllPrefix();
+        }
 
         @Nonnull
-        private final KeyGenerator keyGenerator = new KeyGenerator();
+        private ByteString getManagedFileExpirationIndex(@Nonnull Message.FileEntryMessage message) {
+            return keys.fileExpirationIndex(message);
+        }
 
         @Nonnull
-        private synchronized ByteString getAcquireKey(@Nonnull ByteString acquireId) {
-            return keyGenerator.value(ACQUIRE, acquireId);
+        private ByteString getManagedFileExpirationPrefix() {
+            return keys.fileExpirationPrefix();
         }
 
         @Nonnull
-        private synchronized ByteString getAcquirePathPrefix(@Nonnull ByteString fileId) {
-            return keyGenerator.startIndex(ACQUIRE_ORDER_FILE)
-                    .addField(ACQUIRE_ORDER_FILE_INDEX_FILE_ID, fileId)
-                    .buildQuery();
+        private ByteString getManagedFileLruIndex(@Nonnull Message.FileEntryMessage message) {
+            return keys.fileLruIndex(message);
         }
 
         @Nonnull
-        private synchronized ByteString getAcquirePathIndex(@Nonnull Message.AcquireMessage acquireMessage) {
-            return keyGenerator.startIndex(ACQUIRE_ORDER_FILE)
-                    .addField(ACQUIRE_ORDER_FILE_INDEX_FILE_ID, acquireMessage.getFileId())
-                    .buildIndex(acquireMessage.getAcquireId());
+        private ByteString getManagedFileLruPrefix() {
+            return keys.fileLruPrefix();
         }
 
         @Nonnull
-        private synchronized ByteString getManagedFileKey(@Nonnull ByteString fileId) {
-            return keyGenerator.value(MANAGED_FILE, fileId);
+        private ByteString getManagedFileContentIndex(@Nonnull ByteString contentHash) {
+            return keys.fileContentKey(contentHash);
         }
 
         @Nonnull
-        private synchronized ByteString getManagedFilePathPrefix(@Nonnull String path) {
-            return keyGenerator.value(MANAGED_FILE_PATH, ByteString.copyFromUtf8(path));
+        private ByteString getIntentKey(@Nonnull ByteString intentId) {
+            return keys.intentKey(intentId);
         }
 
         @Nonnull
-        private synchronized ByteString getManagedFilePathIndex(@Nonnull Message.FileEntryMessage message) {
-            return keyGenerator.value(MANAGED_FILE_PATH, ByteString.copyFromUtf8(message.getPath()));
+        private ByteString getIntentPrefix() {
+            return keys.intentPrefix();
         }
 
         @Nonnull
-        private synchronized ByteString getManagedFileAllIndex(@Nonnull Message.FileEntryMessage message) {
-            return keyGenerator.startIndex(MANAGED_FILE_ALL)
-                    .buildIndex(message.getFileId());
+        private ByteString getTotalSizeKey() {
+            return keys.totalSizeKey();
         }
 
         @Nonnull
-        private synchronized ByteString getManagedFileAllPrefx() {
-            return keyGenerator.startIndex(MANAGED_FILE_ALL)
-                    .buildQuery();
+        private static ByteString longToBytes(long value) {
+            return KeySchema.longToBytes(value);
+        }
+
+        private static long bytesToLong(@Nonnull ByteString bytes) {
+            return KeySchema.bytesToLong(bytes);
         }
     }
 
@@ -364,7 +1711,7 @@ public class ManagedFileDao {
         ByteString managedFileId();
     }
 
-    public static class FakeManagedFile implements RestartManagedFile {
+    public static class FakeManagedFile implements RestartManagedFile, LeasableManagedFile {
 
         @Nonnull
         private final String fileName;
@@ -430,6 +1777,12 @@ public class ManagedFileDao {
         @Nonnull
         @Override
         public RestartManagedFile newRestartManagedFile(@Nonnull String acquireName) throws IllegalStateException {
+            return newRestartManagedFile(acquireName, NO_LEASE);
+        }
+
+        @Nonnull
+        @Override
+        public RestartManagedFile newRestartManagedFile(@Nonnull String acquireName, long leaseExpirationTimeInMillis) throws IllegalStateException {
             checkIfNotReleased();
             counter.incrementAndGet();
             return new FakeManagedFile(fileName, acquireName, counter);
@@ -444,7 +1797,7 @@ public class ManagedFileDao {
         }
     }
 
-    abstract class BaseAdvancedManagedFile implements ManagedFile {
+    abstract class BaseAdvancedManagedFile implements LeasableManagedFile {
 
         @Nonnull
         protected final FileDatabase.FileEntry fileEntry;
@@ -475,9 +1828,13 @@ public class ManagedFileDao {
 
         @Override
         public void release() throws IllegalStateException {
+            markReleased();
+            releaseWithoutCheck();
+        }
+
+        void markReleased() throws IllegalStateException {
             checkIfReleased();
             released = true;
-            releaseWithoutCheck();
         }
 
         protected abstract void releaseWithoutCheck();
@@ -485,13 +1842,19 @@ public class ManagedFileDao {
         @Nonnull
         @Override
         public RestartManagedFile newRestartManagedFile(@Nonnull String acquireName) throws IllegalStateException {
-            return new AdvancedRestartManagedFile(fileEntry, fileEntry.acquireRestart(acquireName));
+            return newRestartManagedFile(acquireName, NO_LEASE);
+        }
+
+        @Nonnull
+        @Override
+        public RestartManagedFile newRestartManagedFile(@Nonnull String acquireName, long leaseExpirationTimeInMillis) throws IllegalStateException {
+            return new AdvancedRestartManagedFile(fileEntry, fileEntry.acquireRestart(acquireName, leaseExpirationTimeInMillis));
         }
 
         @Nonnull
         @Override
         public ManagedFile newManagedFile(@Nonnull String acquireName) throws IllegalStateException {
-            return new AdvancedVolatileManagedFile(fileEntry, fileEntry.acquireVolatile(acquireName));
+            return new AdvancedVolatileManagedFile(fileEntry, fileEntry.acquireVolatile(acquireName), acquireName);
         }
     }
 
@@ -519,17 +1882,51 @@ public class ManagedFileDao {
 
     class AdvancedVolatileManagedFile extends BaseAdvancedManagedFile {
 
+        private final long acquireId;
+        private final long acquiredTimeInMillis;
+        @Nullable
+        private final LeakDetector.Tracker tracker;
+
+        AdvancedVolatileManagedFile(@Nonnull FileDatabase.FileEntry fileEntry, long acquire, @Nonnull String acquireName) {
+            super(fileEntry);
+            acquireId = acquire;
+            acquiredTimeInMillis = networkScheduler.now();
+            tracker = leakDetector.track(this, fileEntry.fileId(), acquireName,
+                    new VolatileReleaser(fileEntry, acquireId, acquiredTimeInMillis));
+        }
+
+        @Override
+        protected void releaseWithoutCheck() {
+            untrack();
+            fileEntry.releaseVolatile(acquireId, acquiredTimeInMillis);
+        }
+
+        void untrack() {
+            if (tracker != null) {
+                tracker.untrack();
+            }
+        }
+    }
+
+    /**
+     * Releases volatile acquisition of leaked handle, must not reference the handle
+     */
+    private static class VolatileReleaser implements LeakDetector.Releaser {
+
         @Nonnull
-        private final ByteString acquireId;
+        private final FileDatabase.FileEntry fileEntry;
+        private final long acquireId;
+        private final long acquiredTimeInMillis;
 
-        AdvancedVolatileManagedFile(@Nonnull FileDatabase.FileEntry fileEntry, @Nonnull ByteString acquire) {
-            super(fileEntry);
-            acquireId = acquire;
+        VolatileReleaser(@Nonnull FileDatabase.FileEntry fileEntry, long acquireId, long acquiredTimeInMillis) {
+            this.fileEntry = fileEntry;
+            this.acquireId = acquireId;
+            this.acquiredTimeInMillis = acquiredTimeInMillis;
         }
 
         @Override
-        protected void releaseWithoutCheck() {
-            fileEntry.releaseVolatile(acquireId);
+        public void release() {
+            fileEntry.releaseVolatile(acquireId, acquiredTimeInMillis);
         }
     }
 
@@ -582,17 +1979,168 @@ public class ManagedFileDao {
         ManagedFile newManagedFile(@Nonnull String acquireName) throws IllegalStateException;
     }
 
+    /**
+     * Managed file that can be acquired with lease, implemented by files of this dao
+     *
+     * @see #newRestartManagedFile(ManagedFile, String, long)
+     */
+    public interface LeasableManagedFile extends ManagedFile {
+
+        /**
+         * Acquire managed file that will be kept after restarts, but only until lease expires
+         * <p>
+         * Acquisition is released by {@link ManagedFileDao#removeOldFiles()} after lease expiration,
+         * even if it was never released
+         *
+         * @param acquireName                 name of acquire - for debugging
+         * @param leaseExpirationTimeInMillis time of lease expiration by {@link ManagedFileDao#now()}
+         *                                    or {@link #NO_LEASE}
+         * @return restart managed file
+         * @throws IllegalStateException if called after release()
+         */
+        @Nonnull
+        RestartManagedFile newRestartManagedFile(@Nonnull String acquireName, long leaseExpirationTimeInMillis) throws IllegalStateException;
+    }
+
+    /**
+     * Acquire managed file with lease if it is {@link LeasableManagedFile}, other managed files
+     * are acquired until released
+     *
+     * @see LeasableManagedFile#newRestartManagedFile(String, long)
+     */
+    @Nonnull
+    public static RestartManagedFile newRestartManagedFile(@Nonnull ManagedFile managedFile,
+                                                           @Nonnull String acquireName,
+                                                           long leaseExpirationTimeInMillis) throws IllegalStateException {
+        if (managedFile instanceof LeasableManagedFile) {
+            return ((LeasableManagedFile) managedFile).newRestartManagedFile(acquireName, leaseExpirationTimeInMillis);
+        }
+        return managedFile.newRestartManagedFile(acquireName);
+    }
+
     @Nonnull
     private final Scheduler networkScheduler;
     @Nonnull
     private final FileDatabase fileDatabase;
+    @Nonnull
+    private final ExtendedFileOperations fileOperations;
+    @Nonnull
+    private final LeakDetector leakDetector;
+    private final boolean deduplicateContent;
+    @Nullable
+    private volatile AsyncManagedFileDao async;
+
+    public ManagedFileDao(@Nonnull Scheduler networkScheduler,
+                          @Nonnull KeyValue keyValue,
+                          @Nonnull FileOperations fileOperations) {
+        this(networkScheduler, keyValue, fileOperations, Settings.builder().build());
+    }
 
     @Inject
     public ManagedFileDao(@Nonnull @NetworkScheduler Scheduler networkScheduler,
                           @Nonnull KeyValue keyValue,
-                          @Nonnull FileOperations fileOperations) {
+                          @Nonnull FileOperations fileOperations,
+                          @Nonnull Settings settings) {
         this.networkScheduler = networkScheduler;
-        this.fileDatabase = new FileDatabase(keyValue, fileOperations);
+        this.fileOperations = extended(fileOperations);
+        this.fileDatabase = new FileDatabase(networkScheduler, keyValue, this.fileOperations, settings);
+        final LeakListener leakListener = settings.leakListener();
+        this.leakDetector = new LeakDetector(settings.leakDetectionSampleRate(),
+                leakListener == null ? new LeakDetector.LoggingLeakListener() : leakListener,
+                settings.autoReleaseLeaks());
+        this.deduplicateContent = settings.deduplicateContent();
+    }
+
+    /**
+     * Asynchronous access to this dao, operations are executed on one writer thread
+     * and their writes are stored together
+     *
+     * @return the same instance every time
+     */
+    @Nonnull
+    public AsyncManagedFileDao async() {
+        AsyncManagedFileDao async = this.async;
+        if (async == null) {
+            synchronized (this) {
+                async = this.async;
+                if (async == null) {
+                    async = newAsync(AsyncManagedFileDao.newWriterExecutor());
+                    this.async = async;
+                }
+            }
+        }
+        return async;
+    }
+
+    @Nonnull
+    AsyncManagedFileDao newAsync(@Nonnull Executor writer) {
+        return new AsyncManagedFileDao(this, fileDatabase.writeCoalescer, writer);
+    }
+
+    /**
+     * Whether keys stored by previous versions are still migrated in background
+     */
+    boolean isKeyMigrationPending() {
+        return fileDatabase.keyMigration().isPending();
+    }
+
+    /**
+     * Current time of clock used for expirations and leases
+     *
+     * @return time in millis
+     */
+    public long now() {
+        return networkScheduler.now();
+    }
+
+    /**
+     * Size of all managed files
+     * <p>
+     * Size of file is updated after it is released, sizes of released files are written first
+     *
+     * @return size in bytes
+     */
+    public long totalSizeInBytes() {
+        fileDatabase.writeUsage();
+        return fileDatabase.totalSizeInBytes();
+    }
+
+    /**
+     * Number of files that currently have volatile acquisitions
+     * <p>
+     * Files without acquisitions do not use any memory
+     *
+     * @return number of files
+     */
+    public int volatileAcquiredFilesCount() {
+        return fileDatabase.volatileAcquiredFilesCount();
+    }
+
+    /**
+     * Counters of acquisitions, live handles and hold times, see
+     * {@link Settings#recordAcquisitionMetrics()}
+     */
+    @Nonnull
+    public AcquisitionMetrics acquisitionMetrics() {
+        return fileDatabase.acquisitionMetrics;
+    }
+
+    /**
+     * @return number of tracked handles that were not released yet,
+     * see {@link Settings#leakDetectionSampleRate()}
+     */
+    public int leakTrackedHandlesCount() {
+        return leakDetector.trackedCount();
+    }
+
+    /**
+     * Statistics of in-memory cache of file entries
+     *
+     * @return hits, misses and current size of cache
+     */
+    @Nonnull
+    public CacheStats fileEntryCacheStats() {
+        return fileDatabase.fileEntryCacheStats();
     }
 
     /**
@@ -634,7 +2182,11 @@ public class ManagedFileDao {
         if (fileEntry == null) {
             return null;
         }
-        return new AdvancedVolatileManagedFile(fileEntry, fileEntry.acquireVolatile(acquireName));
+        final long acquireId = fileEntry.acquireVolatileIfExists(acquireName);
+        if (acquireId == NOT_ACQUIRED) {
+            return null;
+        }
+        return new AdvancedVolatileManagedFile(fileEntry, acquireId, acquireName);
     }
 
     /**
@@ -671,39 +2223,511 @@ public class ManagedFileDao {
             throw new NullPointerException("AcquireName need to be setup");
         }
         final FileDatabase.FileEntry fileEntry = fileDatabase.create(file.getAbsolutePath(), expirationTimeInMillis);
-        return new AdvancedVolatileManagedFile(fileEntry, fileEntry.acquireVolatile(acquireName));
+        return new AdvancedVolatileManagedFile(fileEntry, fileEntry.acquireVolatile(acquireName), acquireName);
+    }
+
+    /**
+     * Create new empty file in directory and start managing it
+     * <p>
+     * Unlike creating file and calling {@link #manageFile(File, String)}, file is never left
+     * unmanaged if process dies in the middle, see {@link #recoverInterruptedOperations()}
+     *
+     * @param directory   directory of new file
+     * @param suffix      suffix of file name, i.e. ".jpg", or null
+     * @param acquireName acquire name - for debugging
+     * @return managed file
+     * @throws IOException if file could not be created
+     */
+    @Nonnull
+    public ManagedFile createManagedFile(@Nonnull File directory, @Nullable String suffix, @Nonnull String acquireName) throws IOException {
+        final FileDatabase.FileEntry fileEntry = fileDatabase.createFile(directory, suffix,
+                networkScheduler.now() + EXPIRATION_DURATION_IN_MILLIS);
+        return new AdvancedVolatileManagedFile(fileEntry, fileEntry.acquireVolatile(acquireName), acquireName);
+    }
+
+    /**
+     * Create many new empty files in directory and start managing them, writing database once
+     *
+     * @param directory   directory of new files
+     * @param suffix      suffix of file names, i.e. ".jpg", or null
+     * @param count       number of files
+     * @param acquireName acquire name - for debugging
+     * @return managed files
+     * @throws IOException if any of files could not be created, then none is created
+     * @see #createManagedFile(File, String, String)
+     */
+    @Nonnull
+    public List<ManagedFile> createManagedFiles(@Nonnull File directory, @Nullable String suffix, int count,
+                                                @Nonnull String acquireName) throws IOException {
+        final List<FileDatabase.FileEntry> fileEntries = fileDatabase.createFiles(directory, suffix, count,
+                networkScheduler.now() + EXPIRATION_DURATION_IN_MILLIS);
+        return newVolatileManagedFiles(fileEntries, acquireName);
+    }
+
+    /**
+     * Start managing many files, writing database once
+     *
+     * @param files       files to manage
+     * @param acquireName acquire name - for debugging
+     * @return managed files, in order of files
+     * @throws IllegalStateException if any of files is already managed, then none is managed
+     * @see #manageFile(File, String)
+     */
+    @Nonnull
+    public List<ManagedFile> manageFiles(@Nonnull List<File> files, @Nonnull String acquireName) {
+        return manageFiles(files, acquireName, networkScheduler.now() + EXPIRATION_DURATION_IN_MILLIS);
+    }
+
+    /**
+     * @see #manageFiles(List, String)
+     * @see #manageFile(File, String, long)
+     */
+    @Nonnull
+    public List<ManagedFile> manageFiles(@Nonnull List<File> files, @Nonnull String acquireName, long expirationTimeInMillis) {
+        //noinspection ConstantConditions
+        if (acquireName == null) {
+            throw new NullPointerException("AcquireName need to be setup");
+        }
+        final List<String> paths = new ArrayList<>(files.size());
+        for (File file : files) {
+            paths.add(file.getAbsolutePath());
+        }
+        final List<FileDatabase.FileEntry> fileEntries = fileDatabase.createAll(paths, expirationTimeInMillis, null);
+        return newVolatileManagedFiles(fileEntries, acquireName);
+    }
+
+    /**
+     * Acquire many managed files, taking lock of every file once
+     *
+     * @param managedFiles files to acquire, not released
+     * @param acquireName  acquire name - for debugging
+     * @return new managed files, in order of managedFiles
+     * @throws IllegalStateException if any of files is already released, then none is acquired
+     * @see ManagedFile#newManagedFile(String)
+     */
+    @Nonnull
+    public List<ManagedFile> acquireAll(@Nonnull List<? extends ManagedFile> managedFiles, @Nonnull String acquireName)
+            throws IllegalStateException {
+        final List<FileDatabase.FileEntry> fileEntries = new ArrayList<>(managedFiles.size());
+        for (ManagedFile managedFile : managedFiles) {
+            if (managedFile instanceof BaseAdvancedManagedFile) {
+                final BaseAdvancedManagedFile advancedFile = (BaseAdvancedManagedFile) managedFile;
+                advancedFile.checkIfReleased();
+                fileEntries.add(advancedFile.fileEntry);
+            }
+        }
+        final List<ManagedFile> acquired = newVolatileManagedFiles(fileEntries, acquireName);
+        final List<ManagedFile> result = new ArrayList<>(managedFiles.size());
+        int next = 0;
+        for (ManagedFile managedFile : managedFiles) {
+            if (managedFile instanceof BaseAdvancedManagedFile) {
+                result.add(acquired.get(next++));
+            } else {
+                result.add(managedFile.newManagedFile(acquireName));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Release many managed files, taking lock of every file once and writing database once
+     * <p>
+     * Only volatile managed files are released together, others are released one by one
+     *
+     * @param managedFiles files to release
+     * @throws IllegalStateException if any of files is already released, then none is released
+     * @see ManagedFile#release()
+     */
+    public void releaseAll(@Nonnull List<? extends ManagedFile> managedFiles) throws IllegalStateException {
+        final Set<ManagedFile> unique = Collections.newSetFromMap(new IdentityHashMap<ManagedFile, Boolean>());
+        for (ManagedFile managedFile : managedFiles) {
+            if (!unique.add(managedFile)) {
+                throw new IllegalStateException("Already released");
+            }
+            if (managedFile instanceof BaseAdvancedManagedFile) {
+                ((BaseAdvancedManagedFile) managedFile).checkIfReleased();
+            }
+        }
+        final List<FileDatabase.FileEntry> fileEntries = new ArrayList<>(managedFiles.size());
+        final List<AdvancedVolatileManagedFile> volatileFiles = new ArrayList<>(managedFiles.size());
+        for (ManagedFile managedFile : managedFiles) {
+            if (managedFile instanceof AdvancedVolatileManagedFile) {
+                final AdvancedVolatileManagedFile volatileFile = (AdvancedVolatileManagedFile) managedFile;
+                volatileFiles.add(volatileFile);
+                fileEntries.add(volatileFile.fileEntry);
+            }
+        }
+        final long[] acquireIds = new long[volatileFiles.size()];
+        final long[] acquiredTimesInMillis = new long[volatileFiles.size()];
+        for (int i = 0; i < volatileFiles.size(); i++) {
+            acquireIds[i] = volatileFiles.get(i).acquireId;
+            acquiredTimesInMillis[i] = volatileFiles.get(i).acquiredTimeInMillis;
+        }
+        fileDatabase.releaseVolatileAll(fileEntries, acquireIds, acquiredTimesInMillis);
+        // marked only when released, so handles stay usable if release failed
+        for (AdvancedVolatileManagedFile volatileFile : volatileFiles) {
+            volatileFile.markReleased();
+            volatileFile.untrack();
+        }
+        for (ManagedFile managedFile : managedFiles) {
+            if (!(managedFile instanceof AdvancedVolatileManagedFile)) {
+                managedFile.release();
+            }
+        }
+    }
+
+    @Nonnull
+    private List<ManagedFile> newVolatileManagedFiles(@Nonnull List<FileDatabase.FileEntry> fileEntries,
+                                                      @Nonnull String acquireName) {
+        final long[] acquireIds = fileDatabase.acquireVolatileAll(fileEntries, acquireName);
+        final List<ManagedFile> managedFiles = new ArrayList<>(fileEntries.size());
+        for (int i = 0; i < acquireIds.length; i++) {
+            managedFiles.add(new AdvancedVolatileManagedFile(fileEntries.get(i), acquireIds[i], acquireName));
+        }
+        return managedFiles;
+    }
+
+    /**
+     * Finish creating and removing files that were interrupted by process death
+     * <p>
+     * Only operations that were in progress are visited. Called once per process by
+     * {@link #removeOldFiles()} or {@link #startRemovingOldFiles(long, TimeUnit, int, long)}
+     *
+     * @return number of finished operations
+     */
+    public int recoverInterruptedOperations() {
+        return fileDatabase.recoverIntents();
+    }
+
+    /**
+     * If true, writers should compute hash of written content and call
+     * {@link #deduplicate(ManagedFile, ByteString, String)}
+     *
+     * @return true if content deduplication is enabled
+     */
+    public boolean isContentDeduplicationEnabled() {
+        return deduplicateContent;
+    }
+
+    /**
+     * Share one file between all managed files with the same content
+     * <p>
+     * If other managed file has the same content, it is acquired and returned, and the given file
+     * is marked as expired so it is removed as soon as it is released. The other file is kept at
+     * least as long as the given file would be. Otherwise the given file
+     * is acquired and remembered as the file for this content.
+     * <p>
+     * Given managed file is not released by this method.
+     *
+     * @param managedFile just written file
+     * @param contentHash hash of whole content of file, i.e. SHA-256
+     * @param acquireName acquire name - for debugging
+     * @return new acquisition of file with this content
+     */
+    @Nonnull
+    public ManagedFile deduplicate(@Nonnull ManagedFile managedFile, @Nonnull ByteString contentHash, @Nonnull String acquireName) {
+        if (!(managedFile instanceof BaseAdvancedManagedFile)) {
+            return managedFile.newManagedFile(acquireName);
+        }
+        final FileDatabase.FileEntry fileEntry = ((BaseAdvancedManagedFile) managedFile).fileEntry;
+        for (; ; ) {
+            final FileDatabase.FileEntry owner = fileDatabase.registerContentOrGetOwner(fileEntry, contentHash);
+            if (owner.fileId().equals(fileEntry.fileId())) {
+                return managedFile.newManagedFile(acquireName);
+            }
+            final long acquireId = fileDatabase.foldIntoOwner(fileEntry, owner, contentHash, acquireName);
+            if (acquireId != NOT_ACQUIRED) {
+                return new AdvancedVolatileManagedFile(owner, acquireId, acquireName);
+            }
+            // owner was removed in the meantime, try again
+        }
+    }
+
+    /**
+     * Remember that file was downloaded from url, so the next download of url can be skipped
+     * <p>
+     * Mapping is removed together with file, so it is kept as long as file is managed.
+     * Previous mapping of url is replaced. Given managed file is not released by this method.
+     *
+     * @param managedFile acquired file with whole content of url
+     * @param url         downloaded url
+     * @param contentType Content-Type of response or null
+     * @throws IllegalStateException if file was removed
+     */
+    public void mapUrl(@Nonnull ManagedFile managedFile, @Nonnull String url, @Nullable String contentType) throws IllegalStateException {
+        mapUrl(managedFile, url, contentType, CacheValidators.none());
+    }
+
+    /**
+     * Remember that file was downloaded from url, together with validators of response
+     * <p>
+     * Call it again with the same file after successful revalidation to update validators.
+     *
+     * @param validators validators and freshness of response
+     * @see #mapUrl(ManagedFile, String, String)
+     */
+    public void mapUrl(@Nonnull ManagedFile managedFile, @Nonnull String url, @Nullable String contentType,
+                       @Nonnull CacheValidators validators) throws IllegalStateException {
+        if (!(managedFile instanceof BaseAdvancedManagedFile)) {
+            return;
+        }
+        if (!fileDatabase.urlMappings().map(managedFile.fileId(), url, contentType, validators, UrlMapping.COMPLETE)) {
+            throw new IllegalStateException("File is removed");
+        }
+    }
+
+    /**
+     * Remember that download of url to file was interrupted, so it can be resumed
+     * <p>
+     * Partial file is kept as long as other managed files, mapping is replaced when download
+     * completes.
+     *
+     * @param managedFile        acquired file with first bytes of url
+     * @param validators         validators of response, needed to resume download with If-Range
+     * @param partialSizeInBytes number of downloaded bytes
+     * @see #mapUrl(ManagedFile, String, String, CacheValidators)
+     */
+    public void mapPartialUrl(@Nonnull ManagedFile managedFile, @Nonnull String url, @Nullable String contentType,
+                              @Nonnull CacheValidators validators, long partialSizeInBytes) throws IllegalStateException {
+        if (partialSizeInBytes < 0) {
+            throw new IllegalArgumentException("Partial size can not be negative");
+        }
+        if (!(managedFile instanceof BaseAdvancedManagedFile)) {
+            return;
+        }
+        if (!fileDatabase.urlMappings().map(managedFile.fileId(), url, contentType, validators, partialSizeInBytes)) {
+            throw new IllegalStateException("File is removed");
+        }
+    }
+
+    /**
+     * Forget that file was downloaded from url, i.e. when partial download can not be resumed
+     * <p>
+     * Mapping is removed only if it still points to given file. File itself is not removed.
+     *
+     * @param managedFile acquired file mapped by url
+     * @param url         downloaded url
+     */
+    public void unmapUrl(@Nonnull ManagedFile managedFile, @Nonnull String url) {
+        if (!(managedFile instanceof BaseAdvancedManagedFile)) {
+            return;
+        }
+        fileDatabase.urlMappings().unmap(managedFile.fileId(), url);
+    }
+
+    /**
+     * Find file downloaded from url
+     * <p>
+     * File could be removed in the meantime, so acquire it with
+     * {@link #findAndAcquireManagedFileIfExists(ByteString, String)} before use.
+     *
+     * @param url downloaded url
+     * @return mapping, possibly of {@link UrlMapping#isComplete() partial} download, or null if url
+     * was not downloaded or its file was removed
+     */
+    @Nullable
+    public UrlMapping findUrlMapping(@Nonnull String url) {
+        return fileDatabase.urlMappings().read(url);
     }
 
     /**
      * Remove old and not persistent files from cache
      */
     public void removeOldFiles() {
+        fileDatabase.ensureIntentsRecovered();
         final long nowInMillis = networkScheduler.now();
-        final ArrayList<FileDatabase.FileEntry> fileEntries = fileDatabase.getFileEntries();
-        for (FileDatabase.FileEntry fileEntry : fileEntries) {
-            fileEntry.removeIfNonAcquired(nowInMillis);
+        while (fileDatabase.releaseExpiredLeases(nowInMillis, SWEEP_PAGE_SIZE) == SWEEP_PAGE_SIZE) {
+            // next page of expired leases
+        }
+        ByteString cursor = null;
+        do {
+            cursor = fileDatabase.removeExpiredFiles(nowInMillis, cursor, SWEEP_PAGE_SIZE);
+        } while (cursor != null);
+        fileDatabase.evictToQuota(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Remove part of old and not persistent files from cache
+     * <p>
+     * Stops after visiting maxFiles files or after maxTimeInMillis, whichever comes first.
+     * Time limit is checked between pages of files.
+     *
+     * @param cursor          value returned from previous call or null to start from beginning
+     * @param maxFiles        maximum number of files visited in this call
+     * @param maxTimeInMillis maximum time spent in this call
+     * @return cursor to pass to next call or null if all old files were visited
+     */
+    @Nullable
+    public ByteString removeOldFiles(@Nullable ByteString cursor, int maxFiles, long maxTimeInMillis) {
+        final long startTimeInMillis = networkScheduler.now();
+        int remaining = maxFiles - fileDatabase.releaseExpiredLeases(startTimeInMillis, maxFiles);
+        ByteString next = cursor;
+        while (remaining > 0) {
+            final int page = Math.min(SWEEP_PAGE_SIZE, remaining);
+            next = fileDatabase.removeExpiredFiles(startTimeInMillis, next, page);
+            remaining -= page;
+            if (next == null || networkScheduler.now() - startTimeInMillis >= maxTimeInMillis) {
+                break;
+            }
+        }
+        if (remaining > 0 && networkScheduler.now() - startTimeInMillis < maxTimeInMillis) {
+            fileDatabase.evictToQuota(remaining);
+        }
+        return next;
+    }
+
+    /**
+     * Periodically remove old files in background on network scheduler
+     * <p>
+     * Every run removes only part of files and next run continues from that place,
+     * so cleaning up a big cache is spread over many short runs
+     *
+     * @param period                period between runs
+     * @param unit                  unit of period
+     * @param maxFilesPerRun        maximum number of files visited by one run
+     * @param maxTimePerRunInMillis maximum time of one run
+     * @return subscription, unsubscribe to stop removing files
+     */
+    @Nonnull
+    public Subscription startRemovingOldFiles(long period, @Nonnull TimeUnit unit, int maxFilesPerRun, long maxTimePerRunInMillis) {
+        final OldFilesSweeper sweeper = new OldFilesSweeper(this, maxFilesPerRun, maxTimePerRunInMillis);
+        final Scheduler.Worker worker = networkScheduler.createWorker();
+        worker.schedule(new Action0() {
+            @Override
+            public void call() {
+                try {
+                    fileDatabase.ensureIntentsRecovered();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Could not recover interrupted operations", e);
+                }
+            }
+        });
+        worker.schedulePeriodically(sweeper, period, period, unit);
+        return worker;
+    }
+
+    /**
+     * Find files in directories that are not managed and remove or adopt them
+     * <p>
+     * Files can be left unmanaged when process dies between creating file and
+     * {@link #manageFile(File, String)} or when database was recreated.
+     * Directories are listed and files are checked in parallel on network scheduler.
+     * Files are checked in pages so the work is spread over threads.
+     *
+     * @param directories         directories that contain only managed files
+     * @param policy              what to do with not managed files
+     * @param gracePeriodInMillis files modified during this period are skipped, they can be
+     *                            just created and not managed yet
+     * @return observable that emits number of removed or adopted files and completes
+     */
+    @Nonnull
+    public Observable<Integer> reconcileOrphanedFiles(@Nonnull final List<File> directories,
+                                                      @Nonnull final OrphanPolicy policy,
+                                                      final long gracePeriodInMillis) {
+        return Observable.defer(new Func0<Observable<Integer>>() {
+            @Override
+            public Observable<Integer> call() {
+                final long now = networkScheduler.now();
+                final long modifiedBefore = now - gracePeriodInMillis;
+                final long expiration = now + EXPIRATION_DURATION_IN_MILLIS;
+                return Observable.from(directories)
+                        .flatMap(new Func1<File, Observable<List<String>>>() {
+                            @Override
+                            public Observable<List<String>> call(final File directory) {
+                                return Observable.fromCallable(new Callable<List<String>>() {
+                                    @Override
+                                    public List<String> call() throws Exception {
+                                        return fileOperations.listFiles(directory.getAbsolutePath());
+                                    }
+                                }).subscribeOn(networkScheduler);
+                            }
+                        })
+                        .flatMap(new Func1<List<String>, Observable<List<String>>>() {
+                            @Override
+                            public Observable<List<String>> call(List<String> paths) {
+                                return Observable.from(paths).buffer(RECONCILE_PAGE_SIZE);
+                            }
+                        })
+                        .flatMap(new Func1<List<String>, Observable<Integer>>() {
+                            @Override
+                            public Observable<Integer> call(final List<String> page) {
+                                return Observable.fromCallable(new Callable<Integer>() {
+                                    @Override
+                                    public Integer call() throws Exception {
+                                        return fileDatabase.reconcile(page, policy, modifiedBefore, expiration);
+                                    }
+                                }).subscribeOn(networkScheduler);
+                            }
+                        })
+                        .reduce(0, new Func2<Integer, Integer, Integer>() {
+                            @Override
+                            public Integer call(Integer sum, Integer reconciled) {
+                                return sum + reconciled;
+                            }
+                        });
+            }
+        });
+    }
+
+    /**
+     * Write page of managed files to writer, one JSON object per line, see {@link FileDump}
+     * <p>
+     * Files are written while they are read, so memory does not depend on number of files.
+     * To write all files call it again with returned cursor until it returns null.
+     *
+     * @param writer   destination, not flushed nor closed by this method
+     * @param cursor   null to start from beginning or value returned by previous call
+     * @param maxFiles maximal number of written files
+     * @return cursor to continue or null if all files were written
+     * @throws IOException if writer fails
+     */
+    @Nullable
+    public ByteString dumpFiles(@Nonnull Writer writer, @Nullable ByteString cursor, int maxFiles) throws IOException {
+        if (maxFiles <= 0) {
+            throw new IllegalArgumentException("maxFiles need to be positive");
         }
+        return fileDatabase.dumpFiles(writer, cursor, maxFiles);
+    }
+
+    /**
+     * Write all managed files to writer, see {@link #dumpFiles(Writer, ByteString, int)}
+     *
+     * @param writer destination, not flushed nor closed by this method
+     * @throws IOException if writer fails
+     */
+    public void dumpAllFiles(@Nonnull Writer writer) throws IOException {
+        ByteString cursor = null;
+        do {
+            cursor = fileDatabase.dumpFiles(writer, cursor, DUMP_PAGE_SIZE);
+        } while (cursor != null);
     }
 
+    /**
+     * Human readable list of all managed files
+     * <p>
+     * Whole list is kept in memory, for big databases use {@link #dumpFiles(Writer, ByteString, int)}
+     */
     @Nonnull
     public String debugPurposeListAllFiles() {
         final StringBuilder sb = new StringBuilder();
         final ArrayList<FileDatabase.FileEntry> fileEntries = fileDatabase.getFileEntries();
         for (FileDatabase.FileEntry fileEntry : fileEntries) {
             sb.append("File: ").append(fileEntry.path()).append("\n");
-            if (!fileEntry.getRestartAcquisitions().isEmpty()) {
+            final Map<ByteString, Message.AcquireMessage> restartAcquisitions = fileEntry.getRestartAcquisitions();
+            if (!restartAcquisitions.isEmpty()) {
                 sb.append("Acquisition (restart):\n");
-                for (Message.AcquireMessage acquire : fileEntry.getRestartAcquisitions().values()) {
+                for (Message.AcquireMessage acquire : restartAcquisitions.values()) {
                     sb.append(" - ");
                     sb.append(acquire.getAcquireName());
                     sb.append("\n");
                 }
             }
-            if (!fileEntry.getVolatileAcqusitions().isEmpty()) {
-                sb.append("Acquisition (Volatile):");
-                for (Message.AcquireMessage acquire : fileEntry.getVolatileAcqusitions().values()) {
+            final int volatileAcquisitionCount = fileEntry.getVolatileAcquisitionCount();
+            if (volatileAcquisitionCount > 0) {
+                sb.append("Acquisition (Volatile): ").append(volatileAcquisitionCount).append("\n");
+                for (String acquireName : fileEntry.getVolatileAcquisitionNames()) {
                     sb.append(" - ");
-                    sb.append(acquire.getAcquireName());
+                    sb.append(acquireName);
                     sb.append("\n");
                 }
             }
@@ -711,10 +2735,14 @@ public class ManagedFileDao {
         return sb.toString();
     }
 
+    /**
+     * Only summary, files are listed by {@link #dumpFiles(Writer, ByteString, int)}
+     */
     @Override
     public String toString() {
         return "ManagedFileDao{" +
-                debugPurposeListAllFiles() +
+                "totalSizeInBytes=" + totalSizeInBytes() +
+                ", volatileAcquiredFiles=" + volatileAcquiredFilesCount() +
                 '}';
     }
 }
\ No newline at end of file
@@ -0,0 +1,48 @@
+package com.appunite.intenthelperlibrary.dao;
+
+
+import com.google.protobuf.ByteString;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import rx.functions.Action0;
+
+/**
+ * Removes old files in small slices, every call continues where previous one stopped
+ * <p>
+ * Should be called sequentially, i.e. from one scheduler worker. Failure of one run is logged
+ * and does not stop next runs, they continue from the same place.
+ */
+class OldFilesSweeper implements Action0 {
+
+    private static final Logger LOGGER = Logger.getLogger("ManagedFileDao");
+
+    @Nonnull
+    private final ManagedFileDao managedFileDao;
+    private final int maxFilesPerRun;
+    private final long maxTimePerRunInMillis;
+    @Nullable
+    private ByteString cursor;
+
+    OldFilesSweeper(@Nonnull ManagedFileDao managedFileDao, int maxFilesPerRun, long maxTimePerRunInMillis) {
+        if (maxFilesPerRun <= 0) {
+            throw new IllegalArgumentException("MaxFilesPerRun need to be positive");
+        }
+        this.managedFileDao = managedFileDao;
+        this.maxFilesPerRun = maxFilesPerRun;
+        this.maxTimePerRunInMillis = maxTimePerRunInMillis;
+    }
+
+    @Override
+    public void call() {
+        try {
+            cursor = managedFileDao.removeOldFiles(cursor, maxFilesPerRun, maxTimePerRunInMillis);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Could not remove old files", e);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.appunite.intenthelperlibrary.dao;
+
+
+import com.appunite.keyvalue.KeyValue;
+import com.google.protobuf.ByteString;
+
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+
+/**
+ * Applies batch operation by operation in order of adding
+ * <p>
+ * Used when {@link KeyValue} does not support atomic batches. Operations should be added so that
+ * every prefix of batch leaves database in a state that can be repaired.
+ */
+public class SequentialBatchWriter implements BatchWriter {
+
+    @Nonnull
+    private final KeyValue keyValue;
+
+    @Inject
+    public SequentialBatchWriter(@Nonnull KeyValue keyValue) {
+        this.keyValue = keyValue;
+    }
+
+    @Override
+    public void write(@Nonnull WriteBatch batch) {
+        for (Map.Entry<ByteString, ByteString> operation : batch.operations().entrySet()) {
+            final ByteString value = operation.getValue();
+            if (value == null) {
+                keyValue.del(operation.getKey());
+            } else {
+                keyValue.put(operation.getKey(), value);
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.appunite.intenthelperlibrary.dao;
+
+
+import com.google.auto.value.AutoValue;
+import com.google.protobuf.ByteString;
+import com.newmedia.intenthelperlibrary.snappy.files.Message;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Managed file downloaded from url, see {@link ManagedFileDao#mapUrl(ManagedFileDao.ManagedFile, String, String)}
+ */
+@AutoValue
+public abstract class UrlMapping {
+
+    /**
+     * {@link #partialSizeInBytes()} of completely downloaded file
+     */
+    public static final long COMPLETE = -1L;
+
+    @Nonnull
+    public abstract String url();
+
+    /**
+     * File with downloaded content, can be already removed
+     */
+    @Nonnull
+    public abstract ByteString fileId();
+
+    /**
+     * Content-Type of response or null if server did not send it
+     */
+    @Nullable
+    public abstract String contentType();
+
+    /**
+     * Validators of downloaded content, to revalidate it with server
+     */
+    @Nonnull
+    public abstract CacheValidators validators();
+
+    /**
+     * Number of downloaded bytes if download was interrupted, or {@link #COMPLETE}
+     */
+    public abstract long partialSizeInBytes();
+
+    public boolean isComplete() {
+        return partialSizeInBytes() == COMPLETE;
+    }
+
+    @Nonnull
+    static UrlMapping fromMessage(@Nonnull Message.FileUrlMappingMessage message) {
+        return new AutoValue_UrlMapping(message.getUrl(), message.getFileId(),
+                message.hasContentType() ? message.getContentType() : null,
+                CacheValidators.fromMessage(message),
+                message.hasPartialSizeInBytes() ? message.getPartialSizeInBytes() : COMPLETE);
+    }
+}
@@ -0,0 +1,148 @@
+package com.appunite.intenthelperlibrary.dao;
+
+
+import com.appunite.keyvalue.NotFoundException;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.newmedia.intenthelperlibrary.snappy.files.Message;
+
+import java.util.concurrent.locks.Lock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Mappings of urls to managed files, see {@link UrlMapping}
+ * <p>
+ * File entry keeps its mapped urls, so mappings are removed together with file by
+ * {@link #deleteMappings(WriteBatch, Message.FileEntryMessage)}
+ */
+class UrlMappings {
+
+    @Nonnull
+    private final FileStore store;
+    @Nonnull
+    private final LockStripes fileLocks;
+    @Nonnull
+    private final FileEntryCache fileEntryCache;
+    @Nonnull
+    private final KeySchema.Compact keys;
+    /**
+     * Guards url mappings, taken under file lock
+     */
+    @Nonnull
+    private final Object urlLock = new Object();
+
+    UrlMappings(@Nonnull FileStore store,
+                @Nonnull LockStripes fileLocks,
+                @Nonnull FileEntryCache fileEntryCache,
+                @Nonnull KeySchema.Compact keys) {
+        this.store = store;
+        this.fileLocks = fileLocks;
+        this.fileEntryCache = fileEntryCache;
+        this.keys = keys;
+    }
+
+    /**
+     * Lock to hold while file with mapped urls is removed, see {@link #deleteMappings(WriteBatch, Message.FileEntryMessage)}
+     */
+    @Nonnull
+    Object lock() {
+        return urlLock;
+    }
+
+    /**
+     * Map url to file, previous mapping of url is replaced
+     *
+     * @return false if file does not exist
+     */
+    boolean map(@Nonnull ByteString fileId, @Nonnull String url, @Nullable String contentType,
+                @Nonnull CacheValidators validators, long partialSizeInBytes) {
+        final Lock lock = fileLocks.lockFor(fileId);
+        lock.lock();
+        try {
+            final Message.FileEntryMessage message = store.readFileEntry(fileId);
+            final Message.FileUrlMappingMessage.Builder mapping = Message.FileUrlMappingMessage.newBuilder()
+                    .setUrl(url)
+                    .setFileId(fileId);
+            if (contentType != null) {
+                mapping.setContentType(contentType);
+            }
+            validators.writeTo(mapping);
+            if (partialSizeInBytes != UrlMapping.COMPLETE) {
+                mapping.setPartialSizeInBytes(partialSizeInBytes);
+            }
+            final WriteBatch batch = new WriteBatch()
+                    .put(keys.fileUrlKey(url), mapping.build().toByteString());
+            // file keeps its urls, so mappings are removed together with it
+            final Message.FileEntryMessage updatedFileEntry = message.getUrlList().contains(url)
+                    ? null
+                    : message.toBuilder().addUrl(url).build();
+            if (updatedFileEntry != null) {
+                batch.put(keys.fileKey(fileId), updatedFileEntry.toByteString());
+            }
+            synchronized (urlLock) {
+                store.write(batch);
+            }
+            if (updatedFileEntry != null) {
+                fileEntryCache.put(updatedFileEntry);
+            }
+            return true;
+        } catch (NotFoundException e) {
+            return false;
+        } catch (InvalidProtocolBufferException e) {
+            throw new RuntimeException("Wrong database state");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delete mapping of url if it still points to file
+     */
+    void unmap(@Nonnull ByteString fileId, @Nonnull String url) {
+        final Lock lock = fileLocks.lockFor(fileId);
+        lock.lock();
+        try {
+            synchronized (urlLock) {
+                final ByteString urlKey = keys.fileUrlKey(url);
+                if (Message.FileUrlMappingMessage.parseFrom(store.getBytes(urlKey)).getFileId().equals(fileId)) {
+                    store.write(new WriteBatch().del(urlKey));
+                }
+            }
+        } catch (NotFoundException ignore) {
+            // Mapping was not stored or is already removed
+        } catch (InvalidProtocolBufferException e) {
+            throw new RuntimeException("Wrong database state");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    UrlMapping read(@Nonnull String url) {
+        try {
+            return UrlMapping.fromMessage(Message.FileUrlMappingMessage.parseFrom(store.getBytes(keys.fileUrlKey(url))));
+        } catch (NotFoundException e) {
+            return null;
+        } catch (InvalidProtocolBufferException e) {
+            throw new RuntimeException("Wrong database state");
+        }
+    }
+
+    /**
+     * Delete mappings of urls that still point to removed file, need to be called under {@link #lock()}
+     */
+    void deleteMappings(@Nonnull WriteBatch batch, @Nonnull Message.FileEntryMessage message) throws InvalidProtocolBufferException {
+        for (String url : message.getUrlList()) {
+            final ByteString urlKey = keys.fileUrlKey(url);
+            try {
+                if (Message.FileUrlMappingMessage.parseFrom(store.getBytes(urlKey)).getFileId().equals(message.getFileId())) {
+                    batch.del(urlKey);
+                }
+            } catch (NotFoundException ignore) {
+                // Mapping was not stored
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.appunite.intenthelperlibrary.dao;
+
+
+import com.google.protobuf.ByteString;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * In-memory acquisitions that are not kept after restart
+ * <p>
+ * Keeps only a counter per acquired file, entry is removed on last release so memory depends
+ * on number of currently acquired files. Acquire names are kept only if tracing is enabled.
+ * <p>
+ * Files with {@link IdAllocator#isNumeric(ByteString) numeric} ids are kept by primitive key,
+ * so acquire and release do not hash nor compare id bytes. Ids of previous versions are kept
+ * in a separate map.
+ * <p>
+ * Methods taking fileId need to be called under file lock of fileId from {@link LockStripes}.
+ */
+class VolatileAcquisitions {
+
+    static final long NOT_TRACED = 0L;
+
+    @Nonnull
+    private final LockStripes stripes;
+    @Nonnull
+    private final List<Segment> segments;
+    private final boolean trace;
+    @Nonnull
+    private final AtomicLong acquireIds = new AtomicLong();
+
+    private static class Entry {
+        int count;
+        @Nullable
+        LongHashMap<String> names;
+    }
+
+    private static class Segment {
+        @Nonnull
+        final LongHashMap<Entry> numeric = new LongHashMap<>();
+        @Nonnull
+        final Map<ByteString, Entry> legacy = new HashMap<>();
+
+        @Nullable
+        Entry get(@Nonnull ByteString fileId) {
+            return IdAllocator.isNumeric(fileId)
+                    ? numeric.get(IdAllocator.toLong(fileId))
+                    : legacy.get(fileId);
+        }
+
+        void put(@Nonnull ByteString fileId, @Nonnull Entry entry) {
+            if (IdAllocator.isNumeric(fileId)) {
+                numeric.put(IdAllocator.toLong(fileId), entry);
+            } else {
+                legacy.put(fileId, entry);
+            }
+        }
+
+        void remove(@Nonnull ByteString fileId) {
+            if (IdAllocator.isNumeric(fileId)) {
+                numeric.remove(IdAllocator.toLong(fileId));
+            } else {
+                legacy.remove(fileId);
+            }
+        }
+
+        int size() {
+            return numeric.size() + legacy.size();
+        }
+    }
+
+    VolatileAcquisitions(@Nonnull LockStripes stripes, boolean trace) {
+        this.stripes = stripes;
+        this.trace = trace;
+        segments = new ArrayList<>(stripes.size());
+        for (int i = 0; i < stripes.size(); i++) {
+            segments.add(new Segment());
+        }
+    }
+
+    /**
+     * @return acquire id to pass to {@link #release(ByteString, long)}
+     */
+    long acquire(@Nonnull ByteString fileId, @Nonnull String acquireName) {
+        final Segment segment = segmentFor(fileId);
+        Entry entry = segment.get(fileId);
+        if (entry == null) {
+            entry = new Entry();
+            segment.put(fileId, entry);
+        }
+        entry.count += 1;
+        if (!trace) {
+            return NOT_TRACED;
+        }
+        if (entry.names == null) {
+            entry.names = new LongHashMap<>();
+        }
+        final long acquireId = acquireIds.incrementAndGet();
+        entry.names.put(acquireId, acquireName);
+        return acquireId;
+    }
+
+    void release(@Nonnull ByteString fileId, long acquireId) throws IllegalStateException {
+        final Segment segment = segmentFor(fileId);
+        final Entry entry = segment.get(fileId);
+        if (entry == null) {
+            throw new IllegalStateException("Already released");
+        }
+        if (trace && (entry.names == null || entry.names.remove(acquireId) == null)) {
+            throw new IllegalStateException("Already released");
+        }
+        entry.count -= 1;
+        if (entry.count <= 0) {
+            segment.remove(fileId);
+        }
+    }
+
+    int count(@Nonnull ByteString fileId) {
+        final Entry entry = segmentFor(fileId).get(fileId);
+        return entry == null ? 0 : entry.count;
+    }
+
+    /**
+     * @return names of acquisitions, empty if tracing is disabled
+     */
+    @Nonnull
+    List<String> names(@Nonnull ByteString fileId) {
+        final Entry entry = segmentFor(fileId).get(fileId);
+        if (entry == null || entry.names == null) {
+            return Collections.emptyList();
+        }
+        return entry.names.values();
+    }
+
+    /**
+     * @return number of currently acquired files
+     */
+    int size() {
+        int size = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            final Lock lock = stripes.lockAt(i);
+            lock.lock();
+            try {
+                size += segments.get(i).size();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    @Nonnull
+    private Segment segmentFor(@Nonnull ByteString fileId) {
+        return segments.get(stripes.indexFor(fileId));
+    }
+}
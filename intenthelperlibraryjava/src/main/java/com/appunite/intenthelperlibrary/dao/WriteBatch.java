@@ -0,0 +1,47 @@
+package com.appunite.intenthelperlibrary.dao;
+
+
+import com.google.protobuf.ByteString;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Writes that belong to one logical operation and have to be stored together
+ */
+public class WriteBatch {
+
+    @Nonnull
+    private final LinkedHashMap<ByteString, ByteString> operations = new LinkedHashMap<>();
+
+    @Nonnull
+    public WriteBatch put(@Nonnull ByteString key, @Nonnull ByteString value) {
+        operations.remove(key);
+        operations.put(key, value);
+        return this;
+    }
+
+    @Nonnull
+    public WriteBatch del(@Nonnull ByteString key) {
+        operations.remove(key);
+        operations.put(key, null);
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return operations.isEmpty();
+    }
+
+    /**
+     * Operations in order of adding, last operation for a key wins
+     *
+     * @return key to value, null value means deletion of key
+     */
+    @Nonnull
+    public Map<ByteString, ByteString> operations() {
+        return Collections.unmodifiableMap(operations);
+    }
+}
@@ -0,0 +1,195 @@
+package com.appunite.intenthelperlibrary.dao;
+
+
+import com.appunite.keyvalue.KeyValue;
+import com.appunite.keyvalue.NotFoundException;
+import com.google.protobuf.ByteString;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Joins writes of many operations into one batch.
+ * <p>
+ * Writes of a thread that started deferring are kept in memory until {@link #flush()},
+ * writes of other threads are written immediately, together with all pending writes.
+ * Pending writes are visible to {@link #getBytes(ByteString)} so operations always read
+ * their own and other operations writes.
+ * <p>
+ * Every key is written under a lock that guards it, so a write of other thread can not
+ * overtake pending write of the same key.
+ * <p>
+ * If batch can not be written, its writes are discarded, never written by a later flush,
+ * and {@code discardListener} is notified so state kept in memory can be read again.
+ */
+class WriteCoalescer {
+
+    @Nonnull
+    private final KeyValue keyValue;
+    @Nonnull
+    private final BatchWriter batchWriter;
+    @Nonnull
+    private final ConcurrentHashMap<ByteString, Pending> pending = new ConcurrentHashMap<>();
+    @Nonnull
+    private final ConcurrentLinkedQueue<Pending> order = new ConcurrentLinkedQueue<>();
+    @Nonnull
+    private final Object flushLock = new Object();
+    @Nonnull
+    private final Runnable discardListener;
+    @Nonnull
+    private final AtomicLong discardedFlushes = new AtomicLong();
+    @Nonnull
+    private final ThreadLocal<Boolean> deferring = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return false;
+        }
+    };
+
+    WriteCoalescer(@Nonnull KeyValue keyValue,
+                   @Nonnull BatchWriter batchWriter,
+                   @Nonnull Runnable discardListener) {
+        this.keyValue = keyValue;
+        this.batchWriter = batchWriter;
+        this.discardListener = discardListener;
+    }
+
+    /**
+     * Keep writes of current thread in memory until {@link #endDeferring()}
+     */
+    void startDeferring() {
+        deferring.set(true);
+    }
+
+    /**
+     * Stop deferring writes of current thread and write all pending writes
+     */
+    void endDeferring() {
+        deferring.set(false);
+        flush();
+    }
+
+    void write(@Nonnull WriteBatch batch) {
+        if (deferring.get()) {
+            add(batch);
+        } else if (pending.isEmpty()) {
+            batchWriter.write(batch);
+        } else {
+            add(batch);
+            flush();
+        }
+    }
+
+    /**
+     * Write batch and everything pending, even if current thread defers writes
+     */
+    void writeNow(@Nonnull WriteBatch batch) {
+        if (pending.isEmpty()) {
+            batchWriter.write(batch);
+        } else {
+            add(batch);
+            flush();
+        }
+    }
+
+    @Nonnull
+    ByteString getBytes(@Nonnull ByteString key) throws NotFoundException {
+        if (!pending.isEmpty()) {
+            final Pending write = pending.get(key);
+            if (write != null) {
+                if (write.value == null) {
+                    throw new NotFoundException();
+                }
+                return write.value;
+            }
+        }
+        return keyValue.getBytes(key);
+    }
+
+    /**
+     * Number of flushes which writes were discarded, used to find out if writes of deferred
+     * operations were lost in flush of other thread
+     */
+    long discardedFlushes() {
+        return discardedFlushes.get();
+    }
+
+    /**
+     * Write all pending writes in one batch, in order they were done
+     *
+     * @throws RuntimeException if batch can not be written, pending writes are discarded then
+     */
+    void flush() {
+        final RuntimeException failure;
+        synchronized (flushLock) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            final WriteBatch batch = new WriteBatch();
+            final List<Pending> written = new ArrayList<>();
+            for (Pending write; (write = order.poll()) != null; ) {
+                if (pending.get(write.key) != write) {
+                    // overwritten later, newer write follows in order
+                    continue;
+                }
+                if (write.value == null) {
+                    batch.del(write.key);
+                } else {
+                    batch.put(write.key, write.value);
+                }
+                written.add(write);
+            }
+            failure = tryWrite(batch);
+            if (failure != null) {
+                // operations that did these writes are told they failed, so they can not be
+                // written later
+                discardedFlushes.incrementAndGet();
+            }
+            for (Pending write : written) {
+                pending.remove(write.key, write);
+            }
+        }
+        if (failure != null) {
+            // outside of flush lock, listener takes locks that are held while flushing
+            discardListener.run();
+            throw failure;
+        }
+    }
+
+    @Nullable
+    private RuntimeException tryWrite(@Nonnull WriteBatch batch) {
+        try {
+            batchWriter.write(batch);
+            return null;
+        } catch (RuntimeException e) {
+            return e;
+        }
+    }
+
+    private void add(@Nonnull WriteBatch batch) {
+        for (Map.Entry<ByteString, ByteString> operation : batch.operations().entrySet()) {
+            final Pending write = new Pending(operation.getKey(), operation.getValue());
+            pending.put(write.key, write);
+            order.add(write);
+        }
+    }
+
+    private static class Pending {
+        @Nonnull
+        private final ByteString key;
+        @Nullable
+        private final ByteString value;
+
+        Pending(@Nonnull ByteString key, @Nullable ByteString value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
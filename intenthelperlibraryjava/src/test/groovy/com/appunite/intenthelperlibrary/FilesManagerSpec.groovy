@@ -0,0 +1,423 @@
+package com.appunite.intenthelperlibrary
+
+import com.appunite.intenthelperlibrary.dao.ManagedFileDao
+import com.appunite.keyvalue.KeyValueMemory
+import okhttp3.Interceptor
+import okhttp3.MediaType
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import okhttp3.Request
+import okhttp3.Response
+import okhttp3.ResponseBody
+import okio.Buffer
+import okio.ForwardingSource
+import okio.Okio
+import rx.schedulers.Schedulers
+import rx.schedulers.TestScheduler
+import spock.lang.Specification
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+
+class FilesManagerSpec extends Specification {
+
+    static final String URL = "http://example.com/image.png"
+
+    File directory
+    TestScheduler testScheduler
+    ManagedFileDao managedFileDao
+    Queue<Closure<Response>> responses = new ConcurrentLinkedQueue<>()
+    Queue<Request> requests = new ConcurrentLinkedQueue<>()
+    Queue<String> requestThreads = new ConcurrentLinkedQueue<>()
+    FilesManager filesManager
+    List<MediaType> publicDirectoryMediaTypes = []
+
+    void setup() {
+        directory = File.createTempDir()
+        testScheduler = Schedulers.test()
+        managedFileDao = new ManagedFileDao(testScheduler, new KeyValueMemory(), new ManagedFileDao.FileOperationsImpl())
+        filesManager = newFilesManager(FilesManager.Settings.builder().build())
+    }
+
+    void cleanup() {
+        directory.deleteDir()
+    }
+
+    def "when server responds not modified, downloaded file is reused"() {
+        setup:
+        respond(200, "first", ["ETag": "\"a\""])
+        respond(304, "", ["ETag": "\"a\""])
+        def first = filesManager.downloadAndStore("1", URL)
+
+        when:
+        def second = filesManager.downloadAndStore("2", URL)
+
+        then:
+        second == first
+        requests.last().header("If-None-Match") == "\"a\""
+        new File(second).text == "first"
+    }
+
+    def "when server responds with new content, file is replaced"() {
+        setup:
+        respond(200, "first", ["ETag": "\"a\""])
+        respond(200, "second", ["ETag": "\"b\""])
+        def first = filesManager.downloadAndStore("1", URL)
+
+        when:
+        def second = filesManager.downloadAndStore("2", URL)
+
+        then:
+        second != first
+        new File(second).text == "second"
+        new File(first).text == "first"
+    }
+
+    def "when response is fresh by scheduler clock, it is not revalidated"() {
+        setup:
+        respond(200, "first", ["ETag": "\"a\"", "Cache-Control": "max-age=60"])
+        respond(304, "", ["ETag": "\"a\""])
+        def first = filesManager.downloadAndStore("1", URL)
+
+        when:
+        def fresh = filesManager.downloadAndStore("2", URL)
+
+        then:
+        fresh == first
+        requests.size() == 1
+
+        when:
+        testScheduler.advanceTimeBy(2, TimeUnit.MINUTES)
+        def revalidated = filesManager.downloadAndStore("3", URL)
+
+        then:
+        revalidated == first
+        requests.size() == 2
+    }
+
+    def "when cached url has no content type, file is shared and copied as binary"() {
+        setup:
+        responses.add({ Request request ->
+            new Response.Builder()
+                    .request(request)
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(200)
+                    .message("message")
+                    .header("ETag", "\"a\"")
+                    .body(ResponseBody.create(null, "content"))
+                    .build()
+        })
+        2.times { respond(304, "", ["ETag": "\"a\""]) }
+        filesManager.downloadAndStore("1", URL)
+
+        when:
+        def shareResult = filesManager.downloadFileAndGetShareUrl(URL).toBlocking().single()
+        def copied = filesManager.downloadAndReturnFile(URL).toBlocking().single()
+
+        then:
+        shareResult.mimeType() == "application/octet-stream"
+        publicDirectoryMediaTypes == [MediaType.parse("application/octet-stream")]
+        copied.name.endsWith(".octet-stream")
+        copied.text == "content"
+    }
+
+    def "stored file is removed after lease of leaked files expires"() {
+        setup:
+        respond(200, "content", [:])
+        def path = filesManager.downloadAndStore("1", URL)
+
+        when:
+        testScheduler.advanceTimeBy(2, TimeUnit.DAYS)
+        managedFileDao.removeOldFiles()
+
+        then:
+        !new File(path).exists()
+    }
+
+    def "when leaked files have no lease, stored file is kept"() {
+        setup:
+        filesManager = newFilesManager(FilesManager.Settings.builder()
+                .setLeakedFileLeaseInMillis(ManagedFileDao.NO_LEASE)
+                .build())
+        respond(200, "content", [:])
+        def path = filesManager.downloadAndStore("1", URL)
+
+        when:
+        testScheduler.advanceTimeBy(2, TimeUnit.DAYS)
+        managedFileDao.removeOldFiles()
+
+        then:
+        new File(path).text == "content"
+    }
+
+    def "concurrent callers of the same url share download, every caller gets its own acquisition"() {
+        setup:
+        def finish = new CountDownLatch(1)
+        responses.add({ Request request ->
+            finish.await()
+            response(request, 200, "content", [:])
+        })
+        def executor = Executors.newFixedThreadPool(2)
+
+        when:
+        def leader = executor.submit({ filesManager.downloadAndStore("1", URL) } as Callable)
+        while (filesManager.downloads.inFlightCount() == 0) {
+            Thread.yield()
+        }
+        def follower = executor.submit({ filesManager.downloadAndStore("2", URL) } as Callable)
+        while (filesManager.downloads.waitingCount(URL) == 0) {
+            Thread.yield()
+        }
+        finish.countDown()
+
+        then:
+        // shared handle would be released twice
+        leader.get() == follower.get()
+        requests.size() == 1
+        managedFileDao.volatileAcquiredFilesCount() == 0
+
+        cleanup:
+        executor.shutdownNow()
+    }
+
+    def "when interrupted download is resumed, rest of content is appended"() {
+        setup:
+        interruptedDownload()
+        responses.add({ Request request ->
+            response(request, 206, "-rest", ["ETag": "\"a\"", "Content-Range": "bytes 5-9/10"])
+        })
+
+        when:
+        def path = filesManager.downloadAndStore("2", URL)
+
+        then:
+        new File(path).text == "first-rest"
+        requests.peek().header("Accept-Encoding") == null
+        requests.last().header("Range") == "bytes=5-"
+        requests.last().header("If-Range") == "\"a\""
+        requests.last().header("Accept-Encoding") == "identity"
+    }
+
+    def "when server sends whole content instead of range, it is stored"() {
+        setup:
+        interruptedDownload()
+        respond(200, "firstwhole", ["ETag": "\"a\""])
+
+        when:
+        def path = filesManager.downloadAndStore("2", URL)
+
+        then:
+        new File(path).text == "firstwhole"
+        requests.size() == 2
+    }
+
+    def "when range is not satisfiable, whole content is downloaded again"() {
+        setup:
+        interruptedDownload()
+        respond(416, "", [:])
+        respond(200, "firstwhole", ["ETag": "\"a\""])
+
+        when:
+        def path = filesManager.downloadAndStore("2", URL)
+
+        then:
+        new File(path).text == "firstwhole"
+        requests.size() == 3
+        requests.last().header("Range") == null
+        managedFileDao.findUrlMapping(URL).isComplete()
+    }
+
+    def "when content changed since interrupted download, new content is stored"() {
+        setup:
+        interruptedDownload()
+        respond(200, "changed", ["ETag": "\"b\""])
+        respond(304, "", ["ETag": "\"b\""])
+
+        when:
+        def path = filesManager.downloadAndStore("2", URL)
+        def revalidated = filesManager.downloadAndStore("3", URL)
+
+        then:
+        new File(path).text == "changed"
+        revalidated == path
+        requests.last().header("If-None-Match") == "\"b\""
+    }
+
+    def "when response is large, it is downloaded in segments"() {
+        setup:
+        filesManager = newFilesManager(segmented(3))
+        3.times { serveRanges("0123456789", "\"a\"") }
+
+        when:
+        def path = filesManager.downloadAndStore("1", URL)
+
+        then:
+        new File(path).text == "0123456789"
+        requests.size() == 3
+        requests.collect { it.header("Range") }.toSet() == [null, "bytes=3-5", "bytes=6-9"].toSet()
+        requests.findAll { it.header("Range") != null }.every { it.header("If-Range") == "\"a\"" }
+        managedFileDao.findUrlMapping(URL).isComplete()
+    }
+
+    def "when segment executor is provided, segments after the first one run on it"() {
+        setup:
+        def executor = Executors.newFixedThreadPool(1, { Runnable runnable -> new Thread(runnable, "provided") } as ThreadFactory)
+        filesManager = newFilesManager(FilesManager.Settings.builder()
+                .setSegmentedDownloadMinSizeInBytes(10)
+                .setDownloadSegmentCount(3)
+                .setSegmentExecutor(executor)
+                .build())
+        3.times { serveRanges("0123456789", "\"a\"") }
+
+        when:
+        def path = filesManager.downloadAndStore("1", URL)
+
+        then:
+        new File(path).text == "0123456789"
+        requestThreads.findAll { it == "provided" }.size() == 2
+
+        cleanup:
+        executor.shutdownNow()
+    }
+
+    def "when segment fails, the longest written prefix is mapped as partial download"() {
+        setup:
+        filesManager = newFilesManager(segmented(2))
+        serveRanges("0123456789", "\"a\"")
+        responses.add({ Request request ->
+            new Response.Builder()
+                    .request(request)
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(206)
+                    .message("message")
+                    .header("ETag", "\"a\"")
+                    .header("Content-Range", "bytes 5-9/10")
+                    .body(interruptedBody("56", 5))
+                    .build()
+        })
+
+        when:
+        filesManager.downloadAndStore("1", URL)
+
+        then:
+        thrown(IOException)
+        managedFileDao.findUrlMapping(URL).partialSizeInBytes() == 7
+    }
+
+    def "when content changes between segments, download fails and first segment is kept"() {
+        setup:
+        filesManager = newFilesManager(segmented(2))
+        serveRanges("0123456789", "\"a\"")
+        // If-Range does not match anymore, so whole new content is sent
+        respond(200, "changed content", ["ETag": "\"b\""])
+
+        when:
+        filesManager.downloadAndStore("1", URL)
+
+        then:
+        thrown(IOException)
+        managedFileDao.findUrlMapping(URL).partialSizeInBytes() == 5
+    }
+
+    private static FilesManager.Settings segmented(int segments) {
+        FilesManager.Settings.builder()
+                .setSegmentedDownloadMinSizeInBytes(10)
+                .setDownloadSegmentCount(segments)
+                .build()
+    }
+
+    /**
+     * Respond with whole content or with requested range of it
+     */
+    private void serveRanges(String content, String etag) {
+        responses.add({ Request request ->
+            def range = request.header("Range")
+            if (range == null) {
+                return response(request, 200, content, ["ETag": etag, "Accept-Ranges": "bytes"])
+            }
+            def bounds = range.substring("bytes=".length()).split("-")
+            def start = bounds[0] as int
+            def end = bounds.length > 1 ? bounds[1] as int : content.length() - 1
+            response(request, 206, content.substring(start, end + 1),
+                    ["ETag": etag, "Content-Range": "bytes " + start + "-" + end + "/" + content.length()])
+        })
+    }
+
+    /**
+     * First 5 of 10 bytes are downloaded and mapped as partial download
+     */
+    private void interruptedDownload() {
+        responses.add({ Request request ->
+            new Response.Builder()
+                    .request(request)
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(200)
+                    .message("message")
+                    .header("ETag", "\"a\"")
+                    .body(interruptedBody("first", 10))
+                    .build()
+        })
+        try {
+            filesManager.downloadAndStore("1", URL)
+            assert false
+        } catch (IOException ignore) {
+        }
+        assert managedFileDao.findUrlMapping(URL).partialSizeInBytes() == 5
+    }
+
+    /**
+     * Body that fails after sending received part of content
+     */
+    private static ResponseBody interruptedBody(String received, long contentLength) {
+        def source = new ForwardingSource(new Buffer().writeUtf8(received)) {
+            @Override
+            long read(Buffer sink, long byteCount) throws IOException {
+                def read = super.read(sink, byteCount)
+                if (read == -1) {
+                    throw new IOException("connection reset")
+                }
+                read
+            }
+        }
+        ResponseBody.create(MediaType.parse("image/png"), contentLength, Okio.buffer(source))
+    }
+
+    private FilesManager newFilesManager(FilesManager.Settings settings) {
+        def filesHelper = [
+                getLocalPrivateDirectory         : { directory },
+                createUriForLocalPrivateFile     : { File file -> "content://" + file.name },
+                getExternalStoragePublicDirectory: { MediaType mediaType ->
+                    publicDirectoryMediaTypes.add(mediaType)
+                    directory
+                }
+        ] as FilesHelper
+        def mimeTypeGetter = [getExtensionFromMediaType: { MediaType mediaType -> mediaType.subtype() }] as MimeTypeGetter
+        def okHttpClient = new OkHttpClient.Builder()
+                .addInterceptor({ Interceptor.Chain chain ->
+                    requests.add(chain.request())
+                    requestThreads.add(Thread.currentThread().name)
+                    responses.poll().call(chain.request())
+                } as Interceptor)
+                .build()
+        new FilesManager(filesHelper, mimeTypeGetter, okHttpClient, managedFileDao, Schedulers.immediate(), settings)
+    }
+
+    private void respond(int code, String body, Map<String, String> headers) {
+        responses.add({ Request request -> response(request, code, body, headers) })
+    }
+
+    private static Response response(Request request, int code, String body, Map<String, String> headers) {
+        def builder = new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(code)
+                .message("message")
+                .body(ResponseBody.create(MediaType.parse("image/png"), body))
+        headers.each { name, value -> builder.header(name, value) }
+        builder.build()
+    }
+}
@@ -1,11 +1,18 @@
 package com.appunite.intenthelperlibrary
 
+import com.appunite.intenthelperlibrary.dao.AcquisitionMetrics
+import com.appunite.intenthelperlibrary.dao.BatchWriter
+import com.appunite.intenthelperlibrary.dao.CacheValidators
+import com.appunite.intenthelperlibrary.dao.LeakListener
 import com.appunite.intenthelperlibrary.dao.ManagedFileDao
+import com.appunite.intenthelperlibrary.dao.SequentialBatchWriter
 import com.appunite.keyvalue.KeyValueMemory
+import com.google.protobuf.ByteString
 import rx.schedulers.Schedulers
 import rx.schedulers.TestScheduler
 import spock.lang.Specification
 
+import java.util.concurrent.LinkedBlockingQueue
 import java.util.concurrent.TimeUnit
 
 class ManagedFileDaoSpec extends Specification {
@@ -14,12 +21,12 @@ class ManagedFileDaoSpec extends Specification {
     def SHORT_TIME = 1
     TestScheduler testScheduler
     ManagedFileDao managedFileDao
-    private ManagedFileDao.FileOperations fileOperations
+    private ManagedFileDao.ExtendedFileOperations fileOperations
     private KeyValueMemory keyValueMemory
 
     void setup() {
         testScheduler = Schedulers.test();
-        fileOperations = Mock(ManagedFileDao.FileOperations)
+        fileOperations = Mock(ManagedFileDao.ExtendedFileOperations)
         keyValueMemory = new KeyValueMemory()
         managedFileDao = createManagedDao();
     }
@@ -240,6 +247,1068 @@ class ManagedFileDaoSpec extends Specification {
         ex.message == "File need to be setup"
     }
 
+    def "when looking up managed file repeatedly, it is served from cache"() {
+        setup:
+        def fileId = managedFileDao.manageFile(mockFile("file.txt"), "info").fileId()
+
+        when:
+        managedFileDao.findAndAcquireManagedFileIfExists(fileId, "first").release()
+        managedFileDao.findAndAcquireManagedFileIfExists(fileId, "second").release()
+
+        then:
+        managedFileDao.fileEntryCacheStats().misses() == 0
+        managedFileDao.fileEntryCacheStats().hits() > 0
+    }
+
+    def "after restart, file entry is read from database once"() {
+        setup:
+        def fileId = managedFileDao.manageFile(mockFile("file.txt"), "info").fileId()
+        def restartedDao = createManagedDao()
+
+        when:
+        restartedDao.findAndAcquireManagedFileIfExists(fileId, "first").release()
+        restartedDao.findAndAcquireManagedFileIfExists(fileId, "second").release()
+
+        then:
+        restartedDao.fileEntryCacheStats().misses() == 1
+        restartedDao.fileEntryCacheStats().size() == 1
+    }
+
+    def "after file is removed, it is not returned from cache"() {
+        setup:
+        def managedFile = managedFileDao.manageFile(mockFile("file.txt"), "info")
+        def fileId = managedFile.fileId()
+        managedFile.release()
+
+        when:
+        testScheduler.advanceTimeBy(LONG_TIME, TimeUnit.HOURS)
+        managedFileDao.removeOldFiles()
+
+        then:
+        managedFileDao.findAndAcquireManagedFileIfExists(fileId, "after remove") == null
+    }
+
+    def "mapped url is found until its file is removed"() {
+        setup:
+        def managedFile = managedFileDao.manageFile(mockFile("file.jpg"), "download")
+        managedFileDao.mapUrl(managedFile, "http://example.com/file.jpg", "image/jpeg")
+        managedFile.release()
+
+        expect:
+        def mapping = managedFileDao.findUrlMapping("http://example.com/file.jpg")
+        mapping.fileId() == managedFile.fileId()
+        mapping.contentType() == "image/jpeg"
+        createManagedDao().findUrlMapping("http://example.com/file.jpg") == mapping
+        managedFileDao.findUrlMapping("http://example.com/other.jpg") == null
+
+        when:
+        testScheduler.advanceTimeBy(LONG_TIME, TimeUnit.HOURS)
+        managedFileDao.removeOldFiles()
+
+        then:
+        1 * fileOperations.removeFile("file.jpg")
+        managedFileDao.findUrlMapping("http://example.com/file.jpg") == null
+    }
+
+    def "validators of url are kept and updated by mapping url again"() {
+        setup:
+        def managedFile = managedFileDao.manageFile(mockFile("file.jpg"), "download")
+        managedFileDao.mapUrl(managedFile, "http://example.com/file.jpg", "image/jpeg",
+                CacheValidators.create("\"v1\"", null, 0))
+
+        expect:
+        def mapping = managedFileDao.findUrlMapping("http://example.com/file.jpg")
+        mapping.validators() == CacheValidators.create("\"v1\"", null, 0)
+        !mapping.validators().isFresh(0)
+        mapping.validators().canRevalidate()
+
+        when:
+        managedFileDao.mapUrl(managedFile, "http://example.com/file.jpg", "image/jpeg",
+                CacheValidators.create("\"v1\"", "Wed, 21 Oct 2015 07:28:00 GMT", 1000))
+
+        then:
+        managedFileDao.findUrlMapping("http://example.com/file.jpg").validators().isFresh(999)
+        !managedFileDao.findUrlMapping("http://example.com/file.jpg").validators().isFresh(1000)
+    }
+
+    def "partial download is mapped until download completes"() {
+        setup:
+        def managedFile = managedFileDao.manageFile(mockFile("file.mp4"), "download")
+        def validators = CacheValidators.create("\"v1\"", null, 0)
+        managedFileDao.mapPartialUrl(managedFile, "http://example.com/file.mp4", "video/mp4", validators, 1024)
+
+        expect:
+        def partial = managedFileDao.findUrlMapping("http://example.com/file.mp4")
+        !partial.isComplete()
+        partial.partialSizeInBytes() == 1024
+        partial.validators() == validators
+
+        when:
+        managedFileDao.mapUrl(managedFile, "http://example.com/file.mp4", "video/mp4", validators)
+
+        then:
+        managedFileDao.findUrlMapping("http://example.com/file.mp4").isComplete()
+    }
+
+    def "when partial size is negative, throw exception"() {
+        setup:
+        def managedFile = managedFileDao.manageFile(mockFile("file.mp4"), "download")
+
+        when:
+        managedFileDao.mapPartialUrl(managedFile, "http://example.com/file.mp4", null, CacheValidators.none(), -1)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "url mapped without validators is always fresh"() {
+        setup:
+        def managedFile = managedFileDao.manageFile(mockFile("file.jpg"), "download")
+        managedFileDao.mapUrl(managedFile, "http://example.com/file.jpg", null)
+
+        expect:
+        managedFileDao.findUrlMapping("http://example.com/file.jpg").validators() == CacheValidators.none()
+        managedFileDao.findUrlMapping("http://example.com/file.jpg").validators().isFresh(Long.MAX_VALUE - 1)
+    }
+
+    def "when url is mapped to other file, removing previous file keeps new mapping"() {
+        setup:
+        def previous = managedFileDao.manageFile(mockFile("previous.jpg"), "download", 1)
+        managedFileDao.mapUrl(previous, "http://example.com/file.jpg", null)
+        previous.release()
+        def current = managedFileDao.manageFile(mockFile("current.jpg"), "download")
+        managedFileDao.mapUrl(current, "http://example.com/file.jpg", null)
+
+        when:
+        testScheduler.advanceTimeBy(SHORT_TIME, TimeUnit.HOURS)
+        managedFileDao.removeOldFiles()
+
+        then:
+        1 * fileOperations.removeFile("previous.jpg")
+        managedFileDao.findUrlMapping("http://example.com/file.jpg").fileId() == current.fileId()
+    }
+
+    def "after restart, new files do not reuse ids"() {
+        setup:
+        def fileIds = (0..<10).collect { managedFileDao.manageFile(mockFile("file" + it + ".txt"), "info").fileId() }
+
+        when:
+        def afterRestart = createManagedDao().manageFile(mockFile("after.txt"), "info").fileId()
+
+        then:
+        !fileIds.contains(afterRestart)
+        fileIds.every { it.size() == 8 }
+    }
+
+    def "when managing file, entry and its indexes are written in one batch"() {
+        setup:
+        def batchWriter = Spy(SequentialBatchWriter, constructorArgs: [keyValueMemory])
+        def dao = new ManagedFileDao(testScheduler, keyValueMemory, fileOperations,
+                ManagedFileDao.Settings.builder().setBatchWriter(batchWriter).build())
+
+        when:
+        dao.manageFile(mockFile("file.txt"), "info")
+
+        then: // entry, path, all files, expiration and lru indexes
+        1 * batchWriter.write({ it.operations().size() == 5 })
+    }
+
+    def "when acquiring volatile managed file, nothing is written"() {
+        setup:
+        def batchWriter = Spy(SequentialBatchWriter, constructorArgs: [keyValueMemory])
+        def dao = new ManagedFileDao(testScheduler, keyValueMemory, fileOperations,
+                ManagedFileDao.Settings.builder().setBatchWriter(batchWriter).build())
+        def managedFile = dao.manageFile(mockFile("file.txt"), "info")
+
+        when:
+        100.times {
+            managedFile.newManagedFile("volatile" + it)
+            dao.findAndAcquireManagedFileIfExists(managedFile.fileId(), "find" + it)
+        }
+
+        then:
+        0 * batchWriter.write(_)
+        dao.volatileAcquiredFilesCount() == 1
+    }
+
+    def "when acquiring and releasing restart managed file, every operation is one batch"() {
+        setup:
+        def batchWriter = Spy(SequentialBatchWriter, constructorArgs: [keyValueMemory])
+        def dao = new ManagedFileDao(testScheduler, keyValueMemory, fileOperations,
+                ManagedFileDao.Settings.builder().setBatchWriter(batchWriter).build())
+        def managedFile = dao.manageFile(mockFile("file.txt"), "info")
+
+        when:
+        def restartManagedFile = managedFile.newRestartManagedFile("restart")
+        restartManagedFile.release()
+
+        then:
+        2 * batchWriter.write(_)
+    }
+
+    def "when sweeping, files that did not expire are not visited"() {
+        setup:
+        def keyValue = Spy(KeyValueMemory)
+        def dao = new ManagedFileDao(testScheduler, keyValue, fileOperations)
+        dao.removeOldFiles()
+        dao.manageFile(mockFile("expired.txt"), "info", 1).release()
+        10.times {
+            dao.manageFile(mockFile("file" + it + ".txt"), "info", TimeUnit.HOURS.toMillis(LONG_TIME)).release()
+        }
+
+        when:
+        testScheduler.advanceTimeBy(SHORT_TIME, TimeUnit.HOURS)
+        dao.removeOldFiles()
+
+        then:
+        1 * fileOperations.removeFile("expired.txt")
+        0 * fileOperations.removeFile(_)
+        (0..3) * keyValue.getBytes(_)
+    }
+
+    def "when file is removed, it is not swept again"() {
+        setup:
+        managedFileDao.manageFile(mockFile("file.txt"), "info").release()
+        testScheduler.advanceTimeBy(LONG_TIME, TimeUnit.HOURS)
+        managedFileDao.removeOldFiles()
+
+        when:
+        managedFileDao.removeOldFiles()
+
+        then:
+        0 * fileOperations.removeFile(_)
+    }
+
+    def "when removing old files in background, every run removes limited number of files"() {
+        setup:
+        3.times {
+            managedFileDao.manageFile(mockFile("file" + it + ".txt"), "info", 1).release()
+        }
+        managedFileDao.startRemovingOldFiles(1, TimeUnit.MINUTES, 1, LONG_TIME)
+
+        when:
+        testScheduler.advanceTimeBy(1, TimeUnit.MINUTES)
+
+        then:
+        1 * fileOperations.removeFile(_)
+    }
+
+    def "when removing old files in background, next runs continue until all files are removed"() {
+        setup:
+        3.times {
+            managedFileDao.manageFile(mockFile("file" + it + ".txt"), "info", 1).release()
+        }
+        managedFileDao.startRemovingOldFiles(1, TimeUnit.MINUTES, 1, LONG_TIME)
+
+        when:
+        testScheduler.advanceTimeBy(10, TimeUnit.MINUTES)
+
+        then:
+        1 * fileOperations.removeFile("file0.txt")
+        1 * fileOperations.removeFile("file1.txt")
+        1 * fileOperations.removeFile("file2.txt")
+    }
+
+    def "when background run fails, next runs still remove files"() {
+        setup:
+        2.times {
+            managedFileDao.manageFile(mockFile("file" + it + ".txt"), "info", 1).release()
+        }
+        managedFileDao.startRemovingOldFiles(1, TimeUnit.MINUTES, 1, LONG_TIME)
+
+        when:
+        testScheduler.advanceTimeBy(10, TimeUnit.MINUTES)
+
+        then:
+        1 * fileOperations.removeFile("file0.txt") >> { throw new IllegalStateException("disk error") }
+        1 * fileOperations.removeFile("file1.txt")
+    }
+
+    def "when background removing is unsubscribed, files are not removed"() {
+        setup:
+        managedFileDao.manageFile(mockFile("file.txt"), "info", 1).release()
+        def subscription = managedFileDao.startRemovingOldFiles(1, TimeUnit.MINUTES, 1, LONG_TIME)
+
+        when:
+        subscription.unsubscribe()
+        testScheduler.advanceTimeBy(10, TimeUnit.MINUTES)
+
+        then:
+        0 * fileOperations.removeFile(_)
+    }
+
+    def "when removing old files with cursor, cursor is returned until all files are visited"() {
+        setup:
+        2.times {
+            managedFileDao.manageFile(mockFile("file" + it + ".txt"), "info", 1).release()
+        }
+        testScheduler.advanceTimeBy(1, TimeUnit.MINUTES)
+
+        when:
+        def cursor = managedFileDao.removeOldFiles(null, 1, LONG_TIME)
+        def lastCursor = managedFileDao.removeOldFiles(cursor, 1, LONG_TIME)
+
+        then:
+        cursor != null
+        lastCursor == null
+        2 * fileOperations.removeFile(_)
+    }
+
+    def "when sweeping file with many restart acquisitions, acquisitions are not scanned"() {
+        setup:
+        def keyValue = Spy(KeyValueMemory)
+        def dao = new ManagedFileDao(testScheduler, keyValue, fileOperations)
+        dao.removeOldFiles()
+        def managedFile = dao.manageFile(mockFile("file.txt"), "info", 1)
+        10.times {
+            managedFile.newRestartManagedFile("restart " + it)
+        }
+        managedFile.release()
+        testScheduler.advanceTimeBy(SHORT_TIME, TimeUnit.HOURS)
+
+        when:
+        dao.removeOldFiles()
+
+        then:
+        // one page of expired leases and one page of expiration index, acquisitions are not listed
+        2 * keyValue.getKeys(_, _, _)
+        0 * fileOperations.removeFile(_)
+    }
+
+    def "when all restart acquisitions are released, file is removed"() {
+        setup:
+        def managedFile = managedFileDao.manageFile(mockFile("file.txt"), "info")
+        def restartManagedFiles = (1..3).collect { managedFile.newRestartManagedFile("restart " + it) }
+        managedFile.release()
+
+        when:
+        restartManagedFiles*.release()
+        testScheduler.advanceTimeBy(LONG_TIME, TimeUnit.HOURS)
+        createManagedDao().removeOldFiles()
+
+        then:
+        1 * fileOperations.removeFile("file.txt")
+    }
+
+    def "when files are released and swept, no volatile acquisitions are kept in memory"() {
+        setup:
+        100.times {
+            managedFileDao.manageFile(mockFile("file" + it + ".txt"), "info", TimeUnit.HOURS.toMillis(LONG_TIME)).release()
+        }
+
+        when:
+        managedFileDao.removeOldFiles()
+
+        then:
+        managedFileDao.volatileAcquiredFilesCount() == 0
+    }
+
+    def "when tracing volatile acquisitions, debug list contains acquire names"() {
+        setup:
+        def dao = new ManagedFileDao(testScheduler, keyValueMemory, fileOperations,
+                ManagedFileDao.Settings.builder().setTraceVolatileAcquisitions(true).build())
+
+        when:
+        dao.manageFile(mockFile("file.txt"), "for glide")
+
+        then:
+        dao.debugPurposeListAllFiles().contains("for glide")
+    }
+
+    def "when not tracing volatile acquisitions, debug list contains only number of acquisitions"() {
+        when:
+        managedFileDao.manageFile(mockFile("file.txt"), "for glide")
+
+        then:
+        !managedFileDao.debugPurposeListAllFiles().contains("for glide")
+        managedFileDao.debugPurposeListAllFiles().contains("Acquisition (Volatile): 1")
+    }
+
+    def "when file is released, its size is counted"() {
+        setup:
+        fileOperations.fileSize("file.txt") >> 100
+        def managedFile = managedFileDao.manageFile(mockFile("file.txt"), "info")
+
+        when:
+        managedFile.release()
+
+        then:
+        managedFileDao.totalSizeInBytes() == 100
+    }
+
+    def "when file operations are not extended, size is read from file and removal is delegated"() {
+        setup:
+        def basicFileOperations = Mock(ManagedFileDao.FileOperations)
+        def dao = new ManagedFileDao(testScheduler, keyValueMemory, basicFileOperations)
+        def file = File.createTempFile("managed", ".txt")
+        file.text = "content"
+
+        when:
+        dao.manageFile(file, "info").release()
+
+        then:
+        dao.totalSizeInBytes() == 7
+
+        when:
+        testScheduler.advanceTimeBy(LONG_TIME, TimeUnit.HOURS)
+        dao.removeOldFiles()
+
+        then:
+        1 * basicFileOperations.removeFile(file.absolutePath)
+
+        cleanup:
+        file.delete()
+    }
+
+    def "when file is removed, its size is not counted anymore"() {
+        setup:
+        fileOperations.fileSize("file.txt") >> 100
+        managedFileDao.manageFile(mockFile("file.txt"), "info").release()
+
+        when:
+        testScheduler.advanceTimeBy(LONG_TIME, TimeUnit.HOURS)
+        managedFileDao.removeOldFiles()
+
+        then:
+        managedFileDao.totalSizeInBytes() == 0
+    }
+
+    def "after restart, size of files is restored"() {
+        setup:
+        fileOperations.fileSize("file.txt") >> 100
+        managedFileDao.manageFile(mockFile("file.txt"), "info").release()
+        testScheduler.triggerActions()
+
+        expect:
+        createManagedDao().totalSizeInBytes() == 100
+    }
+
+    def "when volatile file is released, size is read only when usage is written"() {
+        setup:
+        def managedFile = managedFileDao.manageFile(mockFile("file.txt"), "info")
+
+        when:
+        10.times {
+            managedFile.newManagedFile("volatile").release()
+        }
+
+        then:
+        0 * fileOperations.fileSize(_)
+
+        when:
+        managedFile.release()
+        testScheduler.triggerActions()
+
+        then:
+        1 * fileOperations.fileSize("file.txt") >> 100
+        managedFileDao.totalSizeInBytes() == 100
+    }
+
+    def "when quota is exceeded, least recently acquired not acquired file is removed"() {
+        setup:
+        fileOperations.fileSize(_) >> 100
+        def dao = new ManagedFileDao(testScheduler, keyValueMemory, fileOperations,
+                ManagedFileDao.Settings.builder().setByteQuota(250).build())
+        dao.manageFile(mockFile("old.txt"), "info").release()
+        testScheduler.advanceTimeBy(1, TimeUnit.HOURS)
+        dao.manageFile(mockFile("newer.txt"), "info").release()
+        testScheduler.advanceTimeBy(1, TimeUnit.MINUTES)
+
+        when:
+        dao.manageFile(mockFile("newest.txt"), "info").release()
+        testScheduler.triggerActions()
+
+        then:
+        1 * fileOperations.removeFile("old.txt")
+        0 * fileOperations.removeFile(_)
+        dao.totalSizeInBytes() == 200
+    }
+
+    def "when quota is exceeded, acquired files are not removed"() {
+        setup:
+        fileOperations.fileSize(_) >> 100
+        def dao = new ManagedFileDao(testScheduler, keyValueMemory, fileOperations,
+                ManagedFileDao.Settings.builder().setByteQuota(150).build())
+        def acquired = dao.manageFile(mockFile("acquired.txt"), "info")
+        acquired.newRestartManagedFile("restart")
+        acquired.release()
+        testScheduler.advanceTimeBy(1, TimeUnit.MINUTES)
+
+        when:
+        dao.manageFile(mockFile("released.txt"), "info").release()
+        testScheduler.triggerActions()
+
+        then:
+        1 * fileOperations.removeFile("released.txt")
+        0 * fileOperations.removeFile(_)
+    }
+
+    def "when deduplicating file with new content, the same file is returned"() {
+        setup:
+        def managedFile = managedFileDao.manageFile(mockFile("file.txt"), "info")
+
+        when:
+        def deduplicated = managedFileDao.deduplicate(managedFile, ByteString.copyFromUtf8("hash"), "deduplicated")
+
+        then:
+        deduplicated.fileId() == managedFile.fileId()
+    }
+
+    def "when deduplicating file with existing content, file with this content is returned"() {
+        setup:
+        def original = managedFileDao.manageFile(mockFile("original.txt"), "info")
+        managedFileDao.deduplicate(original, ByteString.copyFromUtf8("hash"), "deduplicated")
+        def duplicate = managedFileDao.manageFile(mockFile("duplicate.txt"), "info")
+
+        when:
+        def deduplicated = managedFileDao.deduplicate(duplicate, ByteString.copyFromUtf8("hash"), "deduplicated")
+
+        then:
+        deduplicated.fileId() == original.fileId()
+        deduplicated.file().getPath() == "original.txt"
+    }
+
+    def "when duplicate is released, it is removed without waiting for expiration"() {
+        setup:
+        def original = managedFileDao.manageFile(mockFile("original.txt"), "info")
+        managedFileDao.deduplicate(original, ByteString.copyFromUtf8("hash"), "deduplicated")
+        def duplicate = managedFileDao.manageFile(mockFile("duplicate.txt"), "info")
+        managedFileDao.deduplicate(duplicate, ByteString.copyFromUtf8("hash"), "deduplicated")
+
+        when:
+        duplicate.release()
+        managedFileDao.removeOldFiles()
+
+        then:
+        1 * fileOperations.removeFile("duplicate.txt")
+        0 * fileOperations.removeFile(_)
+    }
+
+    def "when duplicate would expire later, file with this content is kept as long"() {
+        setup:
+        def original = managedFileDao.manageFile(mockFile("original.txt"), "info", SHORT_TIME)
+        managedFileDao.deduplicate(original, ByteString.copyFromUtf8("hash"), "deduplicated").release()
+        def duplicate = managedFileDao.manageFile(mockFile("duplicate.txt"), "info")
+        managedFileDao.deduplicate(duplicate, ByteString.copyFromUtf8("hash"), "deduplicated").release()
+        original.release()
+        duplicate.release()
+
+        when:
+        testScheduler.advanceTimeBy(1, TimeUnit.MINUTES)
+        managedFileDao.removeOldFiles()
+
+        then:
+        1 * fileOperations.removeFile("duplicate.txt")
+        0 * fileOperations.removeFile(_)
+
+        when:
+        testScheduler.advanceTimeBy(LONG_TIME, TimeUnit.HOURS)
+        managedFileDao.removeOldFiles()
+
+        then:
+        1 * fileOperations.removeFile("original.txt")
+    }
+
+    def "when file with content is removed, next file with this content is kept"() {
+        setup:
+        def original = managedFileDao.manageFile(mockFile("original.txt"), "info")
+        managedFileDao.deduplicate(original, ByteString.copyFromUtf8("hash"), "deduplicated").release()
+        original.release()
+        testScheduler.advanceTimeBy(LONG_TIME, TimeUnit.HOURS)
+        managedFileDao.removeOldFiles()
+        def next = managedFileDao.manageFile(mockFile("next.txt"), "info")
+
+        when:
+        def deduplicated = managedFileDao.deduplicate(next, ByteString.copyFromUtf8("hash"), "deduplicated")
+
+        then:
+        deduplicated.fileId() == next.fileId()
+    }
+
+    def "when reconciling orphaned files, not managed files are removed"() {
+        setup:
+        managedFileDao.manageFile(mockFile("/dir/managed.txt"), "info")
+        fileOperations.listFiles("/dir") >> ["/dir/managed.txt", "/dir/orphan.txt"]
+        fileOperations.lastModified(_) >> 0
+        testScheduler.advanceTimeBy(1, TimeUnit.HOURS)
+        def reconciled = []
+
+        when:
+        managedFileDao.reconcileOrphanedFiles([mockFile("/dir")], ManagedFileDao.OrphanPolicy.DELETE, 1000)
+                .subscribe({ reconciled.add(it) })
+        testScheduler.triggerActions()
+
+        then:
+        1 * fileOperations.removeFile("/dir/orphan.txt")
+        0 * fileOperations.removeFile(_)
+        reconciled == [1]
+    }
+
+    def "when reconciling orphaned files, recently modified files are skipped"() {
+        setup:
+        testScheduler.advanceTimeBy(1, TimeUnit.HOURS)
+        fileOperations.listFiles("/dir") >> ["/dir/new.txt"]
+        fileOperations.lastModified("/dir/new.txt") >> testScheduler.now()
+
+        when:
+        managedFileDao.reconcileOrphanedFiles([mockFile("/dir")], ManagedFileDao.OrphanPolicy.DELETE, 1000)
+                .subscribe()
+        testScheduler.triggerActions()
+
+        then:
+        0 * fileOperations.removeFile(_)
+    }
+
+    def "when reconciling orphaned files in many directories, all of them are checked"() {
+        setup:
+        fileOperations.listFiles("/dir1") >> (1..250).collect { "/dir1/file" + it }
+        fileOperations.listFiles("/dir2") >> ["/dir2/file"]
+        fileOperations.lastModified(_) >> 0
+        testScheduler.advanceTimeBy(1, TimeUnit.HOURS)
+        def reconciled = []
+
+        when:
+        managedFileDao.reconcileOrphanedFiles([mockFile("/dir1"), mockFile("/dir2")], ManagedFileDao.OrphanPolicy.DELETE, 1000)
+                .subscribe({ reconciled.add(it) })
+        testScheduler.triggerActions()
+
+        then:
+        251 * fileOperations.removeFile(_)
+        reconciled == [251]
+    }
+
+    def "when adopting orphaned file, it is managed and removed after expiration"() {
+        setup:
+        fileOperations.listFiles("/dir") >> ["/dir/orphan.txt"]
+        fileOperations.lastModified(_) >> 0
+        fileOperations.fileSize("/dir/orphan.txt") >> 100
+        testScheduler.advanceTimeBy(1, TimeUnit.HOURS)
+        managedFileDao.reconcileOrphanedFiles([mockFile("/dir")], ManagedFileDao.OrphanPolicy.ADOPT, 1000)
+                .subscribe()
+        testScheduler.triggerActions()
+
+        expect:
+        managedFileDao.totalSizeInBytes() == 100
+        managedFileDao.debugPurposeListAllFiles().contains("/dir/orphan.txt")
+
+        when:
+        testScheduler.advanceTimeBy(LONG_TIME, TimeUnit.HOURS)
+        managedFileDao.removeOldFiles()
+
+        then:
+        1 * fileOperations.removeFile("/dir/orphan.txt")
+    }
+
+    def "when creating managed file, file is created and managed"() {
+        setup:
+        String createdPath = null
+        fileOperations.createFile(_) >> { String path -> createdPath = path; true }
+
+        when:
+        def managedFile = managedFileDao.createManagedFile(new File("/dir"), ".jpg", "info")
+
+        then:
+        managedFile.file().getAbsolutePath() == createdPath
+        createdPath.startsWith("/dir/managed")
+        createdPath.endsWith(".jpg")
+        managedFileDao.recoverInterruptedOperations() == 0
+    }
+
+    def "when process dies after file is created, file is removed during recovery"() {
+        setup:
+        String createdPath = null
+        fileOperations.createFile(_) >> { String path -> createdPath = path; true }
+        def batchWriter = Mock(BatchWriter) {
+            write(_) >> { throw new ThreadDeath() }
+        }
+        def dao = new ManagedFileDao(testScheduler, keyValueMemory, fileOperations,
+                ManagedFileDao.Settings.builder().setBatchWriter(batchWriter).build())
+        try {
+            dao.createManagedFile(new File("/dir"), null, "info")
+        } catch (ThreadDeath ignore) {
+        }
+
+        when:
+        def recovered = createManagedDao().recoverInterruptedOperations()
+
+        then:
+        1 * fileOperations.removeFile(createdPath)
+        recovered == 1
+    }
+
+    def "when process dies after file entry is removed, file is removed during recovery"() {
+        setup:
+        managedFileDao.manageFile(mockFile("file.txt"), "info").release()
+        testScheduler.advanceTimeBy(LONG_TIME, TimeUnit.HOURS)
+        fileOperations.removeFile("file.txt") >> { throw new ThreadDeath() }
+        try {
+            managedFileDao.removeOldFiles()
+        } catch (ThreadDeath ignore) {
+        }
+        def fileOperationsAfterRestart = Mock(ManagedFileDao.ExtendedFileOperations)
+
+        when:
+        def recovered = new ManagedFileDao(testScheduler, keyValueMemory, fileOperationsAfterRestart)
+                .recoverInterruptedOperations()
+
+        then:
+        1 * fileOperationsAfterRestart.removeFile("file.txt")
+        recovered == 1
+        !managedFileDao.debugPurposeListAllFiles().contains("file.txt")
+    }
+
+    def "when operations finished, recovery does nothing"() {
+        setup:
+        managedFileDao.manageFile(mockFile("file.txt"), "info").release()
+        testScheduler.advanceTimeBy(LONG_TIME, TimeUnit.HOURS)
+        managedFileDao.removeOldFiles()
+
+        when:
+        def recovered = createManagedDao().recoverInterruptedOperations()
+
+        then:
+        0 * fileOperations.removeFile(_)
+        recovered == 0
+    }
+
+    def "when files are acquired and released, acquisitions are counted by kind and name"() {
+        setup:
+        def managedFile = managedFileDao.manageFile(mockFile("file.txt"), "info")
+        def restartFile = managedFile.newRestartManagedFile("restart")
+
+        when:
+        testScheduler.advanceTimeBy(5, TimeUnit.MILLISECONDS)
+        managedFile.release()
+
+        then:
+        def metrics = managedFileDao.acquisitionMetrics()
+        metrics.live(AcquisitionMetrics.Kind.VOLATILE) == 0
+        metrics.live(AcquisitionMetrics.Kind.RESTART) == 1
+        metrics.acquiresByName() == ["info": 1L, "restart": 1L]
+        metrics.holdTimeHistogram(AcquisitionMetrics.Kind.VOLATILE)[3] == 1
+
+        when:
+        testScheduler.advanceTimeBy(1000, TimeUnit.MILLISECONDS)
+        restartFile.release()
+
+        then:
+        metrics.live(AcquisitionMetrics.Kind.RESTART) == 0
+        metrics.holdTimeHistogram(AcquisitionMetrics.Kind.RESTART)[10] == 1
+    }
+
+    def "when leak detection is sampled, only part of handles is tracked"() {
+        setup:
+        def dao = new ManagedFileDao(testScheduler, keyValueMemory, fileOperations,
+                ManagedFileDao.Settings.builder().setLeakDetectionSampleRate(4).build())
+        def managedFile = dao.manageFile(mockFile("file.txt"), "info")
+
+        when:
+        def handles = (1..7).collect { managedFile.newManagedFile("handle " + it) }
+
+        then:
+        dao.leakTrackedHandlesCount() == 2
+
+        when:
+        handles.each { it.release() }
+
+        then:
+        dao.leakTrackedHandlesCount() == 0
+    }
+
+    def "when handle is collected without release, leak is reported and file is released"() {
+        setup:
+        def leaks = new LinkedBlockingQueue<String>()
+        def dao = new ManagedFileDao(testScheduler, keyValueMemory, fileOperations,
+                ManagedFileDao.Settings.builder()
+                        .setLeakDetectionSampleRate(1)
+                        .setAutoReleaseLeaks(true)
+                        .setLeakListener({ fileId, acquireName, released -> leaks.add(acquireName) } as LeakListener)
+                        .build())
+        def handle = dao.manageFile(mockFile("file.txt"), "leaked")
+
+        when:
+        // same as garbage collector does when handle is not reachable anymore
+        handle.tracker.enqueue()
+        def leak = leaks.poll(10, TimeUnit.SECONDS)
+        testScheduler.advanceTimeBy(LONG_TIME, TimeUnit.HOURS)
+        dao.removeOldFiles()
+
+        then:
+        leak == "leaked"
+        1 * fileOperations.removeFile("file.txt")
+    }
+
+    def "when managed file does not support lease, it is acquired until released"() {
+        setup:
+        def managedFile = Mock(ManagedFileDao.ManagedFile)
+        def restartManagedFile = Mock(ManagedFileDao.RestartManagedFile)
+
+        when:
+        def acquired = ManagedFileDao.newRestartManagedFile(managedFile, "leased", testScheduler.now() + 1000)
+
+        then:
+        1 * managedFile.newRestartManagedFile("leased") >> restartManagedFile
+        acquired == restartManagedFile
+    }
+
+    def "when lease of restart acquisition expires, file is removed"() {
+        setup:
+        def managedFile = managedFileDao.manageFile(mockFile("file.txt"), "info")
+        managedFile.newRestartManagedFile("leased", testScheduler.now() + TimeUnit.DAYS.toMillis(1))
+        managedFile.release()
+
+        when:
+        testScheduler.advanceTimeBy(1, TimeUnit.HOURS)
+        managedFileDao.removeOldFiles()
+        testScheduler.advanceTimeBy(3, TimeUnit.HOURS)
+        managedFileDao.removeOldFiles()
+
+        then:
+        0 * fileOperations.removeFile(_)
+
+        when:
+        testScheduler.advanceTimeBy(1, TimeUnit.DAYS)
+        managedFileDao.removeOldFiles()
+
+        then:
+        1 * fileOperations.removeFile("file.txt")
+    }
+
+    def "when leased acquisition is released before lease expires, it is not released again"() {
+        setup:
+        def managedFile = managedFileDao.manageFile(mockFile("file.txt"), "info")
+        managedFile.newRestartManagedFile("leased", testScheduler.now() + 1000).release()
+        managedFile.newRestartManagedFile("not leased")
+        managedFile.release()
+
+        when:
+        testScheduler.advanceTimeBy(LONG_TIME, TimeUnit.HOURS)
+        managedFileDao.removeOldFiles()
+
+        then:
+        0 * fileOperations.removeFile(_)
+        managedFileDao.debugPurposeListAllFiles().contains("not leased")
+    }
+
+    def "when removing old files with cursor, expired leases are released"() {
+        setup:
+        def managedFile = managedFileDao.manageFile(mockFile("file.txt"), "info")
+        managedFile.newRestartManagedFile("leased", testScheduler.now() + 1000)
+        managedFile.release()
+        testScheduler.advanceTimeBy(LONG_TIME, TimeUnit.HOURS)
+
+        when:
+        managedFileDao.removeOldFiles(null, 10, LONG_TIME)
+
+        then:
+        1 * fileOperations.removeFile("file.txt")
+    }
+
+    def "when managing many files, all entries are written in one batch"() {
+        setup:
+        def batchWriter = Spy(SequentialBatchWriter, constructorArgs: [keyValueMemory])
+        def dao = new ManagedFileDao(testScheduler, keyValueMemory, fileOperations,
+                ManagedFileDao.Settings.builder().setBatchWriter(batchWriter).build())
+
+        when:
+        def managedFiles = dao.manageFiles((0..<10).collect { mockFile("file" + it + ".txt") }, "info")
+
+        then:
+        1 * batchWriter.write(_)
+        managedFiles.collect { it.file().getPath() } == (0..<10).collect { "file" + it + ".txt" }
+    }
+
+    def "when one of many files is already managed, none of them is managed"() {
+        setup:
+        managedFileDao.manageFile(mockFile("file1.txt"), "info")
+
+        when:
+        managedFileDao.manageFiles([mockFile("file0.txt"), mockFile("file1.txt")], "info")
+
+        then:
+        thrown(IllegalStateException)
+        !managedFileDao.debugPurposeListAllFiles().contains("file0.txt")
+    }
+
+    def "when many files are released, usage is written later in one batch"() {
+        setup:
+        fileOperations.fileSize(_) >> 100
+        def batchWriter = Spy(SequentialBatchWriter, constructorArgs: [keyValueMemory])
+        def dao = new ManagedFileDao(testScheduler, keyValueMemory, fileOperations,
+                ManagedFileDao.Settings.builder().setBatchWriter(batchWriter).build())
+        def managedFiles = dao.manageFiles((0..<10).collect { mockFile("file" + it + ".txt") }, "info")
+
+        when:
+        dao.releaseAll(managedFiles)
+
+        then:
+        0 * batchWriter.write(_)
+        dao.volatileAcquiredFilesCount() == 0
+
+        when:
+        testScheduler.triggerActions()
+
+        then:
+        1 * batchWriter.write(_)
+        dao.totalSizeInBytes() == 1000
+    }
+
+    def "when releasing the same file twice at once, nothing is released"() {
+        setup:
+        def managedFile = managedFileDao.manageFile(mockFile("file.txt"), "info")
+
+        when:
+        managedFileDao.releaseAll([managedFile, managedFile])
+
+        then:
+        thrown(IllegalStateException)
+        managedFileDao.volatileAcquiredFilesCount() == 1
+    }
+
+    def "when acquiring many files, every file is acquired"() {
+        setup:
+        def managedFiles = managedFileDao.manageFiles([mockFile("file0.txt"), mockFile("file1.txt")], "info")
+
+        when:
+        def acquired = managedFileDao.acquireAll(managedFiles, "again")
+        managedFileDao.releaseAll(managedFiles)
+        testScheduler.advanceTimeBy(LONG_TIME, TimeUnit.HOURS)
+        managedFileDao.removeOldFiles()
+
+        then:
+        0 * fileOperations.removeFile(_)
+        acquired*.fileId() == managedFiles*.fileId()
+    }
+
+    def "when acquiring many files and one is released, none is acquired"() {
+        setup:
+        def managedFiles = managedFileDao.manageFiles([mockFile("file0.txt"), mockFile("file1.txt")], "info")
+        managedFiles[1].release()
+
+        when:
+        managedFileDao.acquireAll(managedFiles, "again")
+
+        then:
+        thrown(IllegalStateException)
+        managedFileDao.volatileAcquiredFilesCount() == 1
+    }
+
+    def "when releasing many files fails, files are not marked as released"() {
+        setup:
+        def leaks = new LinkedBlockingQueue<String>()
+        def dao = new ManagedFileDao(testScheduler, keyValueMemory, fileOperations,
+                ManagedFileDao.Settings.builder()
+                        .setLeakDetectionSampleRate(1)
+                        .setAutoReleaseLeaks(true)
+                        .setLeakListener({ fileId, acquireName, released -> leaks.add(acquireName) } as LeakListener)
+                        .build())
+        def handle = dao.manageFile(mockFile("file.txt"), "leaked")
+        // acquisition is released as leaked while handle is still reachable
+        handle.tracker.enqueue()
+        leaks.poll(10, TimeUnit.SECONDS)
+
+        when:
+        dao.releaseAll([handle])
+
+        then:
+        thrown(IllegalStateException)
+        handle.file().name == "file.txt"
+    }
+
+    def "when name of one of many files is taken, another name is used"() {
+        setup:
+        def createdPaths = []
+        def taken = true
+        fileOperations.createFile(_) >> { String path ->
+            if (taken) {
+                taken = false
+                return false
+            }
+            createdPaths.add(path)
+            true
+        }
+
+        when:
+        def managedFiles = managedFileDao.createManagedFiles(new File("/dir"), null, 2, "info")
+
+        then:
+        managedFiles.collect { it.file().getAbsolutePath() } == createdPaths
+        createdPaths.size() == 2
+        managedFileDao.recoverInterruptedOperations() == 0
+    }
+
+    def "when creating one of many files fails, created files are removed"() {
+        setup:
+        fileOperations.createFile(_) >>> [true] >> { throw new IOException("disk full") }
+
+        when:
+        managedFileDao.createManagedFiles(new File("/dir"), null, 2, "info")
+
+        then:
+        thrown(IOException)
+        1 * fileOperations.removeFile(_)
+        managedFileDao.recoverInterruptedOperations() == 0
+    }
+
+    def "when dumping files, every file is written as one line with its acquisitions"() {
+        setup:
+        def managedFile = managedFileDao.manageFile(mockFile("file\"1.txt"), "info")
+        managedFile.newRestartManagedFile("upload", 1000)
+        managedFileDao.manageFile(mockFile("file2.txt"), "info")
+        def writer = new StringWriter()
+
+        when:
+        managedFileDao.dumpAllFiles(writer)
+
+        then:
+        def lines = writer.toString().readLines()
+        lines.size() == 2
+        lines.any { it.contains('"path":"file\\"1.txt"') && it.contains('{"name":"upload","leaseExpirationTimeInMillis":1000}') }
+        lines.every { it.contains('"volatileAcquisitions":1') }
+    }
+
+    def "when dumping files with cursor, every page has limited number of files"() {
+        setup:
+        5.times { managedFileDao.manageFile(mockFile("file" + it + ".txt"), "info") }
+        def writer = new StringWriter()
+
+        when:
+        def cursor = managedFileDao.dumpFiles(writer, null, 2)
+
+        then:
+        cursor != null
+        writer.toString().readLines().size() == 2
+
+        when:
+        cursor = managedFileDao.dumpFiles(writer, cursor, 2)
+        cursor = managedFileDao.dumpFiles(writer, cursor, 2)
+
+        then:
+        cursor == null
+        writer.toString().readLines().collect { it.find(/file\d\.txt/) }.toSet().size() == 5
+    }
+
+    def "when dumping files without restart acquisitions, acquisitions are not scanned"() {
+        setup:
+        def keyValue = Spy(KeyValueMemory)
+        def dao = new ManagedFileDao(testScheduler, keyValue, fileOperations)
+        10.times { dao.manageFile(mockFile("file" + it + ".txt"), "info") }
+
+        when:
+        dao.dumpAllFiles(new StringWriter())
+
+        then:
+        1 * keyValue.getKeys(_, _, _)
+    }
+
+    def "string of dao does not list files"() {
+        setup:
+        managedFileDao.manageFile(mockFile("file.txt"), "info")
+
+        expect:
+        !managedFileDao.toString().contains("file.txt")
+    }
+
     private File mockFile(String path) {
         Mock(File) {
             getAbsolutePath() >> path
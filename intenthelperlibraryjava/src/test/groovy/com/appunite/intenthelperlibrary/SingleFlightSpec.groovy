@@ -0,0 +1,89 @@
+package com.appunite.intenthelperlibrary
+
+import spock.lang.Specification
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+class SingleFlightSpec extends Specification {
+
+    SingleFlight<String> singleFlight = new SingleFlight<>()
+
+    def "concurrent callers of the same key share one load"() {
+        setup:
+        def loads = new AtomicInteger()
+        def started = new CountDownLatch(1)
+        def finish = new CountDownLatch(1)
+        def loader = { ->
+            loads.incrementAndGet()
+            started.countDown()
+            finish.await()
+            "value"
+        } as SingleFlight.Loader<String>
+        def executor = Executors.newFixedThreadPool(4)
+
+        when:
+        def leader = executor.submit({ singleFlight.execute("url", loader) } as Callable)
+        started.await()
+        def followers = (0..<3).collect { executor.submit({ singleFlight.execute("url", loader) } as Callable) }
+        waitForFollowers("url", 3)
+        finish.countDown()
+        def results = [leader.get()] + followers.collect { it.get() }
+
+        then:
+        loads.get() == 1
+        results.collect { it.value() } == ["value"] * 4
+        results.count { !it.shared() } == 1
+        singleFlight.inFlightCount() == 0
+
+        cleanup:
+        executor.shutdownNow()
+    }
+
+    def "when load fails, waiting callers fail too"() {
+        setup:
+        def started = new CountDownLatch(1)
+        def finish = new CountDownLatch(1)
+        def executor = Executors.newFixedThreadPool(2)
+        def failing = { ->
+            started.countDown()
+            finish.await()
+            throw new IOException("network")
+        } as SingleFlight.Loader<String>
+
+        when:
+        def leader = executor.submit({ singleFlight.execute("url", failing) } as Callable)
+        started.await()
+        def follower = executor.submit({ singleFlight.execute("url", failing) } as Callable)
+        waitForFollowers("url", 1)
+        finish.countDown()
+        follower.get()
+
+        then:
+        def e = thrown(java.util.concurrent.ExecutionException)
+        e.cause instanceof IOException
+        e.cause.cause.message == "network"
+
+        cleanup:
+        executor.shutdownNow()
+    }
+
+    def "after load finishes, next call loads again"() {
+        setup:
+        def loads = new AtomicInteger()
+        def loader = { -> "value" + loads.incrementAndGet() } as SingleFlight.Loader<String>
+
+        expect:
+        singleFlight.execute("url", loader).value() == "value1"
+        singleFlight.execute("url", loader).value() == "value2"
+        singleFlight.execute("other", loader).value() == "value3"
+    }
+
+    private void waitForFollowers(String key, int count) {
+        while (singleFlight.waitingCount(key) < count) {
+            Thread.yield()
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.appunite.intenthelperlibrary.dao
+
+import spock.lang.Specification
+
+class AcquisitionMetricsSpec extends Specification {
+
+    def "hold times are counted in power of two buckets"() {
+        expect:
+        AcquisitionMetrics.bucketFor(holdTime) == bucket
+
+        where:
+        holdTime      | bucket
+        0             | 0
+        1             | 1
+        2             | 2
+        3             | 2
+        4             | 3
+        1000          | 10
+        Long.MAX_VALUE | AcquisitionMetrics.HOLD_TIME_BUCKETS - 1
+    }
+
+    def "live handles are acquisitions that were not released"() {
+        setup:
+        def metrics = new AcquisitionMetrics(true)
+
+        when:
+        3.times { metrics.recordAcquire(AcquisitionMetrics.Kind.VOLATILE, "info") }
+        metrics.recordRelease(AcquisitionMetrics.Kind.VOLATILE, 5)
+
+        then:
+        metrics.acquires(AcquisitionMetrics.Kind.VOLATILE) == 3
+        metrics.releases(AcquisitionMetrics.Kind.VOLATILE) == 1
+        metrics.live(AcquisitionMetrics.Kind.VOLATILE) == 2
+        metrics.live(AcquisitionMetrics.Kind.RESTART) == 0
+        metrics.holdTimeHistogram(AcquisitionMetrics.Kind.VOLATILE)[3] == 1
+    }
+
+    def "when there are too many acquire names, rest of them is counted together"() {
+        setup:
+        def metrics = new AcquisitionMetrics(true)
+
+        when:
+        (AcquisitionMetrics.MAX_TRACKED_NAMES + 10).times {
+            metrics.recordAcquire(AcquisitionMetrics.Kind.VOLATILE, "name " + (it as String).tr('0-9', 'a-j'))
+        }
+
+        then:
+        metrics.acquiresByName().size() == AcquisitionMetrics.MAX_TRACKED_NAMES + 1
+        metrics.acquiresByName()[AcquisitionMetrics.OTHER_NAMES] == 10
+    }
+
+    def "urls and numbers in acquire names are replaced by placeholders"() {
+        expect:
+        AcquisitionMetrics.normalizeName(name) == normalized
+
+        where:
+        name                                              | normalized
+        "for glide"                                       | "for glide"
+        "leaked share url - http://example.com/a.png"     | "leaked share url - <url>"
+        "leaked file - 12, https://example.com/b?c=1"     | "leaked file - #, <url>"
+        "download 3 of 10"                                | "download # of #"
+    }
+
+    def "when names differ only by url, they are counted together"() {
+        setup:
+        def metrics = new AcquisitionMetrics(true)
+
+        when:
+        (AcquisitionMetrics.MAX_TRACKED_NAMES + 10).times {
+            metrics.recordAcquire(AcquisitionMetrics.Kind.RESTART, "leaked share url - http://example.com/" + it)
+        }
+
+        then:
+        metrics.acquiresByName() == ["leaked share url - <url>": AcquisitionMetrics.MAX_TRACKED_NAMES + 10L]
+    }
+
+    def "when disabled, nothing is counted"() {
+        setup:
+        def metrics = new AcquisitionMetrics(false)
+
+        when:
+        metrics.recordAcquire(AcquisitionMetrics.Kind.RESTART, "info")
+        metrics.recordRelease(AcquisitionMetrics.Kind.RESTART, 5)
+
+        then:
+        metrics.acquires(AcquisitionMetrics.Kind.RESTART) == 0
+        metrics.releases(AcquisitionMetrics.Kind.RESTART) == 0
+        metrics.acquiresByName().isEmpty()
+    }
+}
@@ -0,0 +1,230 @@
+package com.appunite.intenthelperlibrary.dao
+
+import com.appunite.keyvalue.KeyValueMemory
+import rx.observers.TestSubscriber
+import rx.schedulers.Schedulers
+import rx.schedulers.TestScheduler
+import spock.lang.Specification
+
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+
+class AsyncManagedFileDaoSpec extends Specification {
+
+    TestScheduler testScheduler
+    ManagedFileDao.ExtendedFileOperations fileOperations
+    KeyValueMemory keyValueMemory
+    BatchWriter batchWriter
+    List<Runnable> writerTasks
+    ManagedFileDao managedFileDao
+    AsyncManagedFileDao async
+
+    void setup() {
+        testScheduler = Schedulers.test()
+        fileOperations = Mock(ManagedFileDao.ExtendedFileOperations)
+        keyValueMemory = new KeyValueMemory()
+        batchWriter = Spy(SequentialBatchWriter, constructorArgs: [keyValueMemory])
+        managedFileDao = new ManagedFileDao(testScheduler, keyValueMemory, fileOperations,
+                ManagedFileDao.Settings.builder().setBatchWriter(batchWriter).build())
+        writerTasks = []
+        async = managedFileDao.newAsync({ Runnable task -> writerTasks.add(task) } as Executor)
+    }
+
+    def "operation is not executed until writer runs"() {
+        setup:
+        def subscriber = new TestSubscriber<ManagedFileDao.ManagedFile>()
+
+        when:
+        async.manageFile(mockFile("file.txt"), "info").subscribe(subscriber)
+
+        then:
+        0 * batchWriter.write(_)
+        subscriber.assertNoValues()
+        async.queuedOperationsCount() == 1
+    }
+
+    def "when operation is executed, result is emitted after it is stored"() {
+        setup:
+        def subscriber = new TestSubscriber<ManagedFileDao.ManagedFile>()
+        async.manageFile(mockFile("file.txt"), "info").subscribe(subscriber)
+
+        when:
+        runWriter()
+
+        then:
+        subscriber.assertValueCount(1)
+        subscriber.assertCompleted()
+        new ManagedFileDao(testScheduler, keyValueMemory, fileOperations)
+                .findAndAcquireManagedFileIfExists(subscriber.onNextEvents[0].fileId(), "check") != null
+    }
+
+    def "when many operations are queued, their writes are stored in one batch"() {
+        setup:
+        def subscribers = (0..<10).collect { new TestSubscriber<ManagedFileDao.ManagedFile>() }
+        subscribers.eachWithIndex { subscriber, i ->
+            async.manageFile(mockFile("file" + i + ".txt"), "info").subscribe(subscriber)
+        }
+
+        when:
+        runWriter()
+
+        then:
+        1 * batchWriter.write(_)
+        subscribers.every { it.onNextEvents.size() == 1 }
+    }
+
+    def "queued operation sees writes of previous operations"() {
+        setup:
+        def first = new TestSubscriber<ManagedFileDao.ManagedFile>()
+        def second = new TestSubscriber<ManagedFileDao.ManagedFile>()
+        async.manageFile(mockFile("file.txt"), "info").subscribe(first)
+        async.manageFile(mockFile("file.txt"), "again").subscribe(second)
+
+        when:
+        runWriter()
+
+        then:
+        first.assertValueCount(1)
+        second.assertError(IllegalStateException)
+    }
+
+    def "when file does not exist, find completes without items"() {
+        setup:
+        def subscriber = new TestSubscriber<ManagedFileDao.ManagedFile>()
+        def managedFile = managedFileDao.manageFile(mockFile("file.txt"), "info")
+        managedFile.release()
+        testScheduler.advanceTimeBy(1, TimeUnit.DAYS)
+        async.removeOldFiles().subscribe()
+        async.findAndAcquireManagedFileIfExists(managedFile.fileId(), "find").subscribe(subscriber)
+
+        when:
+        runWriter()
+
+        then:
+        1 * fileOperations.removeFile("file.txt")
+        subscriber.assertNoValues()
+        subscriber.assertCompleted()
+    }
+
+    def "when storing fails, all queued operations fail"() {
+        setup:
+        def first = new TestSubscriber<ManagedFileDao.ManagedFile>()
+        def second = new TestSubscriber<ManagedFileDao.ManagedFile>()
+        async.manageFile(mockFile("file1.txt"), "info").subscribe(first)
+        async.manageFile(mockFile("file2.txt"), "info").subscribe(second)
+        batchWriter.write(_) >> { throw new IllegalStateException("disk full") }
+
+        when:
+        runWriter()
+
+        then:
+        first.assertError(IllegalStateException)
+        second.assertError(IllegalStateException)
+        managedFileDao.volatileAcquiredFilesCount() == 0
+    }
+
+    def "when storing fails, writes are not stored by next batch"() {
+        setup:
+        def failing = true
+        batchWriter.write(_) >> {
+            if (failing) {
+                failing = false
+                throw new IllegalStateException("disk full")
+            }
+            callRealMethod()
+        }
+        async.manageFile(mockFile("file1.txt"), "info").subscribe(new TestSubscriber<ManagedFileDao.ManagedFile>())
+        runWriter()
+        def second = new TestSubscriber<ManagedFileDao.ManagedFile>()
+        async.manageFile(mockFile("file2.txt"), "info").subscribe(second)
+
+        when:
+        runWriter()
+
+        then:
+        second.assertValueCount(1)
+        managedFileDao.debugPurposeListAllFiles().contains("file2.txt")
+        !managedFileDao.debugPurposeListAllFiles().contains("file1.txt")
+    }
+
+    def "when writes are discarded by flush of other thread, operations fail"() {
+        setup:
+        def failing = true
+        batchWriter.write(_) >> {
+            if (failing) {
+                failing = false
+                throw new IllegalStateException("disk full")
+            }
+            callRealMethod()
+        }
+        // real files, mock invocations would wait for each other between threads
+        def otherFile = new File("/other.txt")
+        def other = new Thread({
+            try {
+                managedFileDao.manageFile(otherFile, "info")
+            } catch (IllegalStateException ignore) {
+            }
+        })
+        def secondFile = new File("/file2.txt") {
+            @Override
+            String getAbsolutePath() {
+                // runs on writer thread while writes of first operation are pending
+                other.start()
+                other.join()
+                return super.getAbsolutePath()
+            }
+        }
+        def first = new TestSubscriber<ManagedFileDao.ManagedFile>()
+        async.manageFile(mockFile("file1.txt"), "info").subscribe(first)
+        async.manageFile(secondFile, "info").subscribe(new TestSubscriber<ManagedFileDao.ManagedFile>())
+
+        when:
+        runWriter()
+
+        then:
+        first.assertError(IllegalStateException)
+        !managedFileDao.debugPurposeListAllFiles().contains("file1.txt")
+        managedFileDao.volatileAcquiredFilesCount() == 0
+    }
+
+    def "when subscriber unsubscribes before result is emitted, acquired file is released"() {
+        setup:
+        def subscriber = new TestSubscriber<ManagedFileDao.ManagedFile>()
+        batchWriter.write(_) >> {
+            subscriber.unsubscribe()
+            callRealMethod()
+        }
+        async.manageFile(mockFile("file.txt"), "info").subscribe(subscriber)
+
+        when:
+        runWriter()
+
+        then:
+        subscriber.assertNoValues()
+        managedFileDao.volatileAcquiredFilesCount() == 0
+    }
+
+    def "when subscriber unsubscribes before writer runs, operation is not executed"() {
+        setup:
+        async.manageFile(mockFile("file.txt"), "info").subscribe().unsubscribe()
+
+        when:
+        runWriter()
+
+        then:
+        0 * batchWriter.write(_)
+        managedFileDao.debugPurposeListAllFiles().isEmpty()
+    }
+
+    private void runWriter() {
+        while (!writerTasks.isEmpty()) {
+            writerTasks.remove(0).run()
+        }
+    }
+
+    private File mockFile(String path) {
+        Mock(File) {
+            getAbsolutePath() >> path
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.appunite.intenthelperlibrary.dao
+
+import com.appunite.keyvalue.KeyValueMemory
+import com.google.protobuf.ByteString
+import spock.lang.Specification
+
+class IdAllocatorSpec extends Specification {
+
+    def MARK = ByteString.copyFromUtf8("mark")
+    KeyValueMemory keyValue = Spy(KeyValueMemory)
+
+    def "ids are numeric and increasing"() {
+        setup:
+        def allocator = new IdAllocator(keyValue, MARK, 10)
+
+        when:
+        def ids = (0..<25).collect { allocator.newId() }
+
+        then:
+        ids.every { IdAllocator.isNumeric(it) }
+        ids.collect { IdAllocator.toLong(it) } == (1..25).toList()
+    }
+
+    def "high-water mark is written once per reservation"() {
+        setup:
+        def allocator = new IdAllocator(keyValue, MARK, 10)
+
+        when:
+        25.times { allocator.newId() }
+
+        then:
+        3 * keyValue.put(MARK, _)
+    }
+
+    def "after restart, reserved ids are not reused"() {
+        setup:
+        def allocator = new IdAllocator(keyValue, MARK, 10)
+        def used = (0..<5).collect { IdAllocator.toLong(allocator.newId()) }
+
+        when:
+        def afterRestart = IdAllocator.toLong(new IdAllocator(keyValue, MARK, 10).newId())
+
+        then:
+        afterRestart > used.max()
+        afterRestart == 11
+    }
+
+    def "legacy ids are not numeric"() {
+        expect:
+        !IdAllocator.isNumeric(ByteString.copyFromUtf8(UUID.randomUUID().toString()))
+    }
+}
@@ -0,0 +1,80 @@
+package com.appunite.intenthelperlibrary.dao
+
+import com.appunite.keyvalue.KeyValueMemory
+import com.appunite.keyvalue.NotFoundException
+import com.google.protobuf.ByteString
+import spock.lang.Specification
+
+class JournaledBatchWriterSpec extends Specification {
+
+    KeyValueMemory keyValue = Spy(KeyValueMemory)
+
+    def "batch is journaled before it is applied and journal is removed after"() {
+        setup:
+        def writer = new JournaledBatchWriter(keyValue)
+        keyValue.put(key("old"), key("value"))
+
+        when:
+        writer.write(new WriteBatch()
+                .put(key("a"), key("1"))
+                .del(key("old")))
+
+        then:
+        1 * keyValue.put(JournaledBatchWriter.JOURNAL_KEY, _)
+
+        then:
+        1 * keyValue.put(key("a"), key("1"))
+        1 * keyValue.del(key("old"))
+
+        then:
+        1 * keyValue.del(JournaledBatchWriter.JOURNAL_KEY)
+        !stored(JournaledBatchWriter.JOURNAL_KEY)
+    }
+
+    def "single operation is written without journal"() {
+        setup:
+        def writer = new JournaledBatchWriter(keyValue)
+
+        when:
+        writer.write(new WriteBatch().put(key("a"), key("1")))
+
+        then:
+        0 * keyValue.put(JournaledBatchWriter.JOURNAL_KEY, _)
+        keyValue.getBytes(key("a")) == key("1")
+    }
+
+    def "when process died in the middle of batch, rest of batch is applied on start"() {
+        setup:
+        keyValue.put(key("old"), key("value"))
+        def operations = new WriteBatch()
+                .put(key("a"), key("1"))
+                .put(key("b"), key("2"))
+                .del(key("old"))
+                .operations()
+        // journal is stored and only first operation was applied
+        keyValue.put(JournaledBatchWriter.JOURNAL_KEY, JournaledBatchWriter.encode(operations))
+        keyValue.put(key("a"), key("1"))
+
+        when:
+        new JournaledBatchWriter(keyValue)
+
+        then:
+        keyValue.getBytes(key("a")) == key("1")
+        keyValue.getBytes(key("b")) == key("2")
+        !stored(key("old"))
+        !stored(JournaledBatchWriter.JOURNAL_KEY)
+    }
+
+    private boolean stored(ByteString key) {
+        try {
+            keyValue.getBytes(key)
+            return true
+        } catch (NotFoundException ignore) {
+            return false
+        }
+    }
+
+    private static ByteString key(String value) {
+        ByteString.copyFromUtf8(value)
+    }
+}
@@ -0,0 +1,179 @@
+package com.appunite.intenthelperlibrary.dao
+
+import com.appunite.keyvalue.KeyValueMemory
+import com.appunite.keyvalue.NotFoundException
+import com.google.protobuf.ByteString
+import com.newmedia.intenthelperlibrary.snappy.files.Message
+import rx.schedulers.Schedulers
+import rx.schedulers.TestScheduler
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+
+class KeySchemaMigrationSpec extends Specification {
+
+    def LONG_TIME = 1024*1024
+    TestScheduler testScheduler
+    ManagedFileDao.ExtendedFileOperations fileOperations
+    KeyValueMemory keyValueMemory
+    KeySchema legacy = KeySchema.legacy()
+    KeySchema.Compact compact = KeySchema.compact()
+
+    void setup() {
+        testScheduler = Schedulers.test()
+        fileOperations = Mock(ManagedFileDao.ExtendedFileOperations)
+        keyValueMemory = new KeyValueMemory()
+    }
+
+    def "new database does not need migration"() {
+        when:
+        def dao = new ManagedFileDao(testScheduler, keyValueMemory, fileOperations)
+
+        then:
+        !dao.isKeyMigrationPending()
+        !new ManagedFileDao(testScheduler, keyValueMemory, fileOperations).isKeyMigrationPending()
+    }
+
+    def "legacy file is found before migration"() {
+        setup:
+        def file = writeLegacyFile("1", "file.txt", LONG_TIME)
+        def dao = new ManagedFileDao(testScheduler, keyValueMemory, fileOperations)
+
+        when:
+        def managedFile = dao.findAndAcquireManagedFileIfExists(file.fileId, "after upgrade")
+
+        then:
+        managedFile != null
+        managedFile.file().getPath() == "file.txt"
+        !exists(legacy.fileKey(file.fileId))
+        exists(compact.fileKey(file.fileId))
+    }
+
+    def "legacy restart acquisition is received before migration"() {
+        setup:
+        def file = writeLegacyFile("1", "file.txt", LONG_TIME)
+        def acquire = writeLegacyRestartAcquisition(file, "2", "upload")
+        def dao = new ManagedFileDao(testScheduler, keyValueMemory, fileOperations)
+
+        when:
+        def restartFile = dao.receiveRestartManagedFile(acquire.acquireId)
+
+        then:
+        restartFile.fileId() == file.fileId
+        !exists(legacy.acquireKey(acquire.acquireId))
+        exists(compact.acquireKey(acquire.acquireId))
+    }
+
+    def "legacy path is managed before migration"() {
+        setup:
+        writeLegacyFile("1", "file.txt", LONG_TIME)
+        def dao = new ManagedFileDao(testScheduler, keyValueMemory, fileOperations)
+
+        when:
+        dao.manageFile(mockFile("file.txt"), "again")
+
+        then:
+        thrown(IllegalStateException)
+    }
+
+    def "after migration no legacy keys are left and total size is counted"() {
+        setup:
+        fileOperations.fileSize(_) >> 10
+        def files = (0..<150).collect { writeLegacyFile("file" + it, "file" + it + ".txt", LONG_TIME) }
+        def acquire = writeLegacyRestartAcquisition(files[0], "acquire", "upload")
+        def dao = new ManagedFileDao(testScheduler, keyValueMemory, fileOperations)
+
+        when:
+        dao.isKeyMigrationPending()
+        testScheduler.triggerActions()
+
+        then:
+        !dao.isKeyMigrationPending()
+        dao.totalSizeInBytes() == 1500
+        files.every { !exists(legacy.fileKey(it.fileId)) && exists(compact.fileKey(it.fileId)) }
+        !exists(legacy.acquireKey(acquire.acquireId))
+        keyValueMemory.getKeys(legacy.fileAllPrefix(), null, 1).keys().isEmpty()
+        new ManagedFileDao(testScheduler, keyValueMemory, fileOperations).totalSizeInBytes() == 1500
+        dao.receiveRestartManagedFile(acquire.acquireId).fileId() == files[0].fileId
+    }
+
+    def "migrated file has compact indexes and count of restart acquisitions"() {
+        setup:
+        fileOperations.fileSize("file.txt") >> 10
+        def file = writeLegacyFile("1", "file.txt", LONG_TIME)
+        writeLegacyRestartAcquisition(file, "2", "upload")
+        def dao = new ManagedFileDao(testScheduler, keyValueMemory, fileOperations)
+
+        when:
+        dao.isKeyMigrationPending()
+        testScheduler.triggerActions()
+
+        then:
+        def migrated = Message.FileEntryMessage.parseFrom(keyValueMemory.getBytes(compact.fileKey(file.fileId)))
+        migrated.sizeInBytes == 10
+        migrated.restartAcquireCount == 1
+        exists(compact.fileExpirationIndex(migrated))
+        exists(compact.fileLruIndex(migrated))
+        exists(compact.acquireOfFileIndex(Message.AcquireMessage.parseFrom(keyValueMemory.getBytes(compact.acquireKey(ByteString.copyFromUtf8("2"))))))
+    }
+
+    def "migrated expired file is removed"() {
+        setup:
+        writeLegacyFile("1", "file.txt", 0)
+        def dao = new ManagedFileDao(testScheduler, keyValueMemory, fileOperations)
+        dao.isKeyMigrationPending()
+        testScheduler.triggerActions()
+
+        when:
+        testScheduler.advanceTimeBy(1, TimeUnit.SECONDS)
+        dao.removeOldFiles()
+
+        then:
+        1 * fileOperations.removeFile("file.txt")
+    }
+
+    /**
+     * File as stored by first versions, without size and indexes other than path and all files
+     */
+    private Message.FileEntryMessage writeLegacyFile(String id, String path, long expirationTimeInMillis) {
+        def message = Message.FileEntryMessage.newBuilder()
+                .setFileId(ByteString.copyFromUtf8(id))
+                .setPath(path)
+                .setExpirationTimeInMillis(expirationTimeInMillis)
+                .build()
+        def key = legacy.fileKey(message.fileId)
+        new SequentialBatchWriter(keyValueMemory).write(new WriteBatch()
+                .put(key, message.toByteString())
+                .put(legacy.filePathKey(path), key)
+                .put(legacy.fileAllIndex(message.fileId), key))
+        message
+    }
+
+    private Message.AcquireMessage writeLegacyRestartAcquisition(Message.FileEntryMessage file, String id, String name) {
+        def acquire = Message.AcquireMessage.newBuilder()
+                .setAcquireId(ByteString.copyFromUtf8(id))
+                .setFileId(file.fileId)
+                .setAcquireName(name)
+                .build()
+        def key = legacy.acquireKey(acquire.acquireId)
+        new SequentialBatchWriter(keyValueMemory).write(new WriteBatch()
+                .put(key, acquire.toByteString())
+                .put(legacy.acquireOfFileIndex(acquire), key))
+        acquire
+    }
+
+    private boolean exists(ByteString key) {
+        try {
+            keyValueMemory.getBytes(key)
+            return true
+        } catch (NotFoundException ignore) {
+            return false
+        }
+    }
+
+    private File mockFile(String path) {
+        Mock(File) {
+            getAbsolutePath() >> path
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.appunite.intenthelperlibrary.dao
+
+import com.google.protobuf.ByteString
+import spock.lang.Specification
+
+class LeakDetectorSpec extends Specification {
+
+    LeakListener listener = Mock(LeakListener)
+    LeakDetector.Releaser releaser = Mock(LeakDetector.Releaser)
+    ByteString fileId = ByteString.copyFromUtf8("file")
+
+    def "when tracked handle is collected, leak is reported and handle is released"() {
+        setup:
+        def detector = new LeakDetector(1, listener, true, false)
+        def tracker = detector.track(new Object(), fileId, "leaked", releaser)
+
+        when:
+        tracker.enqueue()
+        def reaped = detector.reapEnqueued()
+
+        then:
+        reaped == 1
+        1 * releaser.release()
+        1 * listener.onLeak(fileId, "leaked", true)
+        detector.trackedCount() == 0
+    }
+
+    def "when auto release is disabled, leak is only reported"() {
+        setup:
+        def detector = new LeakDetector(1, listener, false, false)
+        def tracker = detector.track(new Object(), fileId, "leaked", releaser)
+
+        when:
+        tracker.enqueue()
+        detector.reapEnqueued()
+
+        then:
+        0 * releaser.release()
+        1 * listener.onLeak(fileId, "leaked", false)
+    }
+
+    def "when handle was released before it was collected, nothing is reported"() {
+        setup:
+        def detector = new LeakDetector(1, listener, true, false)
+        def tracker = detector.track(new Object(), fileId, "released", releaser)
+        tracker.untrack()
+
+        when:
+        tracker.enqueue()
+        def reaped = detector.reapEnqueued()
+
+        then:
+        reaped == 0
+        0 * releaser.release()
+        0 * listener.onLeak(_, _, _)
+    }
+
+    def "when listener fails, next leaks are still reported"() {
+        setup:
+        def detector = new LeakDetector(1, listener, false, false)
+        def first = detector.track(new Object(), fileId, "first", releaser)
+        def second = detector.track(new Object(), fileId, "second", releaser)
+
+        when:
+        first.enqueue()
+        second.enqueue()
+        def reaped = detector.reapEnqueued()
+
+        then:
+        reaped == 2
+        1 * listener.onLeak(fileId, "first", false) >> { throw new IllegalStateException("listener") }
+        1 * listener.onLeak(fileId, "second", false)
+    }
+
+    def "only every n-th handle is tracked"() {
+        setup:
+        def detector = new LeakDetector(3, listener, false, false)
+
+        when:
+        def trackers = (1..6).collect { detector.track(new Object(), fileId, "handle", releaser) }
+
+        then:
+        trackers.count { it != null } == 2
+        detector.trackedCount() == 2
+    }
+}
@@ -0,0 +1,53 @@
+package com.appunite.intenthelperlibrary.dao
+
+import com.appunite.keyvalue.KeyValueMemory
+import rx.schedulers.Schedulers
+import rx.schedulers.TestScheduler
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+
+class LeaseSweepSpec extends Specification {
+
+    def STALE_ENTRIES = 250
+    TestScheduler testScheduler = Schedulers.test()
+    ManagedFileDao.ExtendedFileOperations fileOperations = Mock(ManagedFileDao.ExtendedFileOperations)
+    KeyValueMemory keyValueMemory = new KeyValueMemory()
+    KeySchema.Compact compact = KeySchema.compact()
+    ManagedFileDao dao
+
+    void setup() {
+        dao = new ManagedFileDao(testScheduler, keyValueMemory, fileOperations)
+        def pinned = dao.manageFile(new File("/pinned.txt"), "info")
+        STALE_ENTRIES.times {
+            def acquireId = pinned.newRestartManagedFile("leased", testScheduler.now() + 1).managedFileId()
+            // lease index entry is left when acquisition is removed without it
+            keyValueMemory.del(compact.acquireKey(acquireId))
+        }
+        pinned.release()
+        def leased = dao.manageFile(new File("/leased.txt"), "info", 1)
+        leased.newRestartManagedFile("leased", testScheduler.now() + 2)
+        leased.release()
+        testScheduler.advanceTimeBy(1, TimeUnit.MINUTES)
+    }
+
+    def "when lease index has many stale entries, removing old files finishes"() {
+        when:
+        dao.removeOldFiles()
+
+        then:
+        1 * fileOperations.removeFile("/leased.txt")
+        0 * fileOperations.removeFile(_)
+    }
+
+    def "when lease index has many stale entries, incremental removing makes progress"() {
+        when:
+        def cursor = dao.removeOldFiles(null, 10, Long.MAX_VALUE)
+        for (int i = 0; i < 10 && cursor != null; i++) {
+            cursor = dao.removeOldFiles(cursor, 10, Long.MAX_VALUE)
+        }
+
+        then:
+        1 * fileOperations.removeFile("/leased.txt")
+    }
+}
@@ -0,0 +1,30 @@
+package com.appunite.intenthelperlibrary.dao
+
+import com.google.protobuf.ByteString
+import spock.lang.Specification
+
+class LockStripesSpec extends Specification {
+
+    LockStripes stripes = new LockStripes(64)
+
+    def "sequential numeric ids are spread evenly over stripes"() {
+        setup:
+        def counts = new int[stripes.size()]
+
+        when:
+        for (long id = 1000; id < 1000 + 64 * 10; id++) {
+            counts[stripes.indexFor(IdAllocator.toBytes(id))] += 1
+        }
+
+        then:
+        counts.every { it == 10 }
+    }
+
+    def "legacy ids are mapped to stripes"() {
+        expect:
+        (0..<1000).every {
+            def index = stripes.indexFor(ByteString.copyFromUtf8("legacy" + it))
+            index >= 0 && index < stripes.size()
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.appunite.intenthelperlibrary.dao
+
+import com.google.protobuf.ByteString
+import spock.lang.Specification
+
+class VolatileAcquisitionsSpec extends Specification {
+
+    def FILES = 10 * 1000
+    LockStripes stripes = new LockStripes(64)
+
+    def "after acquiring and releasing many files, no entries are kept"() {
+        setup:
+        def acquisitions = new VolatileAcquisitions(stripes, false)
+
+        when:
+        for (int i = 0; i < FILES; i++) {
+            def fileId = fileId(i)
+            def acquireId = acquisitions.acquire(fileId, "info")
+            acquisitions.release(fileId, acquireId)
+        }
+
+        then:
+        acquisitions.size() == 0
+    }
+
+    def "when counting acquisitions of many files, no entries are created"() {
+        setup:
+        def acquisitions = new VolatileAcquisitions(stripes, false)
+
+        when:
+        for (int i = 0; i < FILES; i++) {
+            acquisitions.count(fileId(i))
+        }
+
+        then:
+        acquisitions.size() == 0
+    }
+
+    def "when file is acquired many times without tracing, one entry without names is kept"() {
+        setup:
+        def acquisitions = new VolatileAcquisitions(stripes, false)
+
+        when:
+        1000.times {
+            acquisitions.acquire(fileId(1), "info" + it)
+        }
+
+        then:
+        acquisitions.size() == 1
+        acquisitions.count(fileId(1)) == 1000
+        acquisitions.names(fileId(1)).isEmpty()
+    }
+
+    def "when file is acquired twice, it is kept until second release"() {
+        setup:
+        def acquisitions = new VolatileAcquisitions(stripes, false)
+        def first = acquisitions.acquire(fileId(1), "first")
+        def second = acquisitions.acquire(fileId(1), "second")
+
+        when:
+        acquisitions.release(fileId(1), first)
+
+        then:
+        acquisitions.count(fileId(1)) == 1
+
+        when:
+        acquisitions.release(fileId(1), second)
+
+        then:
+        acquisitions.count(fileId(1)) == 0
+        acquisitions.size() == 0
+    }
+
+    def "when releasing not acquired file, throw exception"() {
+        setup:
+        def acquisitions = new VolatileAcquisitions(stripes, false)
+
+        when:
+        acquisitions.release(fileId(1), VolatileAcquisitions.NOT_TRACED)
+
+        then:
+        thrown IllegalStateException
+    }
+
+    def "when tracing, names are kept until release"() {
+        setup:
+        def acquisitions = new VolatileAcquisitions(stripes, true)
+        def acquireId = acquisitions.acquire(fileId(1), "for glide")
+
+        expect:
+        acquisitions.names(fileId(1)) == ["for glide"]
+
+        when:
+        acquisitions.release(fileId(1), acquireId)
+
+        then:
+        acquisitions.names(fileId(1)).isEmpty()
+    }
+
+    def "when tracing, releasing same acquisition twice throws exception"() {
+        setup:
+        def acquisitions = new VolatileAcquisitions(stripes, true)
+        def acquireId = acquisitions.acquire(fileId(1), "first")
+        acquisitions.acquire(fileId(1), "second")
+        acquisitions.release(fileId(1), acquireId)
+
+        when:
+        acquisitions.release(fileId(1), acquireId)
+
+        then:
+        thrown IllegalStateException
+    }
+
+    def "when many files with numeric ids are acquired and released in random order, no entries are kept"() {
+        setup:
+        def acquisitions = new VolatileAcquisitions(stripes, false)
+        def fileIds = (0..<FILES).collect { IdAllocator.toBytes(it) }
+
+        when:
+        for (ByteString fileId : fileIds) {
+            acquisitions.acquire(fileId, "info")
+        }
+
+        then:
+        acquisitions.size() == FILES
+        fileIds.every { acquisitions.count(it) == 1 }
+
+        when:
+        Collections.shuffle(fileIds, new Random(0))
+        for (ByteString fileId : fileIds) {
+            acquisitions.release(fileId, VolatileAcquisitions.NOT_TRACED)
+        }
+
+        then:
+        acquisitions.size() == 0
+    }
+
+    def "numeric and legacy ids are counted separately"() {
+        setup:
+        def acquisitions = new VolatileAcquisitions(stripes, true)
+        def numeric = IdAllocator.toBytes(1)
+        def legacy = ByteString.copyFromUtf8("1")
+
+        when:
+        acquisitions.acquire(numeric, "numeric")
+        acquisitions.acquire(legacy, "legacy")
+
+        then:
+        acquisitions.size() == 2
+        acquisitions.names(numeric) == ["numeric"]
+        acquisitions.names(legacy) == ["legacy"]
+    }
+
+    private static ByteString fileId(int i) {
+        ByteString.copyFromUtf8("file" + i)
+    }
+}
@@ -0,0 +1,154 @@
+package com.appunite.intenthelperlibrary;
+
+import com.appunite.intenthelperlibrary.dao.ManagedFileDao;
+import com.appunite.keyvalue.KeyValueMemory;
+import com.appunite.keyvalue.NotFoundException;
+import com.google.protobuf.ByteString;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import rx.schedulers.Schedulers;
+import rx.schedulers.TestScheduler;
+
+import static com.google.common.truth.Truth.assert_;
+
+/**
+ * Many threads acquire and release the same files at once - acquisitions must not get lost
+ * or duplicated by per-file locking.
+ * <p>
+ * Throughput for 1 to 8 threads is measured by ContentionBenchmark in intenthelperbenchmark.
+ */
+public class ManagedFileDaoContentionTest {
+
+    private static final int THREADS = 8;
+    private static final int FILES = 4;
+    private static final int ITERATIONS_PER_THREAD = 2000;
+
+    @Test
+    public void testAcquireReleaseOfSharedFilesInParallel() throws Exception {
+        final TestScheduler scheduler = Schedulers.test();
+        final RecordingFileOperations fileOperations = new RecordingFileOperations();
+        final ManagedFileDao dao = new ManagedFileDao(scheduler, new SynchronizedKeyValue(), fileOperations);
+        final List<ManagedFileDao.ManagedFile> roots = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            roots.add(dao.manageFile(new File("/file" + i), "root"));
+        }
+
+        runInParallel(dao, roots);
+
+        assert_().that(dao.volatileAcquiredFilesCount()).isEqualTo(FILES);
+        for (ManagedFileDao.ManagedFile root : roots) {
+            root.release();
+        }
+        assert_().that(dao.volatileAcquiredFilesCount()).isEqualTo(0);
+
+        scheduler.advanceTimeBy(1, TimeUnit.DAYS);
+        dao.removeOldFiles();
+        assert_().that(fileOperations.removed.size()).isEqualTo(FILES);
+    }
+
+    private void runInParallel(@Nonnull final ManagedFileDao dao,
+                               @Nonnull final List<ManagedFileDao.ManagedFile> roots) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Future<Void>> futures = new ArrayList<>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        for (int i = 0; i < ITERATIONS_PER_THREAD; i++) {
+                            final ManagedFileDao.ManagedFile root = roots.get(i % roots.size());
+                            final ManagedFileDao.ManagedFile acquired = dao.findAndAcquireManagedFileIfExists(root.fileId(), "contention");
+                            assert_().that(acquired).isNotNull();
+                            //noinspection ConstantConditions
+                            acquired.release();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * {@link KeyValueMemory} is not thread safe, disk implementations synchronize on their own
+     */
+    private static class SynchronizedKeyValue extends KeyValueMemory {
+
+        @Override
+        public synchronized void put(@Nonnull ByteString key, @Nonnull ByteString value) {
+            super.put(key, value);
+        }
+
+        @Override
+        public synchronized void del(@Nonnull ByteString key) {
+            super.del(key);
+        }
+
+        @Nonnull
+        @Override
+        public synchronized ByteString getBytes(@Nonnull ByteString key) throws NotFoundException {
+            return super.getBytes(key);
+        }
+
+        @Nonnull
+        @Override
+        public synchronized Iterator getKeys(@Nonnull ByteString prefix, @Nullable ByteString nextToken, int batch) {
+            return super.getKeys(prefix, nextToken, batch);
+        }
+    }
+
+    private static class RecordingFileOperations implements ManagedFileDao.ExtendedFileOperations {
+        final Set<String> removed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        @Override
+        public void removeFile(@Nonnull String path) {
+            removed.add(path);
+        }
+
+        @Override
+        public long fileSize(@Nonnull String path) {
+            return 0;
+        }
+
+        @Nonnull
+        @Override
+        public List<String> listFiles(@Nonnull String directory) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public long lastModified(@Nonnull String path) {
+            return 0;
+        }
+
+        @Override
+        public boolean createFile(@Nonnull String path) {
+            return true;
+        }
+    }
+}